@@ -3,13 +3,23 @@ import java.math.BigDecimal;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import smg.interpreter.CompiledScript;
 import smg.interpreter.Interpreter;
+import smg.interpreter.Parser;
+import smg.interpreter.ProgramCache;
+import smg.interpreter.Serialiser;
+import smg.interpreter.Serialiser.Archive;
 import smg.interpreter.Capture.F;
 import smg.interpreter.Capture.F0;
 
@@ -29,11 +39,60 @@ public class Main {
         
         intr.defineVar("println", println);
         intr.defineVar("print", print);
+        intr.defineVar("hostCall", (F) arg -> ((F) intr.getVar((String) arg[0])).apply(arg[1]));
+        intr.defineVar("hostSet", (F) arg -> { intr.setVar((String) arg[0], arg[1]); return null; });
+        intr.defineVar("roundTrip", (F) arg -> roundTrip((String) arg[0]));
+        intr.defineVar("compileAtOnce", (F) arg -> compileAtOnce((String) arg[0], ((Number) arg[1]).intValue()));
         intr.integrateClasses(Interpreter.class, Set.class, List.class, LinkedList.class);
+        intr.setEngine(Interpreter.Engine.valueOf(System.getProperty("engine", "tree").toUpperCase()));
 
         intr.run();
     }
 
+    // Run a script as compiled, after its parsed program went through an Archive,
+    // and after its optimised program went through the Serialiser and back.
+    private static List<Object> roundTrip(String code) {
+        final CompiledScript script = CompiledScript.compile(code);
+        final Archive archive = Archive.of(Archive.write(Map.of(
+            "parsed", Parser.parse(code),
+            "optimised", Serialiser.deserialise(Serialiser.serialise(script))
+        )));
+        return List.of(
+            script.run(new HashMap<>()),
+            archive.script("parsed").run(new HashMap<>()),
+            archive.script("optimised").run(new HashMap<>())
+        );
+    }
+
+    // Compile the same code on many threads at once through one cache. Gives the number of
+    // different programs that came out, the number of threads that failed, and the cache size.
+    private static List<Integer> compileAtOnce(String code, int threads) {
+        final ProgramCache cache = new ProgramCache(4);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Set<CompiledScript> programs = ConcurrentHashMap.newKeySet();
+        final AtomicInteger failed = new AtomicInteger();
+        final List<Thread> running = new ArrayList<>();
+
+        for (int i = 0; i < threads; i += 1) {
+            final Thread thread = new Thread(() -> {
+                try {
+                    start.await();
+                    programs.add(cache.get(code));
+                }
+                catch (Throwable e) { failed.incrementAndGet(); }
+            });
+            thread.start();
+            running.add(thread);
+        }
+
+        start.countDown();
+        for (Thread thread : running) {
+            try { thread.join(); }
+            catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+        }
+        return List.of(programs.size(), failed.get(), cache.size());
+    }
+
     public static void main1() throws IOException {
         final String code = String.join("\n", Files.readAllLines(Paths.get("./code.smg")));
         final Interpreter intr = new Interpreter(code);
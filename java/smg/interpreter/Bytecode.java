@@ -0,0 +1,530 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Bytecode
+ *
+ * Compiles a program into a flat array of instructions for the VM to run.
+ * Values are kept on an operand stack, variables the Resolver gave a slot are
+ * read and written by their address, and everything else that does not fit in
+ * the code array (literals, names, nodes, nested functions) is kept in a
+ * constant pool and referred to by index.
+ *
+ * Control flow is compiled into jumps. A break or continue exits the frames
+ * between it and its loop and jumps straight to the end or the top of that
+ * loop, so nothing has to check the jump flag after every statement. Only a
+ * return, or a break or continue outside of any loop, leaves the chunk and
+ * sets the flag for whoever called it.
+ *
+ * The body of every function is compiled into a chunk of its own. A few
+ * statements that are rare and tricky to get right as jumps, such as try and
+ * assignments to array indexes and properties, are handed back to the tree
+ * walker.
+ */
+final class Bytecode {
+
+    // MARK: Opcodes
+    // Operands follow their opcode in the code array. Stack effects are noted
+    // as (popped -> pushed).
+    static final int
+        END = 0,         //              end of the chunk
+        CONST = 1,       // k            ( -> constants[k])
+        NULL = 2,        //              ( -> null)
+        POP = 3,         //              (x -> )
+        DUP = 4,         //              (x -> x x)
+        RESULT = 5,      //              (x -> ) x is the last result
+        LOAD_SLOT = 6,   // d s k        ( -> x) k is the name, for errors
+        STORE_SLOT = 7,  // d s          (x -> )
+        LOAD_NAME = 8,   // k            ( -> x)
+        STORE_NAME = 9,  // k            (x -> )
+        DEFINE = 10,     // s k          (x -> ) in the current scope
+        ENTER = 11,      // k            push a frame with slots constants[k]
+        EXIT = 12,       // n            pop n frames
+        BINARY = 13,     // k            (l r -> l op r) k is the node
+        AND = 14,        // t            (l -> l) and jump to t if l is false,
+                         //              (l -> ) otherwise
+        OR = 15,         // t            (l -> l) and jump to t if l is true,
+                         //              (l -> ) otherwise
+        UNARY = 16,      // k            (x -> op x) k is the node
+        ASSIGN = 17,     // op           (l r -> l op r)
+        CAST = 18,       // k            (x -> x as constants[k])
+        PROP = 19,       // k            (x -> x.constants[k])
+        INDEX = 20,      // k            (x i -> x[i]) k is the node, for errors
+        ARRAY = 21,      // n            (x1 .. xn -> [x1 .. xn])
+        MAP = 22,        // k n          (x1 .. xn -> {k1: x1 .. kn: xn})
+        CALL = 23,       // n k          (f x1 .. xn -> f(x1 .. xn)) k is the
+                         //              call site, see Host.Site
+        LAMBDA = 24,     // k            ( -> closure of chunk constants[k])
+        JUMP = 25,       // t
+        JUMP_FALSE = 26, // t            (x -> ) x must be a Boolean
+        IF_FALSE = 27,   // t            (x -> ) x is cast to boolean
+        ITER = 28,       //              (x -> iterator of x)
+        NEXT = 29,       // t            (i -> i x) or jump to t when done
+        LEAVE = 30,      // j            leave the chunk with jump j set
+        TREE = 31,       // k b bn c cn  walk statement k. A break out of it
+                         //              exits bn frames and jumps to b, a
+                         //              continue exits cn and jumps to c.
+        TAIL = 32,       // n k          (f x1 .. xn -> r) as CALL, except a
+                         //              script function is left to be called
+                         //              on return, see Interpreter.tail
+        HOISTED = 33,    // k            ( -> hoisted expression constants[k])
+        BIND = 34;       // k            (x -> ) bind parameter constants[k] of
+                         //              an inlined call
+
+    private static final String[] NAMES = {
+        "END", "CONST", "NULL", "POP", "DUP", "RESULT", "LOAD_SLOT",
+        "STORE_SLOT", "LOAD_NAME", "STORE_NAME", "DEFINE", "ENTER", "EXIT",
+        "BINARY", "AND", "OR", "UNARY", "ASSIGN", "CAST", "PROP", "INDEX",
+        "ARRAY", "MAP", "CALL", "LAMBDA", "JUMP", "JUMP_FALSE", "IF_FALSE",
+        "ITER", "NEXT", "LEAVE", "TREE", "TAIL", "HOISTED", "BIND"
+    };
+
+    // Number of operands of each opcode.
+    static final int[] OPERANDS = {
+        0, 1, 0, 0, 0, 0, 3, 2, 1, 1, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 2, 2,
+        1, 1, 1, 1, 0, 1, 1, 5, 2, 1, 1
+    };
+
+    private Bytecode() {}
+
+    // MARK: Chunk
+    static final class Chunk implements Interpreter.Body {
+        final int[] code;
+        final Object[] constants;
+        final int maxStack;
+
+        // Triples of (start, end, line) giving the line of the code between
+        // start and end, innermost first. Only read when an error is raised.
+        final int[] lines;
+
+        // The function this chunk is the body of, null for a whole program.
+        final NodeExpr.Lambda lambda;
+
+        private Chunk(int[] c, Object[] k, int s, int[] ln, NodeExpr.Lambda l) {
+            code = c; constants = k; maxStack = s; lines = ln; lambda = l;
+        }
+
+        public void run(Interpreter intr) { intr.vm().run(this); }
+
+        int line(int pc) {
+            for (int i = 0; i < lines.length; i += 3)
+                if (lines[i] <= pc && pc < lines[i + 1]) return lines[i + 2];
+            return -1;
+        }
+
+        public String toString() {
+            final StringBuilder out = new StringBuilder();
+            for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+                out.append(String.format("%4d %-10s", pc, NAMES[code[pc]]));
+                for (int i = 1; i <= OPERANDS[code[pc]]; i += 1)
+                    out.append(' ').append(code[pc + i]);
+                out.append('\n');
+            }
+            return out.toString();
+        }
+    }
+
+    static Chunk compile(NodeProgram program) {
+        final Compiler compiler = new Compiler();
+        compiler.stmts(program.stmts);
+        return compiler.finish(null);
+    }
+
+    static Chunk compile(NodeExpr.Lambda def) {
+        final Compiler compiler = new Compiler();
+        compiler.scope(def.body);
+        return compiler.finish(def);
+    }
+
+    // MARK: Compiler
+    private static final class Compiler
+        implements NodeStmt.Visitor, NodeExpr.Visitor, NodeTerm.Visitor {
+
+        private int[] code = new int[64];
+        private int size = 0;
+
+        private int[] lines = new int[24];
+        private int lineCount = 0;
+
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> pool = new HashMap<>();
+
+        // Current and highest height of the operand stack, and the number of
+        // frames entered by this chunk at the current point.
+        private int sp = 0, maxStack = 0, depth = 0;
+
+        // Innermost loop around the current point, and the places that jump
+        // out of it to be filled in once its end is known.
+        private static final class Loop {
+            final Loop outer;
+            final int depth;
+            final List<Integer> breaks = new ArrayList<>(),
+                continues = new ArrayList<>();
+            Loop(Loop o, int d) { outer = o; depth = d; }
+        }
+        private Loop loop = null;
+
+        Chunk finish(NodeExpr.Lambda lambda) {
+            op(END, 0);
+            return new Chunk(Arrays.copyOf(code, size), constants.toArray(),
+                maxStack, Arrays.copyOf(lines, lineCount), lambda
+            );
+        }
+
+        // Code is always closed before the code around it, so the table ends
+        // up innermost first without sorting.
+        private void line(int start, int line) {
+            if (line < 0 || start == size) return;
+            if (lineCount + 3 > lines.length)
+                lines = Arrays.copyOf(lines, lines.length * 2);
+            lines[lineCount++] = start;
+            lines[lineCount++] = size;
+            lines[lineCount++] = line;
+        }
+
+        // MARK: Emitting
+        private int op(int op, int effect, int... operands) {
+            if (size + 1 + operands.length > code.length)
+                code = Arrays.copyOf(code, code.length * 2);
+
+            final int at = size;
+            code[size++] = op;
+            for (int operand : operands) code[size++] = operand;
+
+            sp += effect;
+            if (sp > maxStack) maxStack = sp;
+            return at;
+        }
+
+        // Point the jump operand at the given position to the current end.
+        private void patch(int operand) { code[operand] = size; }
+
+        private int constant(Object value) {
+            Integer index = pool.get(value);
+            if (index == null) {
+                pool.put(value, index = constants.size());
+                constants.add(value);
+            }
+            return index;
+        }
+
+        private void enterScope(String[] locals) {
+            op(ENTER, 0, constant(locals == null ? new String[0] : locals));
+            depth += 1;
+        }
+
+        private void exitScope() {
+            op(EXIT, 0, 1);
+            depth -= 1;
+        }
+
+        private void exitFrames(int n) { if (n > 0) op(EXIT, 0, n); }
+
+        private Loop enterLoop() { return loop = new Loop(loop, depth); }
+        private void exitLoop(Loop l, int breakTarget, int continueTarget) {
+            for (int at : l.breaks) code[at] = breakTarget;
+            for (int at : l.continues) code[at] = continueTarget;
+            loop = l.outer;
+        }
+
+        private void load(NodeTerm.Variable var) {
+            if (var.slot < 0) op(LOAD_NAME, 1, constant(var.var));
+            else op(LOAD_SLOT, 1, var.depth, var.slot, constant(var.var));
+        }
+
+        private void store(NodeTerm.Variable var) {
+            if (var.slot < 0) op(STORE_NAME, -1, constant(var.var));
+            else op(STORE_SLOT, -1, var.depth, var.slot);
+        }
+
+        // Statements the VM does not run itself are walked instead.
+        private void tree(NodeStmt stmt) {
+            final int at = op(TREE, 0, constant(stmt), -1, 0, -1, 0);
+            if (loop == null) return;
+            loop.breaks.add(at + 2); code[at + 3] = depth - loop.depth;
+            loop.continues.add(at + 4); code[at + 5] = depth - loop.depth;
+        }
+
+        // MARK: Scopes
+        void stmts(List<NodeStmt> stmts) {
+            for (NodeStmt stmt : stmts) if (stmt != null) stmt(stmt);
+        }
+
+        private void stmt(NodeStmt stmt) {
+            final int start = size;
+            stmt.host(this);
+            line(start, stmt.line());
+        }
+
+        void scope(NodeScope scope) {
+            if (scope == null) return;
+            enterScope(scope.locals);
+            stmts(scope.stmts);
+            exitScope();
+        }
+
+        private void expr(NodeExpr expr) {
+            if (expr == null) { op(NULL, 1); return; }
+            final int start = size;
+            expr.host(this);
+            line(start, expr.line);
+        }
+
+        // Binary operands can be missing, for example in 'i++'. They are
+        // taken to be null, as the tree walker does.
+        private void term(NodeTerm term) {
+            if (term == null) op(NULL, 1);
+            else term.host(this);
+        }
+
+        // MARK: Statements
+        public void visit(NodeStmt.Assign assign) {
+            if (!(assign.term instanceof NodeTerm.Variable)) {
+                tree(assign);
+                return;
+            }
+
+            // The variable is read first, so an undefined one fails before
+            // the value is worked out.
+            final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+            load(var);
+            expr(assign.expr);
+            op(ASSIGN, -1, assign.op.ordinal());
+            op(DUP, 1);
+            store(var);
+            op(RESULT, -1);
+        }
+
+        public void visit(NodeStmt.Declare decl) {
+            expr(decl.expr);
+            op(DUP, 1);
+            op(DEFINE, -1, decl.slot, constant(decl.var));
+            op(RESULT, -1);
+        }
+
+        public void visit(NodeStmt.If stmt) {
+            expr(stmt.expr);
+            final int fail = op(IF_FALSE, -1, 0);
+            scope(stmt.succ);
+            if (stmt.fail == null) {
+                patch(fail + 1);
+                return;
+            }
+
+            final int end = op(JUMP, 0, 0);
+            patch(fail + 1);
+            scope(stmt.fail);
+            patch(end + 1);
+        }
+
+        public void visit(NodeStmt.While loop) {
+            final int start = size;
+            expr(loop.expr);
+            final int exit = op(JUMP_FALSE, -1, 0);
+
+            final Loop l = enterLoop();
+            scope(loop.scope);
+            op(JUMP, 0, start);
+            patch(exit + 1);
+            exitLoop(l, size, start);
+        }
+
+        public void visit(NodeStmt.For loop) {
+            enterScope(loop.locals);
+            if (loop.init != null) stmt(loop.init);
+
+            final int start = size;
+            expr(loop.cond);
+            final int exit = op(JUMP_FALSE, -1, 0);
+
+            final Loop l = enterLoop();
+            scope(loop.scope);
+            final int inc = size;
+            if (loop.inc != null) stmt(loop.inc);
+            op(JUMP, 0, start);
+            patch(exit + 1);
+            exitLoop(l, size, inc);
+
+            exitScope();
+        }
+
+        // The iterator stays on the stack for the whole loop.
+        public void visit(NodeStmt.ForEach loop) {
+            term(loop.list);
+            op(ITER, 0);
+            enterScope(loop.locals);
+            op(NULL, 1);
+            op(DEFINE, -1, loop.slot, constant(loop.itr));
+
+            final int start = size;
+            final int exit = op(NEXT, 1, 0);
+            if (loop.slot < 0) op(STORE_NAME, -1, constant(loop.itr));
+            else op(STORE_SLOT, -1, 0, loop.slot);
+
+            final Loop l = enterLoop();
+            scope(loop.scope);
+            op(JUMP, 0, start);
+            patch(exit + 1);
+            exitLoop(l, size, start);
+
+            exitScope();
+            op(POP, -1);
+        }
+
+        public void visit(NodeStmt.Function def) {
+            op(LAMBDA, 1, constant(compile(def.lambda)));
+            op(DUP, 1);
+            op(DEFINE, -1, def.slot, constant(def.name));
+            op(RESULT, -1);
+        }
+
+        public void visit(NodeStmt.Return stmt) {
+            if (stmt.tail == null) expr(stmt.expr);
+            else {
+                term(stmt.tail.f);
+                for (NodeExpr arg : stmt.tail.args) expr(arg);
+                op(TAIL, -stmt.tail.args.size(), stmt.tail.args.size(),
+                    constant(stmt.tail.site));
+            }
+            op(RESULT, -1);
+            op(LEAVE, 0, Interpreter.JumpOp.RETURN.ordinal());
+        }
+
+        public void visit(NodeStmt.Break stmt) {
+            if (loop == null) {
+                op(LEAVE, 0, Interpreter.JumpOp.BREAK.ordinal());
+                return;
+            }
+            exitFrames(depth - loop.depth);
+            loop.breaks.add(op(JUMP, 0, 0) + 1);
+        }
+
+        public void visit(NodeStmt.Continue stmt) {
+            if (loop == null) {
+                op(LEAVE, 0, Interpreter.JumpOp.CONTINUE.ordinal());
+                return;
+            }
+            exitFrames(depth - loop.depth);
+            loop.continues.add(op(JUMP, 0, 0) + 1);
+        }
+
+        public void visit(NodeStmt.Expr stmt) {
+            expr(stmt.expr);
+            op(RESULT, -1);
+        }
+
+        public void visit(NodeStmt.Scope stmt) { scope(stmt.scope); }
+        public void visit(NodeStmt.TryCatch block) { tree(block); }
+
+        // MARK: Expressions
+        public <R> R visit(NodeExpr.Binary node) {
+            term(node.lhs);
+            if (node.op == BinaryOp.And || node.op == BinaryOp.Or) {
+                final int skip = op(node.op == BinaryOp.And ? AND : OR, -1, 0);
+                term(node.rhs);
+                patch(skip + 1);
+            }
+            else {
+                term(node.rhs);
+                op(BINARY, -1, constant(node));
+            }
+            return null;
+        }
+
+        public <R> R visit(NodeExpr.Term node) {
+            term(node.val);
+            return null;
+        }
+
+        public <R> R visit(NodeExpr.Lambda def) {
+            op(LAMBDA, 1, constant(compile(def)));
+            return null;
+        }
+
+        // MARK: Terms
+        public <R> R visit(NodeTerm.Literal<?> lit) {
+            if (lit.lit == null) op(NULL, 1);
+            else op(CONST, 1, constant(lit.lit));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Variable var) {
+            load(var);
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.PropAccess access) {
+            term(access.object);
+            op(PROP, 0, constant(access.prop));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.ArrayLiteral arr) {
+            for (NodeExpr item : arr.items) expr(item);
+            op(ARRAY, 1 - arr.items.size(), arr.items.size());
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.MapLiteral map) {
+            final String[] keys = new String[map.items.size()];
+            for (int i = 0; i < keys.length; i += 1) {
+                keys[i] = map.items.get(i).key;
+                expr(map.items.get(i).value);
+            }
+            op(MAP, 1 - keys.length, constant(keys), keys.length);
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.ArrayAccess access) {
+            term(access.array);
+            expr(access.index);
+            op(INDEX, -1, constant(access));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Expr expr) {
+            expr(expr.expr);
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.UnaryExpr expr) {
+            term(expr.val);
+            op(UNARY, 0, constant(expr));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Call call) {
+            term(call.f);
+            for (NodeExpr arg : call.args) expr(arg);
+            op(CALL, -call.args.size(), call.args.size(), constant(call.site));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Cast cast) {
+            term(cast.object);
+            op(CAST, 0, constant(cast.type.type));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Hoisted hoisted) {
+            op(HOISTED, 1, constant(hoisted));
+            return null;
+        }
+
+        public <R> R visit(NodeTerm.Inline inline) {
+            for (NodeTerm.Hoisted param : inline.params) {
+                expr(param.expr);
+                op(BIND, -1, constant(param));
+            }
+            expr(inline.body);
+            op(DUP, 1);
+            op(RESULT, -1);
+            return null;
+        }
+    }
+}
@@ -22,10 +22,10 @@ public class Calculations {
             }
             default:
         }
-        throw intr.error(String.format(
+        throw new ScriptException.Type(
             "Invalid unary operation '%s' on value of type %s", 
             op, javaType(value)
-        ));
+        );
     }
 
     static Object calcAssign(
@@ -48,7 +48,9 @@ public class Calculations {
             case OrEqual: 
                 return calcBinary(intr, BinaryOp.Or, lhs, rhs);
         }
-        throw intr.error("Unsupported assignment operation: %s", op);
+        throw new ScriptException.Type(
+            "Unsupported assignment operation: %s", op
+        );
     }
 
     static Object calcBinaryDouble(
@@ -69,7 +71,7 @@ public class Calculations {
             case Equal:             return lhs == rhs;
             default:
         }
-        throw intr.error(String.format("Invalid double operation %s", op));
+        throw new ScriptException.Type("Invalid double operation %s", op);
     }
 
     static Object calcBinaryLong(
@@ -95,7 +97,17 @@ public class Calculations {
             case ShiftRight:        return lhs >> rhs;
             default:
         }
-        throw intr.error(String.format("Invalid long operation %s", op));
+        throw new ScriptException.Type("Invalid long operation %s", op);
+    }
+
+    // Only made when it is thrown, as calcBinary runs for most operations.
+    private static ScriptException invalid(
+        BinaryOp op, Object lhs, Object rhs
+    ) {
+        return new ScriptException.Type(
+            "Invalid binary expression: (%s) %s (%s)", 
+            javaType(lhs), op, javaType(rhs)
+        );
     }
 
     // Very useful rsource: 
@@ -129,11 +141,6 @@ public class Calculations {
         // longer be lazily evaluated (yet).
         if (of(rhs, NodeTerm.class)) rhs = intr.runTerm((NodeTerm) rhs);
 
-        final String ltype = javaType(lhs), rtype = javaType(rhs);
-        final RuntimeException invalidExpr = intr.error(
-            "Invalid binary expression: (%s) %s (%s)", ltype, op, rtype
-        );
-
         // 2. The operands are checked for nullness. If either of them are null,
         //    permit only the equality operations.
         if (lhs == null || rhs == null) {
@@ -141,7 +148,7 @@ public class Calculations {
                 case Equal: return rhs == lhs;
                 case NotEqual: return rhs != lhs;
 
-                default: throw invalidExpr;
+                default: throw invalid(op, lhs, rhs);
             }
         }
         
@@ -166,7 +173,7 @@ public class Calculations {
                 case Modulo: 
                     return String.format((String) lhs, rhs);
                 
-                default: throw invalidExpr;
+                default: throw invalid(op, lhs, rhs);
             }
         }
         
@@ -176,7 +183,7 @@ public class Calculations {
         //    operation only constructs a new list and does not modify the 
         //    operands.    
         if (ofAny(lhs, List.class)) {
-            if (op != BinaryOp.Add) throw invalidExpr;
+            if (op != BinaryOp.Add) throw invalid(op, lhs, rhs);
             
             final List nlhs = new ArrayList<>((List) lhs);
             if (ofAny(rhs, List.class)) nlhs.addAll((List) rhs);
@@ -190,7 +197,8 @@ public class Calculations {
         //    from the second map are added to the former. In the case that both
         //    maps have different values for the same key, the second map wins.
         else if (ofAny(lhs, Map.class)) {
-            if (op != BinaryOp.Add || !ofAny(rhs, Map.class)) throw invalidExpr;
+            if (op != BinaryOp.Add || !ofAny(rhs, Map.class))
+                throw invalid(op, lhs, rhs);
 
             final Map nlhs = new HashMap<>((Map) lhs);
             nlhs.putAll((Map) rhs);
@@ -208,7 +216,7 @@ public class Calculations {
                 case GreaterEqual: return !dlhs.before(drhs);
                 case Less: return dlhs.before(drhs);
                 case LessEqual: return !dlhs.after(drhs);
-                default: throw invalidExpr;
+                default: throw invalid(op, lhs, rhs);
             }
         }
         
@@ -237,6 +245,130 @@ public class Calculations {
         }
 
         // 10. If none of the above apply, throw an error.
-        throw invalidExpr;
+        throw invalid(op, lhs, rhs);
+    }
+
+    // MARK: Specialisation
+    // Operator nodes remember the kind of operands they have seen. The first
+    // evaluation picks a state from its operands, and later ones go straight
+    // to the operation for that kind as long as the operands still match.
+    // Once they do not, the node falls back on the general path for good.
+    // Nodes are shared between threads, and a state written by one thread
+    // is only ever a guess for the others, which they check before using.
+    static final byte UNSEEN = 0, LONGS = 1, DOUBLES = 2, STRINGS = 3,
+        BOOLEANS = 4, GENERIC = 5;
+
+    // Both operands are evaluated already, so this is not for And and Or.
+    static Object binary(
+        Interpreter intr, NodeExpr.Binary node, Object lhs, Object rhs
+    ) {
+        switch (node.state) {
+            case LONGS:
+                if (lhs instanceof Long && rhs instanceof Long) {
+                    return calcBinaryLong(intr, node.op, 
+                        (Long) lhs, (Long) rhs);
+                }
+                break;
+            case DOUBLES:
+                if (lhs instanceof Double && rhs instanceof Double) {
+                    return calcBinaryDouble(intr, node.op, 
+                        (Double) lhs, (Double) rhs);
+                }
+                break;
+            case STRINGS:
+                if (lhs instanceof String && rhs != null) 
+                    return ((String) lhs).concat(String.valueOf(rhs));
+                break;
+            case GENERIC: return calcBinary(intr, node.op, lhs, rhs);
+        }
+
+        node.state = node.state != UNSEEN ? GENERIC :
+            lhs instanceof Long && rhs instanceof Long ? LONGS :
+            lhs instanceof Double && rhs instanceof Double ? DOUBLES :
+            lhs instanceof String && rhs != null && node.op == BinaryOp.Add ? 
+                STRINGS : GENERIC;
+        return calcBinary(intr, node.op, lhs, rhs);
+    }
+
+    static Object unary(
+        Interpreter intr, NodeTerm.UnaryExpr node, Object value
+    ) {
+        switch (node.state) {
+            case LONGS:
+                if (value instanceof Long) return - (Long) value;
+                break;
+            case DOUBLES:
+                if (value instanceof Double) return - (Double) value;
+                break;
+            case BOOLEANS:
+                if (value instanceof Boolean) return !(Boolean) value;
+                break;
+            case GENERIC: return calcUnary(intr, node.op, value);
+        }
+
+        final UnaryOp op = node.op;
+        node.state = node.state != UNSEEN ? GENERIC :
+            op == UnaryOp.Negate && value instanceof Long ? LONGS :
+            op == UnaryOp.Negate && value instanceof Double ? DOUBLES :
+            op == UnaryOp.Not && value instanceof Boolean ? BOOLEANS : GENERIC;
+        return calcUnary(intr, node.op, value);
+    }
+
+    // MARK: Fast paths
+    // Operations on two longs or two doubles are the common case, and give
+    // the same result as calcBinary without going through it. The compiling
+    // engines call these directly for the operators they cover.
+    static Object add(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs + (Long) rhs;
+        if (lhs instanceof Double && rhs instanceof Double)
+            return (Double) lhs + (Double) rhs;
+        return calcBinary(intr, BinaryOp.Add, lhs, rhs);
+    }
+
+    static Object subtract(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs - (Long) rhs;
+        if (lhs instanceof Double && rhs instanceof Double)
+            return (Double) lhs - (Double) rhs;
+        return calcBinary(intr, BinaryOp.Subtract, lhs, rhs);
+    }
+
+    static Object multiply(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs * (Long) rhs;
+        if (lhs instanceof Double && rhs instanceof Double)
+            return (Double) lhs * (Double) rhs;
+        return calcBinary(intr, BinaryOp.Multiply, lhs, rhs);
+    }
+
+    static Object less(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs < (Long) rhs;
+        return calcBinary(intr, BinaryOp.Less, lhs, rhs);
+    }
+
+    static Object lessEqual(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs <= (Long) rhs;
+        return calcBinary(intr, BinaryOp.LessEqual, lhs, rhs);
+    }
+
+    static Object greater(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs > (Long) rhs;
+        return calcBinary(intr, BinaryOp.Greater, lhs, rhs);
+    }
+
+    static Object greaterEqual(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return (Long) lhs >= (Long) rhs;
+        return calcBinary(intr, BinaryOp.GreaterEqual, lhs, rhs);
+    }
+
+    static Object equal(Interpreter intr, Object lhs, Object rhs) {
+        if (lhs instanceof Long && rhs instanceof Long)
+            return ((Long) lhs).longValue() == (Long) rhs;
+        return calcBinary(intr, BinaryOp.Equal, lhs, rhs);
     }
 }
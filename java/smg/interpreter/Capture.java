@@ -2,6 +2,7 @@ package smg.interpreter;
 
 import static smg.interpreter.Types.javaType;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -13,20 +14,51 @@ public class Capture {
     public final Map<String, Object> variables;
     private final Object function;
 
-    public Capture(List<Map<String, Object>> stack, Object f) {
-        variables = new HashMap<>();
+    // The definition and compiled body of a script function, which callers
+    // in the Interpreter use to enter it directly. Null for host functions.
+    final NodeExpr.Lambda def;
+    final Interpreter.Body body;
+
+    // Free variables of a script function that were not there to capture,
+    // which it looks for in the scopes of its caller. Null if not known.
+    final String[] missing;
+
+    public Capture(List<? extends Map<String, Object>> stack, Object f) {
+        this(new HashMap<>(), f);
         for (Map<String, Object> map : stack) variables.putAll(map);
+    }
 
+    // Capture only the given variables, for functions whose free variables
+    // are known.
+    public Capture(Map<String, Object> vars, Object f) {
+        this(vars, f, null, null);
+    }
+
+    Capture(
+        Map<String, Object> vars, Object f,
+        NodeExpr.Lambda def, Interpreter.Body body
+    ) {
+        variables = vars;
         if ((function = f) == null) throw new IllegalArgumentException(
             "Supplying null for function is not allowed"
         );
+        this.def = def;
+        this.body = body;
+
+        if (def == null || def.free == null) missing = null;
+        else {
+            final List<String> names = new ArrayList<>();
+            for (String name : def.free)
+                if (!vars.containsKey(name)) names.add(name);
+            missing = names.toArray(new String[0]);
+        }
     }
 
     public Object invoke(Interpreter intr, Object... args) {
         if (function instanceof F) return ((F) function).apply(args);
         else if (function instanceof F0) ((F0) function).apply(args);
-        else throw intr.error(
-            "Unsupported function type: " + javaType(function)
+        else throw new ScriptException.Call(
+            "Unsupported function type: %s", javaType(function)
         );
         
         return null;
@@ -37,4 +69,34 @@ public class Capture {
     
     @FunctionalInterface
     public static interface F0 { public void apply(Object... args); }
+
+    // Functions of a fixed arity, called without an argument array. Missing
+    // arguments are null and extra ones are dropped.
+    @FunctionalInterface
+    public static interface Fn0 { public Object apply(); }
+
+    @FunctionalInterface
+    public static interface Fn1 { public Object apply(Object a); }
+
+    // A function of one argument that can also be called as an F, for
+    // functions that hosts may already call that way, like the built-ins.
+    @FunctionalInterface
+    public static interface Fn1F extends Fn1, F {
+        public default Object apply(Object... args) {
+            return apply(args.length == 0 ? null : args[0]);
+        }
+    }
+
+    @FunctionalInterface
+    public static interface Fn2 { public Object apply(Object a, Object b); }
+
+    @FunctionalInterface
+    public static interface Fn3 {
+        public Object apply(Object a, Object b, Object c);
+    }
+
+    @FunctionalInterface
+    public static interface Fn4 {
+        public Object apply(Object a, Object b, Object c, Object d);
+    }
 }
@@ -0,0 +1,597 @@
+package smg.interpreter;
+
+import static smg.interpreter.Calculations.*;
+import static smg.interpreter.Types.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Closures
+ *
+ * Compiles a program into a tree of Java lambdas, one per node. Everything
+ * that the tree walker works out again on every visit is decided once here
+ * instead: which kind of node it is, which operator, whether a variable has a
+ * slot and where, and what kind of target an assignment has. What is left at
+ * run time are plain calls from one lambda to the next, which the JIT can
+ * inline across.
+ *
+ * Statements behave exactly as they do in the tree walker, including the
+ * jump flag for break, continue and return. Compiled programs hold no state
+ * and can be shared between Interpreters.
+ *
+ * For the JIT engine, function bodies are given to the Jit first, and only
+ * those it cannot compile become lambdas.
+ */
+final class Closures {
+
+    @FunctionalInterface interface Stmt extends Interpreter.Body {}
+    @FunctionalInterface interface Expr { Object eval(Interpreter intr); }
+
+    // The rest of a for each loop, given the iterator it was going through.
+    @FunctionalInterface interface Resume {
+        void run(Interpreter intr, Iterator<?> iterator);
+    }
+
+    // Whether function bodies are handed to the Jit first.
+    private final boolean jit;
+
+    private Closures(boolean jit) { this.jit = jit; }
+
+    static Interpreter.Body compile(NodeProgram program, boolean jit) {
+        final Stmt[] stmts = new Closures(jit).stmts(program.stmts);
+        return intr -> run(stmts, intr);
+    }
+
+    // MARK: Tiers
+    // The tiered engine compiles functions and loops one at a time, once they
+    // are hot. A loop is picked up while it runs, from its next condition
+    // check on, with its scope and variables already in the frames.
+    static Interpreter.Body function(NodeExpr.Lambda def) {
+        return new Closures(true).compile(def);
+    }
+
+    static Interpreter.Body loop(NodeStmt.While loop) {
+        return new Closures(true).whileLoop(loop);
+    }
+
+    static Interpreter.Body resume(NodeStmt.For loop) {
+        return new Closures(true).forSteps(loop);
+    }
+
+    static Resume resume(NodeStmt.ForEach loop) {
+        return new Closures(true).forEachSteps(loop);
+    }
+
+    // Function bodies the Jit cannot compile are compiled into lambdas as
+    // usual.
+    private Interpreter.Body compile(NodeExpr.Lambda def) {
+        final Interpreter.Body body = jit ? Jit.compile(def) : null;
+        return body != null ? body : scope(def.body);
+    }
+
+    // MARK: Statements
+    private static void run(Stmt[] stmts, Interpreter intr) {
+        for (int i = 0; i < stmts.length && intr.jump == null; i += 1)
+            stmts[i].run(intr);
+    }
+
+    private Stmt[] stmts(List<NodeStmt> nodes) {
+        final List<Stmt> stmts = new ArrayList<>(nodes.size());
+        for (NodeStmt node : nodes) if (node != null) stmts.add(stmt(node));
+        return stmts.toArray(new Stmt[0]);
+    }
+
+    private Stmt scope(NodeScope scope) {
+        if (scope == null) return intr -> {};
+        final String[] locals = scope.locals;
+        final Stmt[] stmts = stmts(scope.stmts);
+        return intr -> {
+            intr.enterScope(locals);
+            run(stmts, intr);
+            intr.exitScope();
+        };
+    }
+
+    // Errors a statement raises outside of its expressions get its line.
+    private Stmt stmt(NodeStmt node) {
+        final Stmt stmt = statement(node);
+        final int line = node.line();
+        if (line < 0) return stmt;
+        return intr -> {
+            try { stmt.run(intr); }
+            catch (ScriptException e) { throw intr.at(e, line); }
+        };
+    }
+
+    private Stmt statement(NodeStmt node) {
+        if (node instanceof NodeStmt.Assign)
+            return assign((NodeStmt.Assign) node);
+        if (node instanceof NodeStmt.Declare)
+            return declare((NodeStmt.Declare) node);
+        if (node instanceof NodeStmt.Expr) {
+            final Expr expr = expr(((NodeStmt.Expr) node).expr);
+            return intr -> intr.lastResult = expr.eval(intr);
+        }
+        if (node instanceof NodeStmt.If) return ifStmt((NodeStmt.If) node);
+        if (node instanceof NodeStmt.While)
+            return whileLoop((NodeStmt.While) node);
+        if (node instanceof NodeStmt.For) return forLoop((NodeStmt.For) node);
+        if (node instanceof NodeStmt.ForEach)
+            return forEach((NodeStmt.ForEach) node);
+        if (node instanceof NodeStmt.Scope)
+            return scope(((NodeStmt.Scope) node).scope);
+        if (node instanceof NodeStmt.Function)
+            return function((NodeStmt.Function) node);
+        if (node instanceof NodeStmt.TryCatch)
+            return tryCatch((NodeStmt.TryCatch) node);
+        if (node instanceof NodeStmt.Return) {
+            final NodeStmt.Return stmt = (NodeStmt.Return) node;
+            if (stmt.tail != null) {
+                final Expr f = term(stmt.tail.f);
+                final Expr[] args = exprs(stmt.tail.args);
+                final Host.Site site = stmt.tail.site;
+                return intr -> {
+                    final Object function = f.eval(intr);
+                    final Object[] values = new Object[args.length];
+                    for (int i = 0; i < args.length; i += 1)
+                        values[i] = args[i].eval(intr);
+                    intr.lastResult = intr.tail(site, function, values);
+                    intr.jump = Interpreter.JumpOp.RETURN;
+                };
+            }
+
+            final Expr expr = expr(stmt.expr);
+            return intr -> {
+                intr.lastResult = expr.eval(intr);
+                intr.jump = Interpreter.JumpOp.RETURN;
+            };
+        }
+        if (node instanceof NodeStmt.Break)
+            return intr -> intr.jump = Interpreter.JumpOp.BREAK;
+        if (node instanceof NodeStmt.Continue)
+            return intr -> intr.jump = Interpreter.JumpOp.CONTINUE;
+
+        throw new IllegalArgumentException("Unknown statement: " + node);
+    }
+
+    private Stmt assign(NodeStmt.Assign assign) {
+        final AssignOp op = assign.op;
+        final Expr value = expr(assign.expr);
+
+        if (assign.term instanceof NodeTerm.Variable) {
+            // The variable is read first, so an undefined one fails before
+            // the value is worked out.
+            final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+            final Expr load = variable(var);
+            return intr -> {
+                final Object result = calcAssign(intr, op,
+                    load.eval(intr), value.eval(intr));
+                intr.setVar(var, result);
+                intr.lastResult = result;
+            };
+        }
+        else if (assign.term instanceof NodeTerm.ArrayAccess) {
+            return arrayAssign((NodeTerm.ArrayAccess) assign.term, op, value);
+        }
+        else if (assign.term instanceof NodeTerm.PropAccess) {
+            return propAssign((NodeTerm.PropAccess) assign.term, op, value);
+        }
+
+        return intr -> {
+            throw new ScriptException(
+                "LHS of an assignment is invalid: %s", assign.term
+            );
+        };
+    }
+
+    // Characters of a string cannot be assigned to. The tree walker only
+    // allows it when the target of the assignment is itself a variable, which
+    // an index never is, so it is left out here too.
+    @SuppressWarnings("unchecked")
+    private Stmt arrayAssign(
+        NodeTerm.ArrayAccess term, AssignOp op, Expr value
+    ) {
+        final Expr array = term(term.array), index = expr(term.index);
+        return intr -> {
+            final Object parent = array.eval(intr), i = index.eval(intr);
+
+            if (of(i, String.class) && of(parent, Map.class)) {
+                final Map<String, Object> map = (Map<String, Object>) parent;
+                intr.lastResult = calcAssign(intr, op,
+                    map.get((String) i), value.eval(intr));
+                map.put((String) i, intr.lastResult);
+            }
+            else if (of(i, Number.class) && of(parent, List.class)) {
+                final List<Object> list = (List<Object>) parent;
+                final int n = ((Number) i).intValue();
+                intr.lastResult = calcAssign(intr, op,
+                    list.get(n), value.eval(intr));
+                list.set(n, intr.lastResult);
+            }
+            else throw new ScriptException.Type(
+                "Invalid array access: %s (%s)", term.index, javaType(i)
+            );
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private Stmt propAssign(
+        NodeTerm.PropAccess term, AssignOp op, Expr value
+    ) {
+        final Expr object = term(term.object);
+        final String prop = term.prop;
+        return intr -> {
+            final Object parent = object.eval(intr);
+            if (!of(parent, Map.class)) throw new ScriptException.Type(
+                "Invalid map access: %s (%s)", term.object, javaType(parent)
+            );
+
+            final Map<String, Object> map = (Map<String, Object>) parent;
+            intr.lastResult = calcAssign(intr, op,
+                map.get(prop), value.eval(intr));
+            map.put(prop, intr.lastResult);
+        };
+    }
+
+    private Stmt declare(NodeStmt.Declare decl) {
+        final Expr value = expr(decl.expr);
+        final int slot = decl.slot;
+        final String name = decl.var;
+        return intr -> {
+            final Object result = value.eval(intr);
+            intr.defineVar(slot, name, result);
+            intr.lastResult = result;
+        };
+    }
+
+    private Stmt ifStmt(NodeStmt.If stmt) {
+        final Expr cond = expr(stmt.expr);
+        final Stmt succ = scope(stmt.succ);
+        if (stmt.fail == null) return intr -> {
+            if ((boolean) castValue(intr, "boolean", cond.eval(intr)))
+                succ.run(intr);
+        };
+
+        final Stmt fail = scope(stmt.fail);
+        return intr -> {
+            if ((boolean) castValue(intr, "boolean", cond.eval(intr)))
+                succ.run(intr);
+            else
+                fail.run(intr);
+        };
+    }
+
+    private Stmt whileLoop(NodeStmt.While loop) {
+        final Expr cond = expr(loop.expr);
+        final Stmt body = scope(loop.scope);
+        return intr -> {
+            while ((Boolean) cond.eval(intr)) {
+                body.run(intr);
+                if (intr.jump == null) continue;
+                if (intr.jump == Interpreter.JumpOp.RETURN) break;
+                else if (intr.jump == Interpreter.JumpOp.CONTINUE)
+                    intr.jump = null;
+                else if (intr.jump == Interpreter.JumpOp.BREAK) {
+                    intr.jump = null; break;
+                }
+            }
+        };
+    }
+
+    private Stmt forLoop(NodeStmt.For loop) {
+        final String[] locals = loop.locals;
+        final Stmt init = loop.init == null ? intr -> {} : stmt(loop.init);
+        final Stmt steps = forSteps(loop);
+        return intr -> {
+            intr.enterScope(locals);
+            init.run(intr);
+            steps.run(intr);
+            intr.exitScope();
+        };
+    }
+
+    // A for loop from its condition on, inside its scope.
+    private Stmt forSteps(NodeStmt.For loop) {
+        final Stmt inc = loop.inc == null ? intr -> {} : stmt(loop.inc);
+        final Expr cond = expr(loop.cond);
+        final Stmt body = scope(loop.scope);
+        return intr -> {
+            while ((Boolean) cond.eval(intr)) {
+                body.run(intr);
+
+                if (intr.jump == Interpreter.JumpOp.RETURN) break;
+                else if (intr.jump == Interpreter.JumpOp.CONTINUE)
+                    intr.jump = null;
+                else if (intr.jump == Interpreter.JumpOp.BREAK) {
+                    intr.jump = null; break;
+                }
+
+                inc.run(intr);
+            }
+        };
+    }
+
+    private Stmt forEach(NodeStmt.ForEach loop) {
+        final Expr list = term(loop.list);
+        final String[] locals = loop.locals;
+        final String itr = loop.itr;
+        final int slot = loop.slot;
+        final Resume steps = forEachSteps(loop);
+        return intr -> {
+            final Iterator<?> iterator = intr.iterate(list.eval(intr));
+            intr.enterScope(locals);
+            intr.defineVar(slot, itr, null);
+            steps.run(intr, iterator);
+            intr.exitScope();
+        };
+    }
+
+    private Resume forEachSteps(NodeStmt.ForEach loop) {
+        final String itr = loop.itr;
+        final int slot = loop.slot;
+        final Stmt body = scope(loop.scope);
+        return (intr, iterator) -> {
+            while (iterator.hasNext()) {
+                if (slot < 0) intr.setVar(itr, iterator.next());
+                else intr.scopes[intr.top].slots[slot] = iterator.next();
+                body.run(intr);
+
+                if (intr.jump == null) continue;
+                if (intr.jump == Interpreter.JumpOp.RETURN) break;
+                else if (intr.jump == Interpreter.JumpOp.CONTINUE)
+                    intr.jump = null;
+                else if (intr.jump == Interpreter.JumpOp.BREAK) {
+                    intr.jump = null; break;
+                }
+            }
+        };
+    }
+
+    private Stmt function(NodeStmt.Function def) {
+        final NodeExpr.Lambda lambda = def.lambda;
+        final Interpreter.Body body = compile(lambda);
+        final int slot = def.slot;
+        final String name = def.name;
+        return intr -> {
+            final Capture function = intr.closure(lambda, body);
+            intr.defineVar(slot, name, function);
+            intr.lastResult = function;
+        };
+    }
+
+    private Stmt tryCatch(NodeStmt.TryCatch block) {
+        final Stmt _try = scope(block._try);
+        final Stmt _catch = block._catch == null ? null : scope(block._catch);
+        final Stmt _finally = block._finally == null ? null :
+            scope(block._finally);
+        final String[] locals = block.locals;
+        final String err = block.err;
+        final int slot = block.slot;
+        return intr -> {
+            final int scopeCount = intr.top;
+            try {
+                _try.run(intr);
+            }
+            catch (Exception e) {
+
+                // Close all unclosed scopes in the case of an exception catch
+                while (intr.top > scopeCount) intr.exitScope();
+
+                if (_catch == null) return;
+                intr.enterScope(locals);
+                if (err != null) intr.defineVar(slot, err, e);
+                _catch.run(intr);
+                intr.exitScope();
+            }
+            finally {
+                if (_finally != null) _finally.run(intr);
+            }
+        };
+    }
+
+    // MARK: Expressions
+    // Errors raised in an expression get its line on their way out, as in
+    // the tree walker. A missing expression is null.
+    private Expr expr(NodeExpr node) {
+        if (node == null) return intr -> null;
+
+        final int line = node.line;
+        final Expr expr;
+        if (node instanceof NodeExpr.Binary) {
+            final NodeExpr.Binary binary = (NodeExpr.Binary) node;
+            expr = binary(binary, term(binary.lhs), term(binary.rhs));
+        }
+        else if (node instanceof NodeExpr.Lambda) {
+            final NodeExpr.Lambda lambda = (NodeExpr.Lambda) node;
+            final Interpreter.Body body = compile(lambda);
+            expr = intr -> intr.closure(lambda, body);
+        }
+        else expr = term(((NodeExpr.Term) node).val);
+
+        return intr -> {
+            try { return expr.eval(intr); }
+            catch (ScriptException e) { throw intr.at(e, line); }
+        };
+    }
+
+    // The common operators go straight to their fast paths, and the rest
+    // specialise on their operands as in the tree walker.
+    private static Expr binary(NodeExpr.Binary node, Expr lhs, Expr rhs) {
+        switch (node.op) {
+            case And: return intr -> {
+                final Object l = lhs.eval(intr);
+                return (Boolean) castValue(intr, "boolean", l) ?
+                    rhs.eval(intr) : l;
+            };
+            case Or: return intr -> {
+                final Object l = lhs.eval(intr);
+                return !(Boolean) castValue(intr, "boolean", l) ?
+                    rhs.eval(intr) : l;
+            };
+            case Add: return intr -> add(intr, lhs.eval(intr), rhs.eval(intr));
+            case Subtract: return intr ->
+                subtract(intr, lhs.eval(intr), rhs.eval(intr));
+            case Multiply: return intr ->
+                multiply(intr, lhs.eval(intr), rhs.eval(intr));
+            case Less: return intr ->
+                less(intr, lhs.eval(intr), rhs.eval(intr));
+            case LessEqual: return intr ->
+                lessEqual(intr, lhs.eval(intr), rhs.eval(intr));
+            case Greater: return intr ->
+                greater(intr, lhs.eval(intr), rhs.eval(intr));
+            case GreaterEqual: return intr ->
+                greaterEqual(intr, lhs.eval(intr), rhs.eval(intr));
+            case Equal: return intr ->
+                equal(intr, lhs.eval(intr), rhs.eval(intr));
+            default: return intr -> {
+                final Object l = lhs.eval(intr);
+                return Calculations.binary(intr, node, l, rhs.eval(intr));
+            };
+        }
+    }
+
+    // MARK: Terms
+    private Expr term(NodeTerm node) {
+        if (node == null) return intr -> null;
+
+        if (node instanceof NodeTerm.Literal) {
+            final Object value = ((NodeTerm.Literal<?>) node).lit;
+            return intr -> value;
+        }
+        if (node instanceof NodeTerm.Variable)
+            return variable((NodeTerm.Variable) node);
+        if (node instanceof NodeTerm.Expr)
+            return expr(((NodeTerm.Expr) node).expr);
+        if (node instanceof NodeTerm.PropAccess) {
+            final Expr object = term(((NodeTerm.PropAccess) node).object);
+            final String prop = ((NodeTerm.PropAccess) node).prop;
+            return intr -> intr.accessProp(object.eval(intr), prop);
+        }
+        if (node instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess access = (NodeTerm.ArrayAccess) node;
+            final Expr array = term(access.array), index = expr(access.index);
+            return intr -> {
+                final Object object = array.eval(intr);
+                return intr.accessIndex(access, object, index.eval(intr));
+            };
+        }
+        if (node instanceof NodeTerm.Call) return call((NodeTerm.Call) node);
+        if (node instanceof NodeTerm.UnaryExpr) {
+            final NodeTerm.UnaryExpr unary = (NodeTerm.UnaryExpr) node;
+            final Expr value = term(unary.val);
+            return intr -> unary(intr, unary, value.eval(intr));
+        }
+        if (node instanceof NodeTerm.Cast) {
+            final String type = ((NodeTerm.Cast) node).type.type;
+            final Expr value = term(((NodeTerm.Cast) node).object);
+            return intr -> castValue(intr, type, value.eval(intr));
+        }
+        if (node instanceof NodeTerm.Hoisted) {
+            final NodeTerm.Hoisted hoisted = (NodeTerm.Hoisted) node;
+            return intr -> intr.hoisted(hoisted);
+        }
+        if (node instanceof NodeTerm.Inline) {
+            final NodeTerm.Inline inline = (NodeTerm.Inline) node;
+            final NodeTerm.Hoisted[] params = inline.params;
+            final Expr[] args = new Expr[params.length];
+            for (int i = 0; i < params.length; i += 1)
+                args[i] = expr(params[i].expr);
+            final Expr body = expr(inline.body);
+            return intr -> {
+                for (int i = 0; i < params.length; i += 1)
+                    intr.argument(params[i], args[i].eval(intr));
+                return intr.inlined(body.eval(intr));
+            };
+        }
+        if (node instanceof NodeTerm.ArrayLiteral) {
+            final Expr[] items = exprs(((NodeTerm.ArrayLiteral) node).items);
+            return intr -> {
+                final List<Object> list = new ArrayList<>(items.length);
+                for (Expr item : items) list.add(item.eval(intr));
+                return list;
+            };
+        }
+        if (node instanceof NodeTerm.MapLiteral) {
+            final List<NodeMapEntry> entries =
+                ((NodeTerm.MapLiteral) node).items;
+            final String[] keys = new String[entries.size()];
+            final Expr[] values = new Expr[entries.size()];
+            for (int i = 0; i < keys.length; i += 1) {
+                keys[i] = entries.get(i).key;
+                values[i] = expr(entries.get(i).value);
+            }
+            return intr -> {
+                final Map<String, Object> map = new HashMap<>(keys.length);
+                for (int i = 0; i < keys.length; i += 1)
+                    map.put(keys[i], values[i].eval(intr));
+                return map;
+            };
+        }
+
+        throw new IllegalArgumentException("Unknown term: " + node);
+    }
+
+    private Expr[] exprs(List<NodeExpr> nodes) {
+        final Expr[] exprs = new Expr[nodes.size()];
+        for (int i = 0; i < exprs.length; i += 1) exprs[i] = expr(nodes.get(i));
+        return exprs;
+    }
+
+    private Expr variable(NodeTerm.Variable var) {
+        final String name = var.var;
+        if (var.slot < 0) return intr -> intr.getVar(name);
+
+        final int depth = var.depth, slot = var.slot;
+        return intr -> {
+            final Object value = intr.scopes[intr.top - depth].slots[slot];
+            if (value == Frame.UNSET) throw new ScriptException.Variable(
+                "Variable %s is undefined", name
+            );
+            return value;
+        };
+    }
+
+    // Calls of up to four arguments pass them without an array, see
+    // Interpreter.call.
+    private Expr call(NodeTerm.Call call) {
+        final Expr f = term(call.f);
+        final Expr[] args = exprs(call.args);
+        final Host.Site site = call.site;
+        switch (args.length) {
+            case 0: return intr -> intr.call(site, f.eval(intr));
+            case 1: {
+                final Expr a = args[0];
+                return intr -> intr.call(site, f.eval(intr), a.eval(intr));
+            }
+            case 2: {
+                final Expr a = args[0], b = args[1];
+                return intr -> intr.call(
+                    site, f.eval(intr), a.eval(intr), b.eval(intr)
+                );
+            }
+            case 3: {
+                final Expr a = args[0], b = args[1], c = args[2];
+                return intr -> intr.call(site, 
+                    f.eval(intr), a.eval(intr), b.eval(intr), c.eval(intr)
+                );
+            }
+            case 4: {
+                final Expr a = args[0], b = args[1], c = args[2], d = args[3];
+                return intr -> intr.call(site, f.eval(intr),
+                    a.eval(intr), b.eval(intr), c.eval(intr), d.eval(intr)
+                );
+            }
+        }
+        return intr -> {
+            final Object function = f.eval(intr);
+            final Object[] values = new Object[args.length];
+            for (int i = 0; i < args.length; i += 1)
+                values[i] = args[i].eval(intr);
+            return intr.call(site, function, values);
+        };
+    }
+}
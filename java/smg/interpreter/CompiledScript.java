@@ -0,0 +1,113 @@
+package smg.interpreter;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Compiled Script
+ *
+ * A parsed program ready to be run. A compiled script holds no variables,
+ * scopes or results, so it can be shared freely between threads. Each run
+ * gets its own Interpreter, which carries the variables, scopes and results
+ * of that run only. Creating an Interpreter from a compiled script is cheap
+ * as nothing is parsed again.
+ *
+ * The program itself is never restructured once compiled, but some of its
+ * nodes keep profiles shared by every run: loops and functions count their
+ * iterations and calls for the tiered engine and keep what it compiled for
+ * them, operators keep the kind of operands they have seen, and calls keep
+ * the host method they last resolved. These are written without locking.
+ * A race can lose a count, compile a body twice, or leave a guess that no
+ * longer fits, and each of these is checked or harmless, so it only costs
+ * time, never a wrong result.
+ *
+ * Work that only depends on the code, like optimising the program and
+ * resolving variables to frame slots, is done here once per script rather
+ * than once per run.
+ *
+ *   final CompiledScript script = CompiledScript.compile(code);
+ *   // On any thread, any number of times:
+ *   script.newInterpreter(vars).run();
+ */
+public final class CompiledScript {
+
+    final NodeProgram program;
+
+    // Compiled on first use by an Interpreter running the matching engine.
+    private volatile Bytecode.Chunk bytecode = null;
+    private volatile Interpreter.Body closures = null;
+    private volatile Interpreter.Body jit = null;
+
+    private CompiledScript(NodeProgram program, Set<String> pure) {
+        if (program == null) throw new IllegalArgumentException(
+            "Supplying null for program is not allowed"
+        );
+        this.program = Resolver.resolve(Optimiser.optimise(program, pure));
+    }
+
+    public static CompiledScript compile(CharSequence code) {
+        return compile(code, Set.of());
+    }
+
+    // Host functions may be named as pure, so that the same call with the
+    // same arguments can be made once and its result used again. A host
+    // function given under one of these names must always give the same
+    // result for the same arguments, and change nothing, or scripts calling
+    // it may behave differently once compiled.
+    public static CompiledScript compile(CharSequence code, Set<String> pure) {
+        return new CompiledScript(Parser.parse(code), pure);
+    }
+
+    public static CompiledScript compile(Path path) throws IOException {
+        return new CompiledScript(Parser.parseFile(path), Set.of());
+    }
+
+    // Wrap a program that has already been parsed, for example one read back
+    // by the Serialiser. The program must not be changed afterwards.
+    public static CompiledScript of(NodeProgram program) {
+        return of(program, Set.of());
+    }
+
+    public static CompiledScript of(NodeProgram program, Set<String> pure) {
+        return new CompiledScript(program, pure);
+    }
+
+    Bytecode.Chunk bytecode() {
+        Bytecode.Chunk chunk = bytecode;
+        if (chunk == null) bytecode = chunk = Bytecode.compile(program);
+        return chunk;
+    }
+
+    Interpreter.Body closures() {
+        Interpreter.Body body = closures;
+        if (body == null) closures = body = Closures.compile(program, false);
+        return body;
+    }
+
+    // The classes generated for functions belong to this script, and are
+    // unloaded once it is no longer reachable.
+    Interpreter.Body jit() {
+        Interpreter.Body body = jit;
+        if (body == null) jit = body = Closures.compile(program, true);
+        return body;
+    }
+
+    // Per-execution contexts
+    public Interpreter newInterpreter() {
+        return new Interpreter(this, new HashMap<>());
+    }
+
+    public Interpreter newInterpreter(Map<String, Object> vars) {
+        return new Interpreter(this, vars);
+    }
+
+    // Run the script once in a fresh context and return its last result.
+    public Object run(Map<String, Object> vars) {
+        return newInterpreter(vars).run();
+    }
+
+    public String toString() { return String.valueOf(program); }
+}
@@ -0,0 +1,139 @@
+package smg.interpreter;
+
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Frame
+ *
+ * The variables of one scope during execution. Variables the Resolver could
+ * place at compile time live in numbered slots and are read and written by
+ * index. Anything else, such as globals, host variables, captured closures and
+ * variables defined by name at run time, lives in a map that is only created
+ * when it is first needed.
+ *
+ * A frame is also a Map of every variable it holds, so code which looks up
+ * variables by name does not need to know the difference. Iterating over a
+ * frame gives a snapshot of its variables at that moment.
+ *
+ * Frames are reused. When a scope is left its frame is released, which clears
+ * it but keeps its slot array, and the next scope entered at the same depth
+ * is reset into it. A frame must not be held on to after its scope is left.
+ */
+final class Frame extends AbstractMap<String, Object> {
+
+    // Marks a slot whose variable has not been declared yet.
+    static final Object UNSET = new Object();
+
+    private static final String[] NONE = {};
+    private static final Object[] EMPTY = {};
+
+    // Only the first names.length slots are in use. The slot array may be
+    // longer if the frame has held a bigger scope before.
+    String[] names = NONE;
+    Object[] slots = EMPTY;
+    Map<String, Object> vars;
+
+    // Whether this is the first frame of a function being called.
+    boolean function = false;
+
+    Frame() {}
+
+    // A frame of named variables only, backed by the given map.
+    Frame(Map<String, Object> vars) { this.vars = vars; }
+
+    // Make this the frame of a scope with the given slot names. Released 
+    // frames have every slot unset already, so only new slots need filling.
+    Frame reset(String[] locals) {
+        names = locals == null ? NONE : locals;
+        if (slots.length < names.length) {
+            slots = new Object[names.length];
+            Arrays.fill(slots, UNSET);
+        }
+        return this;
+    }
+
+    Frame reset(Map<String, Object> vars) {
+        names = NONE;
+        this.vars = vars;
+        return this;
+    }
+
+    // Drop every variable so that nothing is kept alive by a pooled frame.
+    void release() {
+        unset();
+        vars = null;
+        function = false;
+    }
+
+    // Drop the slots only, keeping variables held by name.
+    void unset() {
+        Arrays.fill(slots, 0, names.length, UNSET);
+        names = NONE;
+    }
+
+    // Slot of a declared variable, or -1 if there is none by that name.
+    private int slotOf(Object name) {
+        for (int i = 0; i < names.length; i += 1)
+            if (names[i].equals(name)) return slots[i] == UNSET ? -1 : i;
+        return -1;
+    }
+
+    // Slots the Optimiser keeps values in are named so that no script could
+    // use them, and are left out of the variables a frame is said to hold.
+    private static boolean hidden(String name) { return name.startsWith("$"); }
+
+    private int nameOf(Object name) {
+        for (int i = 0; i < names.length; i += 1)
+            if (names[i].equals(name)) return i;
+        return -1;
+    }
+
+    public boolean containsKey(Object name) {
+        return slotOf(name) >= 0 || vars != null && vars.containsKey(name);
+    }
+
+    public Object get(Object name) {
+        final int slot = slotOf(name);
+        if (slot >= 0) return slots[slot];
+        return vars == null ? null : vars.get(name);
+    }
+
+    // Variables named after a slot always go into their slot, so a name is
+    // never held twice in the same frame.
+    public Object put(String name, Object value) {
+        final int slot = nameOf(name);
+        if (slot >= 0) {
+            final Object old = slots[slot];
+            slots[slot] = value;
+            return old == UNSET ? null : old;
+        }
+
+        if (vars == null) vars = new HashMap<>();
+        return vars.put(name, value);
+    }
+
+    public Object remove(Object name) {
+        final int slot = slotOf(name);
+        if (slot >= 0) {
+            final Object old = slots[slot];
+            slots[slot] = UNSET;
+            return old;
+        }
+        return vars == null ? null : vars.remove(name);
+    }
+
+    public Set<Map.Entry<String, Object>> entrySet() {
+        final Map<String, Object> all = new LinkedHashMap<>();
+        for (int i = 0; i < names.length; i += 1)
+            if (slots[i] != UNSET && !hidden(names[i]))
+                all.put(names[i], slots[i]);
+        if (vars != null) all.putAll(vars);
+        return Collections.unmodifiableMap(all).entrySet();
+    }
+}
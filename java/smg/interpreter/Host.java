@@ -0,0 +1,275 @@
+package smg.interpreter;
+
+import smg.interpreter.Capture.F;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Executable;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Host
+ *
+ * A method of an integrated Java class, callable from scripts. Every public
+ * method of the class with the same name is a candidate, and "new" stands for
+ * its constructors. A call whose first argument is an instance of the class
+ * is an instance call on it if any instance method takes the rest of the
+ * arguments, and a static call with all of them otherwise.
+ *
+ * Overloads are resolved by the classes of the arguments, as java.beans did
+ * before: an argument fits a parameter of its class or a superclass, a
+ * primitive parameter only takes its own wrapper, and null fits anything but
+ * a primitive. Of the methods that fit, the most specific wins. Variable
+ * arity methods are only tried when no method fits the arguments as they are.
+ *
+ * Resolving is slow, so each method keeps what it resolved per tuple of
+ * argument classes. On top of that every call in a script has a Site of its
+ * own, which keeps what that call resolved last. It is checked first without
+ * allocating, which is all a call site in a loop ever needs, and call sites
+ * passing different classes to the same method do not displace each other.
+ * What is resolved is a method handle taking the arguments as they are
+ * passed, so a call is a single invokeExact. Methods are made once per class
+ * and shared by every Interpreter that integrates it, along with what they
+ * have resolved.
+ */
+final class Host implements F {
+
+    private static final MethodHandles.Lookup LOOKUP =
+        MethodHandles.publicLookup();
+    private static final MethodType SPREAD =
+        MethodType.methodType(Object.class, Object[].class);
+
+    private static final ClassValue<Map<String, Host>> METHODS =
+        new ClassValue<>() {
+            protected Map<String, Host> computeValue(Class<?> type) {
+                final Map<String, Host> methods = new HashMap<>();
+                for (Method method : type.getMethods()) methods.computeIfAbsent(
+                    method.getName(), name -> new Host(type, name)
+                );
+                methods.put("new", new Host(type, "new"));
+                return Collections.unmodifiableMap(methods);
+            }
+        };
+
+    // Every method of a class by name, with "new" for its constructors.
+    static Map<String, Host> methods(Class<?> type) {
+        return METHODS.get(type);
+    }
+
+    private final Class<?> type;
+    private final String name;
+    private final List<Executable> instance = new ArrayList<>(),
+        statics = new ArrayList<>();
+
+    // Every tuple of argument classes resolved so far.
+    private final Map<Signature, Resolved> resolved = new ConcurrentHashMap<>();
+
+    private static final class Resolved {
+        final Host host;
+        final Class<?>[] classes;
+        final MethodHandle handle;
+        Resolved(Host m, Class<?>[] c, MethodHandle h) {
+            host = m; classes = c; handle = h;
+        }
+    }
+
+    // What a call site resolved last, kept on its Call node. A compiled script
+    // is shared between threads, and so is the site. Resolved only has final
+    // fields, so a thread reading the field sees either null or a whole one.
+    static final class Site {
+        private Resolved last = null;
+    }
+
+    private Host(Class<?> type, String name) {
+        this.type = type;
+        this.name = name;
+        if (name.equals("new")) {
+            statics.addAll(Arrays.asList(type.getConstructors()));
+            return;
+        }
+        for (Method method : type.getMethods()) {
+            if (!method.getName().equals(name)) continue;
+            if (Modifier.isStatic(method.getModifiers())) statics.add(method);
+            else instance.add(method);
+        }
+    }
+
+    // A call with no site, for instance from host code given the method.
+    public Object apply(Object... args) {
+        return invoke(resolve(args), args);
+    }
+
+    Object apply(Site site, Object[] args) {
+        Resolved target = site.last;
+        if (target == null || target.host != this || 
+            !matches(target.classes, args)) {
+            site.last = target = resolve(args);
+        }
+        return invoke(target, args);
+    }
+
+    private Object invoke(Resolved target, Object[] args) {
+        try { return (Object) target.handle.invokeExact(args); }
+        catch (Error e) { throw e; }
+        // Anything else the host code throws reaches the script as an error
+        // it can catch, with the message of what was thrown.
+        catch (Throwable e) {
+            throw new ScriptException.Call(
+                "Invocation error: %s\nMessage: %s", name, e.getMessage()
+            );
+        }
+    }
+
+    private static boolean matches(Class<?>[] classes, Object[] args) {
+        if (classes.length != args.length) return false;
+        for (int i = 0; i < args.length; i += 1) {
+            final Class<?> c = args[i] == null ? null : args[i].getClass();
+            if (c != classes[i]) return false;
+        }
+        return true;
+    }
+
+    // MARK: Resolution
+    private Resolved resolve(Object[] args) {
+        final Class<?>[] classes = new Class<?>[args.length];
+        for (int i = 0; i < args.length; i += 1)
+            classes[i] = args[i] == null ? null : args[i].getClass();
+        return resolved.computeIfAbsent(
+            new Signature(classes), s -> resolve(s.classes)
+        );
+    }
+
+    private Resolved resolve(Class<?>[] classes) {
+        MethodHandle handle = null;
+        if (classes.length > 0 && classes[0] != null &&
+            type.isAssignableFrom(classes[0])) {
+            handle = resolve(instance, classes, 1);
+        }
+        if (handle == null) handle = resolve(statics, classes, 0);
+
+        if (handle == null) throw new ScriptException.Call(
+            "Invocation error: %s\nMessage: No method %s.%s takes %s",
+            name, type.getSimpleName(), name, Arrays.toString(classes)
+        );
+        return new Resolved(this, classes, handle);
+    }
+
+    // Find the most specific of the candidates that takes the classes from
+    // the given one onwards, and adapt it to take every argument as an array.
+    private MethodHandle resolve(
+        List<Executable> candidates, Class<?>[] classes, int from
+    ) {
+        final int count = classes.length - from;
+        for (boolean varargs : new boolean[] {false, true}) {
+            Executable best = null;
+            for (Executable e : candidates) {
+                if (!fits(e, classes, from, varargs)) continue;
+                if (best == null || specific(e, best, count, varargs))
+                    best = e;
+            }
+            if (best != null)
+                return adapt(best, classes.length, count, varargs);
+        }
+        return null;
+    }
+
+    private static boolean fits(
+        Executable e, Class<?>[] classes, int from, boolean varargs
+    ) {
+        final Class<?>[] params = e.getParameterTypes();
+        final int count = classes.length - from;
+        if (!varargs) {
+            if (params.length != count) return false;
+            for (int i = 0; i < count; i += 1)
+                if (!fits(params[i], classes[from + i])) return false;
+            return true;
+        }
+
+        if (!e.isVarArgs() || count < params.length - 1) return false;
+        final int fixed = params.length - 1;
+        final Class<?> rest = params[fixed].getComponentType();
+        for (int i = 0; i < count; i += 1) {
+            final Class<?> param = i < fixed ? params[i] : rest;
+            if (!fits(param, classes[from + i])) return false;
+        }
+        return true;
+    }
+
+    private static boolean fits(Class<?> param, Class<?> arg) {
+        if (arg == null) return !param.isPrimitive();
+        return param.isPrimitive() ? wrap(param) == arg :
+            param.isAssignableFrom(arg);
+    }
+
+    // Whether every parameter of a fits the same parameter of b.
+    private static boolean specific(
+        Executable a, Executable b, int count, boolean varargs
+    ) {
+        final Class<?>[] pa = a.getParameterTypes(), pb = b.getParameterTypes();
+        for (int i = 0; i < count; i += 1) {
+            final Class<?> ta = wrap(param(pa, i, varargs)),
+                tb = wrap(param(pb, i, varargs));
+            if (!tb.isAssignableFrom(ta)) return false;
+        }
+        return true;
+    }
+
+    private static Class<?> param(Class<?>[] params, int i, boolean varargs) {
+        return !varargs || i < params.length - 1 ? params[i] :
+            params[params.length - 1].getComponentType();
+    }
+
+    private static Class<?> wrap(Class<?> c) {
+        return MethodType.methodType(c).wrap().returnType();
+    }
+
+    private static MethodHandle adapt(
+        Executable e, int arity, int count, boolean varargs
+    ) {
+        try {
+            MethodHandle handle = e instanceof Method ?
+                LOOKUP.unreflect((Method) e) :
+                LOOKUP.unreflectConstructor((Constructor<?>) e);
+            handle = handle.asFixedArity();
+            if (varargs) {
+                final Class<?>[] params = e.getParameterTypes();
+                handle = handle.asCollector(
+                    params[params.length - 1], count - params.length + 1
+                );
+            }
+            return handle
+                .asType(MethodType.genericMethodType(arity))
+                .asSpreader(Object[].class, arity)
+                .asType(SPREAD);
+        }
+        catch (IllegalAccessException x) {
+            throw new ScriptException.Call(
+                "Invocation error: %s\nMessage: %s", e.getName(), x.getMessage()
+            );
+        }
+    }
+
+    // The classes of a call's arguments, as a key.
+    private static final class Signature {
+        final Class<?>[] classes;
+        private final int hash;
+
+        Signature(Class<?>[] c) { classes = c; hash = Arrays.hashCode(c); }
+
+        public int hashCode() { return hash; }
+        public boolean equals(Object o) {
+            return o instanceof Signature &&
+                Arrays.equals(classes, ((Signature) o).classes);
+        }
+    }
+}
@@ -5,20 +5,22 @@ import static smg.interpreter.Calculations.*;
 
 import smg.interpreter.Capture.F;
 import smg.interpreter.Capture.F0;
+import smg.interpreter.Capture.Fn0;
+import smg.interpreter.Capture.Fn1;
+import smg.interpreter.Capture.Fn1F;
+import smg.interpreter.Capture.Fn2;
+import smg.interpreter.Capture.Fn3;
+import smg.interpreter.Capture.Fn4;
 
-import java.beans.Expression;
 import java.math.BigDecimal;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 
 public class Interpreter {
@@ -30,23 +32,56 @@ public class Interpreter {
     // any one time during execution namely the global scope. Different 
     // variables can have the same name as long as they're stored in different
     // scopes. This is what is known in language design as 'shadowing'.
-    private final LinkedList<Map<String, Object>> scopes;
-
-    // The AST representation of the code we have to execute.
+    // Scopes are kept as a stack of frames, the innermost one on top. Frames
+    // above the top are left over from scopes that have been exited, and are
+    // reused by the next scopes entered instead of allocating new ones.
+    Frame[] scopes = new Frame[16];
+    int top = 0;
+    private long framesAllocated = 0, framesReused = 0;
+
+    // Thresholds of the tiered engine, and the promotions this run made.
+    private int callThreshold = 1000, loopThreshold = 10000;
+    private long functionsPromoted = 0, loopsPromoted = 0, loopsReplaced = 0;
+
+    // The compiled script being executed and its AST representation. These 
+    // are shared with every other Interpreter running the same script. Their
+    // shape never changes, but a few fields of the nodes are written as any
+    // run goes: the tiered engine's counters and compiled bodies on loops and
+    // functions, the operand kinds seen by operators, and the host method a
+    // call last resolved. Runs on other threads may race on these. A lost
+    // count only delays a promotion, a body compiled twice is the same body,
+    // and a stale operand kind or host method is checked before it is used,
+    // so the races are benign. Everything else here is state of this run only.
+    private final CompiledScript script;
     private final NodeProgram program;
 
     // The last value evaluated by an expression over the course of execution.
-    private Object lastResult;
+    Object lastResult;
 
     // A flag to store the current jump instruction. Set to null when consumed.
-    private JumpOp jump = null;
+    JumpOp jump = null;
 
     // BigDecimal mode makes sure any values that go into or out of externally
     // defined functions are represented in BigDecimal format. This is mainly 
     // for convenience when integrated with Mendix systems.
     private boolean bigDecimalMode = false;
 
-    // Tracks the current line number of execution.
+    // The engine that runs the program. The tree walker runs the AST as it 
+    // is, the bytecode engine compiles it first and runs it on a stack 
+    // machine, and the closure engine compiles every node into a Java lambda.
+    // The JIT engine is the closure engine with function bodies compiled
+    // into JVM classes where it can. The tiered engine walks the tree until
+    // a function or loop turns out to be hot, and compiles just that as the
+    // JIT engine would. The stackless engine is the bytecode engine with calls
+    // between compiled functions made on a stack of its own instead of the
+    // JVM's, so recursion is only limited by memory. All of them give the
+    // same results.
+    public enum Engine { TREE, BYTECODE, CLOSURE, JIT, TIERED, STACKLESS }
+    private Engine engine = Engine.TREE;
+    private VM vm = null;
+
+    // The line of the last error raised. Lines are only worked out for
+    // errors, see at().
     private int line = 0;
 
     // When interpretations are chained together, line numbers tend to reset 
@@ -57,8 +92,31 @@ public class Interpreter {
     // Contstructors
     public Interpreter(String code) { this(code, new HashMap<>()); }
     public Interpreter(String code, Map<String, Object> vars) {
-        program = new Parser(code).parse();
-        scopes = new LinkedList<>(List.of(new HashMap<>(vars)));
+        this(CompiledScript.compile(code), vars);
+    }
+
+    // Programs can be taken from a cache instead, so the same code is only 
+    // parsed once no matter how many interpreters run it.
+    public Interpreter(String code, ProgramCache cache) {
+        this(code, new HashMap<>(), cache);
+    }
+    public Interpreter(String code, Map<String, Object> vars, ProgramCache cache) 
+    {
+        this(cache.get(code), vars);
+    }
+
+    // Or they can come already parsed, for example from a Serialiser archive.
+    public Interpreter(NodeProgram program) { this(program, new HashMap<>()); }
+    public Interpreter(NodeProgram program, Map<String, Object> vars) {
+        this(CompiledScript.of(program), vars);
+    }
+
+    // Or from a compiled script. This is the way to run one script on many 
+    // threads at once, each with an Interpreter of its own.
+    public Interpreter(CompiledScript script, Map<String, Object> vars) {
+        this.script = script;
+        this.program = script.program;
+        scopes[0] = new Frame(new HashMap<>(vars));
     }
     public static Interpreter from(String code) {
         return new Interpreter(code);
@@ -71,7 +129,9 @@ public class Interpreter {
      */
     public void setVar(String key, Object value) {
         findVar(key)
-            .orElseThrow(() -> error("Undefined variable '%s'", key))
+            .orElseThrow(() -> new ScriptException.Variable(
+                "Undefined variable '%s'", key
+            ))
             .put(key, value);
     }
     
@@ -81,70 +141,52 @@ public class Interpreter {
      * lives in an earlier scope, this is what is known as 'shadowing'.
      */
     public void defineVar(String key, Object value) {
-        if (scopes.getLast().containsKey(key)) 
-            throw error("Redefining an existing variable");
-        scopes.getLast().put(key, value);
+        if (scopes[top].containsKey(key)) throw new ScriptException.Variable(
+            "Redefining an existing variable"
+        );
+        scopes[top].put(key, value);
     }
 
     public void setOrDefine(String key, Object value) {
-        findVar(key).orElse(scopes.getLast()).put(key, value);
+        findVar(key).orElse(scopes[top]).put(key, value);
     }
 
     @SuppressWarnings("unchecked")
     public <T> T getVar(String key) {
         return (T) findVar(key)
-            .orElseThrow(() -> error("Variable %s is undefined", key)).get(key);
+            .orElseThrow(() -> new ScriptException.Variable(
+                "Variable %s is undefined", key
+            )).get(key);
     }
 
-    private static Set<String> getMethods(Class<?> c) {
-        final Set<String> methods = new HashSet<>(
-            Arrays.stream(c.getMethods())
-            .map(m -> m.getName())
-            .collect(Collectors.toList())
+    // Variables the Resolver has given a slot are reached directly by their
+    // address. Any others are looked up by name.
+    private Object getVar(NodeTerm.Variable var) {
+        if (var.slot < 0) return getVar(var.var);
+        final Object value = scopes[top - var.depth].slots[var.slot];
+        if (value == Frame.UNSET) throw new ScriptException.Variable(
+            "Variable %s is undefined", var.var
         );
-        methods.add("new"); // For constructors!
-        return methods;
+        return value;
     }
 
-    private F integrateMethod(String name, Class<?> c) {
-        return a -> {
-        try {
-            // If there are no arguments or the first arg is null or the method
-            // is "new" then it is a static call.
-            if (a.length == 0 || a[0] == null || name == "new");
-
-            // Otherwise if the first arg class is a subclass of our class we
-            // attempt an instance method call.
-            else if (c.isAssignableFrom(a[0].getClass())) {
-                final Object[] args = Arrays.copyOfRange(a, 1, a.length);
-                try {
-                    return new Expression(a[0], name,args).getValue();
-                }
-
-                catch (Exception e) {
-                    // Otherwise, or if it does not succeed,
-                    // we attempt a static call.
-                }
-            }
-
-            // Static Call.
-            return new Expression(c, name, a).getValue();
-        }
+    void setVar(NodeTerm.Variable var, Object value) {
+        if (var.slot < 0) setVar(var.var, value);
+        else scopes[top - var.depth].slots[var.slot] = value;
+    }
 
-        // Catch-all error handling. Needs more work to be useful.
-        catch (Exception e) { 
-            e.printStackTrace();
-            throw error( "Invocation error: %s\nMessage: %s", 
-            name, e.getMessage()); 
-        }};
+    void defineVar(int slot, String key, Object value) {
+        if (slot < 0) { defineVar(key, value); return; }
+        if (scopes[top].slots[slot] != Frame.UNSET) 
+            throw new ScriptException.Variable(
+                "Redefining an existing variable"
+            );
+        scopes[top].slots[slot] = value;
     }
-    
+
     public void integrateClasses(Class<?>... cs) {
         for (Class<?> c : cs ) {
-            final Map<String, F> fs = new HashMap<>();
-            for (String name : getMethods(c)) 
-                fs.put(name, integrateMethod(name, c));
-
+            final Map<String, F> fs = new HashMap<>(Host.methods(c));
             getGlobals().put(c.getSimpleName(), fs);
         }
     }
@@ -154,34 +196,125 @@ public class Interpreter {
 
     // Find and retrieve a given variable. If not fonud return an empty Optional
     public Optional<Map<String, Object>> findVar(String key) {
-        Iterator<Map<String, Object>> itr = scopes.descendingIterator();
-        while (itr.hasNext()) {
-            final Map<String, Object> scope = itr.next();
-            if (scope.containsKey(key)) return Optional.of(scope);
-        }
+        for (int i = top; i >= 0; i -= 1) 
+            if (scopes[i].containsKey(key)) return Optional.of(scopes[i]);
 
         return Optional.empty();
     }
 
     // Global scope is special and should never be popped off. It is useful to
     // expose it so different instances can share variables and data.
-    public Map<String, Object> getGlobals() { return scopes.getFirst(); }
+    public Map<String, Object> getGlobals() { return scopes[0].vars; }
 
     // Scopes are popped on and off as execution switches between blocks of
-    // statements.
-    private void enterScope() { enterScope(new HashMap<>()); }
-    private void enterScope(Map<String, Object> scope) { scopes.add(scope); }
-    private void exitScope() { scopes.removeLast(); }
+    // statements. Each gets a frame with the slots the Resolver gave it.
+    void enterScope(String[] locals) { nextFrame().reset(locals); }
+    void enterScope(Map<String, Object> vars) {
+        nextFrame().reset(vars);
+    }
+    private Frame nextFrame() {
+        if (++top == scopes.length) scopes = Arrays.copyOf(scopes, top * 2);
+        if (scopes[top] != null) framesReused += 1;
+        else {
+            scopes[top] = new Frame();
+            framesAllocated += 1;
+        }
+        return scopes[top];
+    }
+    void exitScope() { scopes[top--].release(); }
+
+    // Allocation counters for scope frames, over the life of this Interpreter
+    public long framesAllocated() { return framesAllocated; }
+    public long framesReused() { return framesReused; }
+
+    // MARK: Tiers
+    // Calls and back edges are counted in the nodes themselves, so they add
+    // up over every run of the same script, on any thread. The counts are
+    // not synchronised as they only need to be roughly right, and a node that
+    // two runs compile at once is simply compiled twice. Compiled code is
+    // published through volatile fields of the nodes, and each field is read
+    // once, so a thread only ever runs code it has seen fully built.
+    public void setThresholds(int calls, int backEdges) {
+        callThreshold = calls; loopThreshold = backEdges;
+    }
+    public int callThreshold() { return callThreshold; }
+    public int loopThreshold() { return loopThreshold; }
+
+    // Functions and loops this run compiled, and loops it moved into
+    // compiled code while they were running.
+    public long functionsPromoted() { return functionsPromoted; }
+    public long loopsPromoted() { return loopsPromoted; }
+    public long loopsReplaced() { return loopsReplaced; }
+
+    private boolean tiered() { return engine == Engine.TIERED; }
+
+    // The compiled body of a function, once it has been called often enough.
+    private Body hot(NodeExpr.Lambda def) {
+        Body compiled = def.compiled;
+        if (compiled == null) {
+            if (++def.calls < callThreshold) return null;
+            def.compiled = compiled = Closures.function(def);
+            functionsPromoted += 1;
+        }
+        return compiled;
+    }
+
+    // Count a back edge of a loop in the tree walker, and give the compiled
+    // loop to carry on with from here, if it is hot.
+    private Body hot(NodeStmt.While loop) {
+        Body compiled = loop.compiled;
+        if (compiled == null) {
+            if (++loop.backEdges < loopThreshold) return null;
+            loop.compiled = compiled = Closures.loop(loop);
+            loopsPromoted += 1;
+        }
+        loopsReplaced += 1;
+        return compiled;
+    }
+
+    private Body hot(NodeStmt.For loop) {
+        Body compiled = loop.compiled;
+        if (compiled == null) {
+            if (++loop.backEdges < loopThreshold) return null;
+            loop.compiled = compiled = Closures.resume(loop);
+            loopsPromoted += 1;
+        }
+        loopsReplaced += 1;
+        return compiled;
+    }
+
+    private Closures.Resume hot(NodeStmt.ForEach loop) {
+        Closures.Resume compiled = loop.compiled;
+        if (compiled == null) {
+            if (++loop.backEdges < loopThreshold) return null;
+            loop.compiled = compiled = Closures.resume(loop);
+            loopsPromoted += 1;
+        }
+        loopsReplaced += 1;
+        return compiled;
+    }
 
     // Miscellanea
     public void setBigDecimalMode(boolean on) { bigDecimalMode = on; }
     public void setLineOffset(int amount) { lineOffset = amount; }
+    public void setEngine(Engine engine) { this.engine = engine; }
+    public Engine getEngine() { return engine; }
     public Object getLastResult() { return lastResult; }
+    public CompiledScript getScript() { return script; }
     public String toString() { return String.valueOf(program); }
+
+    // The line of the last error raised, for hosts that report it.
     public int lineNumber() { return line + lineOffset; }
-    private String line() { return " (line: " + (line + lineOffset) + ")"; }
-    RuntimeException error(String message, Object... args) {
-        return new RuntimeException(String.format(message + line(), args));
+
+    // Give an error the line of the innermost expression or statement it was
+    // raised in, as it leaves it. Statements with nothing to fail on their
+    // own have no line, and leave it to whatever encloses them.
+    ScriptException at(ScriptException e, int line) {
+        if (e.line() < 0 && line >= 0) {
+            this.line = line;
+            e.at(line + lineOffset);
+        }
+        return e;
     }
     
     // MARK: Run Scope
@@ -191,9 +324,9 @@ public class Interpreter {
 
         // 1. Add some important standard library functions as variables. Notice
         //    that these can be overwritten by users during normal execution.
-        setOrDefine("exists", (F) a -> defined((String) a[0]));
-        setOrDefine("global", (F) a -> getGlobals().put((String) a[0], null));
-        setOrDefine("type", (F) a -> javaType(a[0]));
+        setOrDefine("exists", (Fn1F) a -> defined((String) a));
+        setOrDefine("global", (Fn1F) a -> getGlobals().put((String) a, null));
+        setOrDefine("type", (Fn1F) a -> javaType(a));
 
         // 2. Run the program.
         runProgram();
@@ -209,22 +342,43 @@ public class Interpreter {
             runStmt(stmts.get(i));
     }
 
+    // Expressions shared at the top level are kept in slots of the global
+    // frame, which only last as long as the run.
     private void runProgram() {
         if (program == null) return;
-        runStmts(program.stmts); 
+        scopes[0].reset(program.locals);
+        try {
+            switch (engine) {
+                case BYTECODE:
+                case STACKLESS: script.bytecode().run(this); break;
+                case CLOSURE: script.closures().run(this); break;
+                case JIT: script.jit().run(this); break;
+                default: runStmts(program.stmts);
+            }
+        }
+        finally { scopes[0].unset(); }
     }
 
+    VM vm() { return vm == null ? vm = new VM(this) : vm; }
+
+    // A program or function body compiled by one of the compiling engines.
+    interface Body { void run(Interpreter intr); }
+
     // Scopes nodes run in the same way that programs do, except wrapped in a 
     // scope of their own. Any variables declared in them disappear afterwards.
     private void runScope(NodeScope scope) {  
         if (scope == null) return;
-        enterScope();
+        enterScope(scope.locals);
         runStmts(scope.stmts);
         exitScope();
     }
 
     // MARK: Run Statement
-    private void runStmt(NodeStmt s) { if (s != null) s.host(stmtVisitor); }
+    void runStmt(NodeStmt s) {
+        if (s == null) return;
+        try { s.host(stmtVisitor); }
+        catch (ScriptException e) { throw at(e, s.line()); }
+    }
     private final StmtVisitor stmtVisitor = new StmtVisitor(this);
     class StmtVisitor implements NodeStmt.Visitor {
 
@@ -281,12 +435,12 @@ public class Interpreter {
                 lastResult = slhs.substring(0, i) + String.valueOf(newChar) +
                     (i >= slhs.length() ? "" : slhs.substring(i + 1));
 
-                setVar(((NodeTerm.Variable) a.term).var, lastResult);
+                setVar((NodeTerm.Variable) a.term, lastResult);
             }
 
             // Otherwise, this is not a valid array access assignment.
             else {
-                throw error(
+                throw new ScriptException.Type(
                     "Invalid array access: %s (%s)", term.index, javaType(index)
                 );
             }
@@ -301,7 +455,7 @@ public class Interpreter {
 
             // The parent must be a map.
             if (!of(parent, Map.class))
-                throw error(
+                throw new ScriptException.Type(
                     "Invalid map access: %s (%s)", term.object, javaType(parent)
                 );
             
@@ -326,14 +480,14 @@ public class Interpreter {
                 // ... in which case what we have to do is simple; evaluate the
                 // RHS (Right-Hand Side) and, according to the assignment 
                 // operator, set that result as the value of the variable.
-                lhs = getVar(((NodeTerm.Variable) assign.term).var);
+                lhs = getVar((NodeTerm.Variable) assign.term);
                 value = calcAssign(intr, assign.op, lhs, runExpr(assign.expr));
                 
                 // Note that setVar() implicitly checks to see if the variable 
                 // is already defined at this point and will throw an error
                 // otherwise. To allow assignment to undeclared variables, use 
                 // a combination of defined() and define() here instead.
-                setVar(((NodeTerm.Variable) assign.term).var, value);
+                setVar((NodeTerm.Variable) assign.term, value);
                 lastResult = value;
             }
 
@@ -351,13 +505,15 @@ public class Interpreter {
             // this is unlikely to happen as the Parser wouldn't let a term like
             // that through.
             else {
-                throw error("LHS of an assignment is invalid: %s", assign.term);
+                throw new ScriptException(
+                    "LHS of an assignment is invalid: %s", assign.term
+                );
             }
         }
 
         public void visit(NodeStmt.Declare decl) {
             final Object value = runExpr(decl.expr);
-            defineVar(decl.var, value);
+            defineVar(decl.slot, decl.var, value);
             lastResult = value;
         }
 
@@ -369,18 +525,18 @@ public class Interpreter {
         }
 
         public void visit(NodeStmt.TryCatch block) {
-            final int scopeCount = scopes.size();
+            final int scopeCount = top;
             try {
                 runScope(block._try);
             }
             catch (Exception e) {
 
                 // Close all unclosed scopes in the case of an exception catch
-                while (scopes.size() > scopeCount) exitScope();
+                while (top > scopeCount) exitScope();
             
                 if (block._catch == null ) return;
-                enterScope();
-                if (block.err != null) defineVar(block.err, e);
+                enterScope(block.locals);
+                if (block.err != null) defineVar(block.slot, block.err, e);
                 runScope(block._catch);
                 exitScope();
             }
@@ -390,40 +546,43 @@ public class Interpreter {
 
         }
         
+        // Once a loop is hot, the tiered engine runs the rest of it compiled,
+        // from the next condition check on.
         public void visit(NodeStmt.While loop) {
             while ((Boolean) runExpr(loop.expr)) {
                 runScope(loop.scope);
                 if (jump == JumpOp.RETURN) break;
-                else if (jump == JumpOp.CONTINUE) { jump = null; continue; }
+                else if (jump == JumpOp.CONTINUE) jump = null;
                 else if (jump == JumpOp.BREAK) { jump = null; break; }
+
+                final Body compiled = tiered() ? hot(loop) : null;
+                if (compiled != null) {
+                    compiled.run(intr);
+                    break;
+                }
             }
         }
 
-        @SuppressWarnings("unchecked")
         public void visit(NodeStmt.ForEach loop) {
-            final Object object = runTerm(loop.list);
-            final Iterator<?> iterator;
-            if (of(object, Iterable.class)) {
-                iterator = ((Iterable<?>) object).iterator();
-            }
-            else if (of(object, Map.class)) {
-                iterator = ((Map<String, Object>) object).keySet().iterator();
-            }
-            else if (of(object, String.class)) {
-                iterator = ((String) object).chars().iterator();
-            }
-            else throw error("Invalid for loop list");
+            final Iterator<?> iterator = iterate(runTerm(loop.list));
             
             // Plot twist!!
             // For loops are actually while loops in disguise! Muhahaha! 
-            enterScope();
-            defineVar(loop.itr, null);
+            enterScope(loop.locals);
+            defineVar(loop.slot, loop.itr, null);
             while (iterator.hasNext()) {
-                setVar(loop.itr, iterator.next());
+                if (loop.slot < 0) setVar(loop.itr, iterator.next());
+                else scopes[top].slots[loop.slot] = iterator.next();
                 runScope(loop.scope);
                 if (jump == JumpOp.RETURN) break;
-                else if (jump == JumpOp.CONTINUE) { jump = null; continue; }
+                else if (jump == JumpOp.CONTINUE) jump = null;
                 else if (jump == JumpOp.BREAK) { jump = null; break; }
+
+                final Closures.Resume compiled = tiered() ? hot(loop) : null;
+                if (compiled != null) {
+                    compiled.run(intr, iterator);
+                    break;
+                }
             }
             exitScope();
         }
@@ -431,7 +590,7 @@ public class Interpreter {
         public void visit(NodeStmt.For loop) {
             // Plot twist!!
             // For loops are actually while loops in disguise! Muhahaha! 
-            enterScope();
+            enterScope(loop.locals);
             runStmt(loop.init);
             while ((Boolean) runExpr(loop.cond)) {
                 runScope(loop.scope);
@@ -441,21 +600,31 @@ public class Interpreter {
                 else if (jump == JumpOp.BREAK) { jump = null; break; }
 
                 runStmt(loop.inc);
+                final Body compiled = tiered() ? hot(loop) : null;
+                if (compiled != null) {
+                    compiled.run(intr);
+                    break;
+                }
             }
             exitScope();
         }
 
         public void visit(NodeStmt.Function def) {
-            final Capture function = (Capture) exprVisitor.visit(
-                new NodeExpr.Lambda(def.params, def.body, line)
-            );
-            defineVar(def.name, function);
+            final Capture function = (Capture) exprVisitor.visit(def.lambda);
+            defineVar(def.slot, def.name, function);
             lastResult = function;
         }
 
         
         public void visit(NodeStmt.Return stmt) {
-            lastResult = runExpr(stmt.expr);
+            if (stmt.tail == null) lastResult = runExpr(stmt.expr);
+            else {
+                final Object f = runTerm(stmt.tail.f);
+                final Object[] args = new Object[stmt.tail.args.size()];
+                int i = 0;
+                for (NodeExpr arg : stmt.tail.args) args[i++] = runExpr(arg);
+                lastResult = tail(stmt.tail.site, f, args);
+            }
             jump = JumpOp.RETURN;
         }
 
@@ -468,8 +637,8 @@ public class Interpreter {
     // MARK: Run Expression
     Object runExpr(NodeExpr expr) {
         if (expr == null) return null;
-        line = expr.line; 
-        return expr.host(exprVisitor); 
+        try { return expr.host(exprVisitor); }
+        catch (ScriptException e) { throw at(e, expr.line); }
     }
 
     private final ExprVisitor exprVisitor = new ExprVisitor(this);
@@ -485,34 +654,320 @@ public class Interpreter {
             return runTerm(node.val);
         }
 
+        // And and Or only evaluate their right side when needed, so they are
+        // handed the terms themselves. Every other operator specialises on the
+        // values it is given.
         public Object visit(NodeExpr.Binary node) {
-            return calcBinary(intr, node.op, 
-                node.lhs, node.rhs
-                // runTerm(node.lhs), 
-                // runTerm(node.rhs)
-            );
+            if (node.op == BinaryOp.And || node.op == BinaryOp.Or)
+                return calcBinary(intr, node.op, node.lhs, node.rhs);
+            final Object lhs = runTerm(node.lhs);
+            return binary(intr, node, lhs, runTerm(node.rhs));
         }
 
-        public Capture visit(NodeExpr.Lambda def) {
-            final F function = (Object... args) -> {
-                enterScope();
-                for (int i = 0; i < def.params.size(); i += 1) {
-                    defineVar(def.params.get(i).param, 
-                        i < args.length && args[i] != null ? args[i] :
-                        runExpr(def.params.get(i)._default)
-                    );
+        public Capture visit(NodeExpr.Lambda def) { return closure(def, null); }
+    };
+
+    // MARK: Functions
+    // Make a function out of a lambda, capturing the variables it needs from
+    // the current scopes. If its body has been compiled it runs as compiled,
+    // otherwise the tree is walked.
+    Capture closure(NodeExpr.Lambda def, Body body) {
+        final F function = (Object... args) -> {
+            enterScope(def.locals);
+            final NodeParam[] params = def.bindings;
+            for (int i = 0; i < params.length; i += 1)
+                bind(params, i, i < args.length ? args[i] : null);
+            final Object value = run(def, body);
+            if (tail == null) return value;
+
+            final Capture f = tail;
+            final Object[] rest = tailArgs;
+            tail = null; tailArgs = null;
+            return call(f, rest);
+        };
+
+        final Map<String, Object> vars = new HashMap<>();
+        if (def.free == null) {
+            for (int i = 0; i <= top; i += 1) vars.putAll(scopes[i]);
+        }
+
+        // Only the variables the function can look up by name are copied,
+        // from the innermost scope that has them.
+        else for (String name : def.free) {
+            for (int i = top; i >= 0; i -= 1) {
+                if (scopes[i].containsKey(name)) {
+                    vars.put(name, scopes[i].get(name));
+                    break;
                 }
+            }
+        }
 
-                runScope(def.body);
-                exitScope();
+        // A @memo function is always called through its F, which keeps its
+        // results, so it is not given its definition to be entered directly.
+        if (def.memo > 0) return new Capture(vars, memo(def.memo, function));
+        return new Capture(vars, function, def, body);
+    }
 
-                jump = null; // Clear jump flag
-                return lastResult;
+    // Keep the results of the last calls to a function by the values of their
+    // arguments, dropping the least recently used past the given number. Only
+    // calls whose arguments are all numbers, strings, booleans or null are
+    // kept, as lists and maps could change after the call.
+    private static F memo(int limit, F function) {
+        final Map<List<Object>, Object> results =
+            new LinkedHashMap<>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(
+                    Map.Entry<List<Object>, Object> eldest
+                ) { return size() > limit; }
             };
 
-            return new Capture(scopes, function);
+        return (Object... args) -> {
+            for (Object arg : args) {
+                if (arg != null && !(arg instanceof Number) &&
+                    !(arg instanceof String) && !(arg instanceof Boolean))
+                    return function.apply(args);
+            }
+
+            final List<Object> key = Arrays.asList(args.clone());
+            Object value = results.get(key);
+            if (value == null && !results.containsKey(key)) {
+                value = function.apply(args);
+                results.put(key, value);
+            }
+            return value;
+        };
+    }
+
+    // MARK: Script Calls
+    // Script functions are entered directly rather than through their F, with
+    // their arguments bound straight into the slots of their frame. The frame
+    // of captured variables is only entered if there are any, which for most
+    // functions there are not, as it could only be searched by name.
+    boolean script(Object f) {
+        return of(f, Capture.class) && ((Capture) f).def != null &&
+            !bigDecimalMode;
+    }
+
+    // Returns whether the frame of captured variables was entered.
+    boolean enter(Capture f) {
+        final boolean captured = !f.variables.isEmpty();
+        if (captured) enterScope(f.variables);
+        enterScope(f.def.locals);
+        scopes[captured ? top - 1 : top].function = true;
+        return captured;
+    }
+
+    // Bind a parameter, or its default if the value is null.
+    void bind(NodeParam[] params, int i, Object value) {
+        if (i >= params.length) return;
+        final NodeParam param = params[i];
+        defineVar(param.slot, param.param,
+            value != null ? value : runExpr(param._default)
+        );
+    }
+
+    // Bind the parameters after the given ones to their defaults, then run
+    // the function and leave it. Tail calls it leaves behind are made here, in
+    // its place, so a chain of them takes no more stack than one call.
+    private Object run(Capture f, boolean captured, int bound) {
+        for (;;) {
+            final NodeParam[] params = f.def.bindings;
+            for (int i = bound; i < params.length; i += 1)
+                bind(params, i, null);
+            final Object value = run(f.def, f.body);
+            if (captured) exitScope();
+            if (tail == null) return value;
+
+            final Object[] args = tailArgs;
+            f = tail;
+            tail = null; tailArgs = null;
+            captured = enter(f);
+            bound = Math.min(args.length, f.def.bindings.length);
+            for (int i = 0; i < bound; i += 1) bind(f.def.bindings, i, args[i]);
         }
-    };
+    }
+
+    // A call a function returns the result of, where nothing is left for the
+    // function to do after it. A script function is not called here, but
+    // left for whoever called the returning function to call once it has
+    // left. Anything else is called as usual, and so is a function that
+    // could find a name it did not capture in the scopes about to be left.
+    Capture tail = null;
+    Object[] tailArgs = null;
+
+    Object tail(Host.Site site, Object f, Object[] args) {
+        if (!script(f) || !detached((Capture) f)) return call(site, f, args);
+        tail = (Capture) f;
+        tailArgs = args;
+        return null;
+    }
+
+    // Whether a function would find the same variables by name once the
+    // function calling it has left, as none of the frames of that function
+    // has one of those it did not capture.
+    private boolean detached(Capture f) {
+        if (f.missing == null) return false;
+        for (int i = top; i > 0; i -= 1) {
+            for (String name : f.missing)
+                if (scopes[i].containsKey(name)) return false;
+            if (scopes[i].function) break;
+        }
+        return true;
+    }
+
+    // Run the body of a function whose frame has been entered, and leave it.
+    private Object run(NodeExpr.Lambda def, Body body) {
+        final Body compiled = body != null ? body : tiered() ? hot(def) : null;
+        if (compiled != null) compiled.run(this);
+        else runScope(def.body);
+        exitScope();
+
+        jump = null; // Clear jump flag
+        return lastResult;
+    }
+
+    Object call(Object f, Object[] args) { return call(null, f, args); }
+
+    // A call made by a call site, which keeps the host method it resolved.
+    Object call(Host.Site site, Object f, Object[] args) {
+        // Experimental
+        if (bigDecimalMode) {
+            for (int i = 0; i < args.length; i += 1) {
+                if (doublish(args[i])) {
+                    args[i] = BigDecimal.valueOf(
+                        (Double) castValue(this, "double", args[i])
+                    );
+                }
+            }
+        }
+
+        if (script(f)) {
+            final Capture s = (Capture) f;
+            final boolean captured = enter(s);
+            final int bound = Math.min(args.length, s.def.bindings.length);
+            for (int i = 0; i < bound; i += 1) bind(s.def.bindings, i, args[i]);
+            return run(s, captured, bound);
+        }
+        else if (of(f, Capture.class)) {
+            enterScope(((Capture) f).variables);
+            scopes[top].function = true;
+            final Object value = ((Capture) f).invoke(this, args);
+            exitScope();
+            return value;
+        }
+        else if (of(f, F0.class)) {
+            ((F0) f).apply(args);
+            return null;
+        }
+
+        final Object value;
+        if (site != null && of(f, Host.class))
+            value = ((Host) f).apply(site, args);
+        else if (of(f, F.class)) value = ((F) f).apply(args);
+        else if (of(f, Fn0.class)) value = ((Fn0) f).apply();
+        else if (of(f, Fn1.class)) value = ((Fn1) f).apply(arg(args, 0));
+        else if (of(f, Fn2.class))
+            value = ((Fn2) f).apply(arg(args, 0), arg(args, 1));
+        else if (of(f, Fn3.class)) value = ((Fn3) f).apply(
+            arg(args, 0), arg(args, 1), arg(args, 2)
+        );
+        else if (of(f, Fn4.class)) value = ((Fn4) f).apply(
+            arg(args, 0), arg(args, 1), arg(args, 2), arg(args, 3)
+        );
+        else throw new ScriptException.Call(
+            "Unsupported function type: %s", javaType(f)
+        );
+
+        // Experimental
+        if (bigDecimalMode && of(value, BigDecimal.class)) {
+            return castValue(this, "double", value);
+        }
+
+        return value;
+    }
+
+    private static Object arg(Object[] args, int i) {
+        return i < args.length ? args[i] : null;
+    }
+
+    // Calls of up to four arguments. Script and fixed arity functions get them
+    // as they are, anything else gets them in an array. Big decimal mode
+    // converts the arguments in place, so it always goes through the array.
+    private static final Object[] NO_ARGS = {};
+
+    Object call(Host.Site site, Object f) {
+        if (script(f)) return run((Capture) f, enter((Capture) f), 0);
+        if (of(f, Fn0.class) && !bigDecimalMode) return ((Fn0) f).apply();
+        return call(site, f, NO_ARGS);
+    }
+
+    Object call(Host.Site site, Object f, Object a) {
+        if (script(f)) {
+            final Capture s = (Capture) f;
+            final boolean captured = enter(s);
+            bind(s.def.bindings, 0, a);
+            return run(s, captured, 1);
+        }
+        if (of(f, Fn1.class) && !bigDecimalMode) return ((Fn1) f).apply(a);
+        return call(site, f, new Object[] {a});
+    }
+
+    Object call(Host.Site site, Object f, Object a, Object b) {
+        if (script(f)) {
+            final Capture s = (Capture) f;
+            final boolean captured = enter(s);
+            bind(s.def.bindings, 0, a);
+            bind(s.def.bindings, 1, b);
+            return run(s, captured, 2);
+        }
+        if (of(f, Fn2.class) && !bigDecimalMode) return ((Fn2) f).apply(a, b);
+        return call(site, f, new Object[] {a, b});
+    }
+
+    Object call(Host.Site site, Object f, Object a, Object b, Object c) {
+        if (script(f)) {
+            final Capture s = (Capture) f;
+            final boolean captured = enter(s);
+            bind(s.def.bindings, 0, a);
+            bind(s.def.bindings, 1, b);
+            bind(s.def.bindings, 2, c);
+            return run(s, captured, 3);
+        }
+        if (of(f, Fn3.class) && !bigDecimalMode)
+            return ((Fn3) f).apply(a, b, c);
+        return call(site, f, new Object[] {a, b, c});
+    }
+
+    Object call(
+        Host.Site site, Object f, Object a, Object b, Object c, Object d
+    ) {
+        if (script(f)) {
+            final Capture s = (Capture) f;
+            final boolean captured = enter(s);
+            bind(s.def.bindings, 0, a);
+            bind(s.def.bindings, 1, b);
+            bind(s.def.bindings, 2, c);
+            bind(s.def.bindings, 3, d);
+            return run(s, captured, 4);
+        }
+        if (of(f, Fn4.class) && !bigDecimalMode)
+            return ((Fn4) f).apply(a, b, c, d);
+        return call(site, f, new Object[] {a, b, c, d});
+    }
+
+    // Things a for-each loop can go over.
+    @SuppressWarnings("unchecked")
+    Iterator<?> iterate(Object object) {
+        if (of(object, Iterable.class)) {
+            return ((Iterable<?>) object).iterator();
+        }
+        else if (of(object, Map.class)) {
+            return ((Map<String, Object>) object).keySet().iterator();
+        }
+        else if (of(object, String.class)) {
+            return ((String) object).chars().iterator();
+        }
+        throw new ScriptException.Type("Invalid for loop list");
+    }
 
     // MARK: Run Term
     Object runTerm(NodeTerm term) { return term.host(termVisitor); }
@@ -528,7 +983,7 @@ public class Interpreter {
         public <T> T visit(NodeTerm.Literal<?> lit) { return (T) lit.lit; }
 
         public Object visit(NodeTerm.Variable var) { 
-            return getVar(var.var);
+            return getVar(var);
         }
 
         public Object visit(NodeTerm.PropAccess paccess) {
@@ -550,20 +1005,7 @@ public class Interpreter {
 
         public Object visit(NodeTerm.ArrayAccess access) {
             final Object object = runTerm(access.array);
-            final Object i = runExpr(access.index);
-            if (of(i, String.class)) {
-                return accessProp(object, (String) i);
-            }
-            else if (longish(i) && of(object, List.class)) {
-                return ((List<?>) object).get(castValue(intr, "int", i));
-            }
-            else if (longish(i) && of(object, String.class)) {
-                return ((String) object).charAt(castValue(intr, "int", i));
-            }
-            
-            throw error("Invalid array access '%s'. Index is of type %s", 
-                access, javaType(i)
-            );
+            return accessIndex(access, object, runExpr(access.index));
         }
 
         public Object visit(NodeTerm.Expr expr) {
@@ -571,57 +1013,99 @@ public class Interpreter {
         }
 
         public Object visit(NodeTerm.UnaryExpr expr) {
-            return calcUnary(intr, expr.op, runTerm(expr.val));
+            return unary(intr, expr, runTerm(expr.val));
         }
 
+        // Arguments are evaluated in order, after the function.
         public Object visit(NodeTerm.Call call) {
-            
             final Object f = runTerm(call.f);
-            final Object[] argExprs = call.args.stream()
-                .map(a -> runExpr(a)).toArray();
-
-            // Experimental
-            if (bigDecimalMode) {
-                for (int i = 0; i < argExprs.length; i += 1) {
-                    if (doublish(argExprs[i])) {
-                        argExprs[i] = BigDecimal.valueOf(
-                            (Double) castValue(intr, "double", argExprs[i])
-                        );
-                    }
-                }
-            }
-
-            if (of(f, Capture.class)) {
-                enterScope(((Capture) f).variables);
-                final Object value = ((Capture) f).invoke(intr, argExprs);
-                exitScope();
-                return value;
-            }
-            else if (of(f, F.class)) {
-                final Object value = ((F) f).apply(argExprs);
-                
-                // Experimental
-                if (bigDecimalMode && of(value, BigDecimal.class)) {
-                    return castValue(intr, "double", value);
-                }
-
-                return value;
-            }
-            else if (of(f, F0.class)) {
-                ((F0) f).apply(argExprs);
-                return null;
+            final List<NodeExpr> args = call.args;
+            final Host.Site site = call.site;
+            switch (args.size()) {
+                case 0: return intr.call(site, f);
+                case 1: return intr.call(site, f, runExpr(args.get(0)));
+                case 2: return intr.call(site, f,
+                    runExpr(args.get(0)), runExpr(args.get(1))
+                );
+                case 3: return intr.call(site, f, runExpr(args.get(0)),
+                    runExpr(args.get(1)), runExpr(args.get(2))
+                );
+                case 4: return intr.call(site, f, runExpr(args.get(0)),
+                    runExpr(args.get(1)), runExpr(args.get(2)),
+                    runExpr(args.get(3))
+                );
             }
-            
-            throw error("Unsupported function type: " + javaType(f));
+            final Object[] values = new Object[args.size()];
+            int i = 0;
+            for (NodeExpr arg : args) values[i++] = runExpr(arg);
+            return intr.call(site, f, values);
         }
 
         public Object visit(NodeTerm.Cast cast) {
             final Object value = runTerm(cast.object);
             return castValue(intr, cast.type.type, value);
         }
+
+        public Object visit(NodeTerm.Hoisted hoisted) {
+            return hoisted(hoisted);
+        }
+
+        public Object visit(NodeTerm.Inline inline) {
+            for (NodeTerm.Hoisted param : inline.params)
+                argument(param, runExpr(param.expr));
+            return inlined(runExpr(inline.body));
+        }
     };
 
-    private Object accessProp(Object object, String prop) {
+    // Every engine works out a hoisted expression here, by walking it. Only
+    // values that cannot change are kept, so a list or map made by it is
+    // still made afresh each time round. One read out of a list or map is
+    // the same list or map every time, so is kept as it is.
+    Object hoisted(NodeTerm.Hoisted hoisted) {
+        final Object[] slots = scopes[top - hoisted.depth].slots;
+        final Object kept = slots[hoisted.slot];
+        if (kept != Frame.UNSET) return kept;
+
+        final Object value = runExpr(hoisted.expr);
+        if (hoisted.read || value == null || value instanceof String ||
+            value instanceof Long || value instanceof Double ||
+            value instanceof Integer || value instanceof Boolean ||
+            value instanceof Character || value instanceof BigDecimal)
+            slots[hoisted.slot] = value;
+        return value;
+    }
+
+    // MARK: Inlining
+    // An inlined call binds its arguments as a call would, and leaves its
+    // result as the last result, as returning from the function would have.
+    void argument(NodeTerm.Hoisted param, Object value) {
+        if (bigDecimalMode && doublish(value))
+            value = BigDecimal.valueOf(
+                (Double) castValue(this, "double", value)
+            );
+        scopes[top - param.depth].slots[param.slot] = value;
+    }
+
+    Object inlined(Object value) { return lastResult = value; }
+
+    Object accessIndex(NodeTerm.ArrayAccess access, Object object, Object i) {
+        if (of(i, String.class)) {
+            return accessProp(object, (String) i);
+        }
+        else if (longish(i) && of(object, List.class)) {
+            return ((List<?>) object).get(castValue(this, "int", i));
+        }
+        else if (longish(i) && of(object, String.class)) {
+            return ((String) object).charAt(castValue(this, "int", i));
+        }
+        
+        throw new ScriptException.Type(
+            "Invalid array access '%s'. Index is of type %s", 
+            access, javaType(i)
+        );
+    }
+
+    Object accessProp(Object object, String prop) {
         if (of(object, Map.class)) {
             return ((Map<?, ?>) object).get(prop);
         }
@@ -635,7 +1119,7 @@ public class Interpreter {
                 // Add more string properties here!
             }
 
-            throw error("Invalid String property: " + prop);
+            throw new ScriptException.Type("Invalid String property: %s", prop);
         }
         else if (of(object, List.class)) {
             switch (prop.toLowerCase()) {
@@ -644,13 +1128,13 @@ public class Interpreter {
                 // Add more list properties here!                
             }
 
-            throw error("Invalid List property: " + prop);
+            throw new ScriptException.Type("Invalid List property: %s", prop);
         }
 
-        throw error(String.format(
+        throw new ScriptException.Type(
             "Cannot access property '%s' of %s (type: %s)", 
             prop, object, javaType(object)
-        ));
+        );
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,820 @@
+package smg.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Jit
+ *
+ * Compiles the body of a function into a JVM class of its own, so that
+ * HotSpot sees script code as ordinary Java methods and can profile, inline
+ * and optimise it like any other. The class implements Interpreter.Body and
+ * runs through Interpreter.closure, so the function it belongs to is called
+ * like any other Capture.
+ *
+ * Only a subset is compiled: bodies made of declarations, assignments to
+ * variables, expressions, ifs, loops, returns, breaks and continues, using
+ * operators, casts, calls, indexing, properties and array and map literals.
+ * Bodies with nested functions, for each loops, try blocks or assignments
+ * into arrays and maps are left to the closure engine.
+ *
+ * Variables stay in the Interpreter's frames, exactly where the other engines
+ * put them, since the functions a body calls may still look them up by name.
+ * What goes away is the dispatch: each node becomes a handful of instructions
+ * and every loop and branch is a real jump. Values stay boxed, and operators
+ * go through the fast paths in Calculations, which HotSpot inlines.
+ *
+ * Classes are defined as hidden classes of this package. Nothing refers to
+ * them but the compiled script that made them, so they are unloaded along
+ * with it once it is evicted and no longer running.
+ *
+ * Class files are written as version 49, which the JVM verifies by type
+ * inference, so no stack map frames are needed.
+ */
+final class Jit {
+
+    private Jit() {}
+
+    // Compile the body of a function, or return null if it uses anything
+    // outside the subset.
+    static Interpreter.Body compile(NodeExpr.Lambda def) {
+        try {
+            final Compiler compiler = new Compiler();
+            compiler.body(def.body);
+            return compiler.define();
+        }
+        catch (Unsupported e) {
+            return null;
+        }
+    }
+
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        Unsupported() { super(null, null, false, false); }
+    }
+    private static final Unsupported UNSUPPORTED = new Unsupported();
+
+    // MARK: Class Files
+    private static final String CLASS = "smg/interpreter/JitBody";
+    private static final String INTERPRETER = "smg/interpreter/Interpreter";
+    private static final String CALCULATIONS = "smg/interpreter/Calculations";
+    private static final String JIT = "smg/interpreter/Jit";
+    private static final String SITE = "smg/interpreter/Host$Site";
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String INTR = "L" + INTERPRETER + ";";
+
+    private static final int
+        ACONST_NULL = 0x01, ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+        LDC = 0x12, LDC_W = 0x13, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b,
+        AALOAD = 0x32, AASTORE = 0x53, POP = 0x57, DUP = 0x59, IFEQ = 0x99,
+        IFNE = 0x9a, GOTO = 0xa7, RETURN = 0xb1, GETSTATIC = 0xb2,
+        GETFIELD = 0xb4, PUTFIELD = 0xb5, INVOKEVIRTUAL = 0xb6,
+        INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8, ANEWARRAY = 0xbd,
+        ATHROW = 0xbf, CHECKCAST = 0xc0;
+
+    // A place in the code to jump to, and the jumps waiting for it.
+    private static final class Label {
+        int at = -1;
+        final List<Integer> from = new ArrayList<>();
+    }
+
+    // The innermost loop being compiled. Frames is the number of frames
+    // entered in the body just outside of the loop's own scope.
+    private static final class Loop {
+        final Loop outer;
+        final int frames;
+        final Label next, end;
+
+        Loop(Loop outer, int frames, Label next, Label end) {
+            this.outer = outer; this.frames = frames;
+            this.next = next; this.end = end;
+        }
+    }
+
+    // Writes one class with a single run method. Local 0 is the class itself,
+    // whose only field holds the values the code needs that the class file
+    // cannot, and local 1 is the Interpreter.
+    private static final class Compiler {
+        private final ByteArrayOutputStream poolBytes =
+            new ByteArrayOutputStream();
+        private final DataOutputStream pool = new DataOutputStream(poolBytes);
+        private final Map<String, Integer> entries = new HashMap<>();
+        private int entryCount = 1;
+
+        private final List<Object> constants = new ArrayList<>();
+        private final Map<Object, Integer> indices = new HashMap<>();
+
+        private byte[] code = new byte[256];
+        private int pc = 0, stack = 0, maxStack = 0;
+        private final List<Label> labels = new ArrayList<>();
+
+        // Triples of (start, end, line) for the code of each expression and
+        // statement with a line, innermost first since inner code is always
+        // finished first. They become the exception table, whose handlers
+        // give script errors their line on the way out.
+        private final List<int[]> lines = new ArrayList<>();
+
+        // Frames entered by the body so far at this point of the code.
+        private int frames = 0;
+        private Loop loop = null;
+
+        // MARK: Constant Pool
+        private int entry(String key, int tag) {
+            final Integer index = entries.get(key);
+            if (index != null) return -index;
+            if (entryCount > 0xfff0) throw UNSUPPORTED;
+            entries.put(key, entryCount);
+            write(tag, 1);
+            return entryCount++;
+        }
+
+        private int utf8(String value) {
+            final int index = entry("U" + value, 1);
+            if (index > 0) write(value);
+            return Math.abs(index);
+        }
+
+        private int classRef(String name) {
+            final int utf8 = utf8(name);
+            final int index = entry("C" + name, 7);
+            if (index > 0) write(utf8, 2);
+            return Math.abs(index);
+        }
+
+        private int integer(int value) {
+            final int index = entry("I" + value, 3);
+            if (index > 0) write(value, 4);
+            return Math.abs(index);
+        }
+
+        private int member(int tag, String owner, String name, String desc) {
+            final int type = classRef(owner);
+            final int n = utf8(name), d = utf8(desc);
+            final int nameType = entry("N" + name + " " + desc, 12);
+            if (nameType > 0) { write(n, 2); write(d, 2); }
+            final int index = entry(tag + owner + "." + name + desc, tag);
+            if (index > 0) { write(type, 2); write(Math.abs(nameType), 2); }
+            return Math.abs(index);
+        }
+
+        private void write(int value, int bytes) {
+            try {
+                if (bytes == 1) pool.writeByte(value);
+                else if (bytes == 2) pool.writeShort(value);
+                else pool.writeInt(value);
+            }
+            catch (IOException e) { throw new IllegalStateException(e); }
+        }
+
+        private void write(String value) {
+            try { pool.writeUTF(value); }
+            catch (IOException e) { throw UNSUPPORTED; }
+        }
+
+        // MARK: Instructions
+        private void u1(int value) {
+            if (pc == code.length) code = Arrays.copyOf(code, pc * 2);
+            code[pc++] = (byte) value;
+        }
+
+        private void u2(int value) { u1(value >> 8); u1(value); }
+
+        private void op(int op, int effect) {
+            u1(op);
+            stack += effect;
+            maxStack = Math.max(maxStack, stack);
+        }
+
+        private void push(int value) {
+            if (value >= -1 && value <= 5) op(ICONST_0 + value, 1);
+            else if (value == (byte) value) { op(BIPUSH, 1); u1(value); }
+            else if (value == (short) value) { op(SIPUSH, 1); u2(value); }
+            else {
+                final int index = integer(value);
+                if (index < 256) { op(LDC, 1); u1(index); }
+                else { op(LDC_W, 1); u2(index); }
+            }
+        }
+
+        private void field(int op, String owner, String name, String desc) {
+            final int index = member(9, owner, name, desc);
+            op(op, op == GETSTATIC ? 1 : op == GETFIELD ? 0 :
+                op == PUTFIELD ? -2 : -1);
+            u2(index);
+        }
+
+        private void invoke(int op, String owner, String name, String desc) {
+            final int index = member(10, owner, name, desc);
+            int effect = op == INVOKESTATIC ? 0 : -1;
+            for (int i = 1; desc.charAt(i) != ')'; i += 1) {
+                effect -= 1;
+                while (desc.charAt(i) == '[') i += 1;
+                if (desc.charAt(i) == 'L') i = desc.indexOf(';', i);
+            }
+            if (!desc.endsWith(")V")) effect += 1;
+            op(op, effect);
+            u2(index);
+        }
+
+        private void type(int op, String name) {
+            final int index = classRef(name);
+            op(op, 0);
+            u2(index);
+        }
+
+        // Load a value held by the class, cast to the given type if needed.
+        private void constant(Object value, String type) {
+            Integer index = indices.get(value);
+            if (index == null) {
+                indices.put(value, index = constants.size());
+                constants.add(value);
+            }
+            op(ALOAD_0, 1);
+            field(GETFIELD, CLASS, "k", "[" + OBJECT);
+            push(index);
+            op(AALOAD, -1);
+            if (type != null) type(CHECKCAST, type);
+        }
+
+        private Label label() {
+            final Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+
+        private void bind(Label label) { label.at = pc; }
+
+        private void jump(int op, Label label) {
+            label.from.add(pc);
+            op(op, op == GOTO ? 0 : -1);
+            u2(0);
+        }
+
+        private void enter(String[] locals) {
+            op(ALOAD_1, 1);
+            constant(locals, "[Ljava/lang/String;");
+            invoke(INVOKEVIRTUAL, INTERPRETER, "enterScope",
+                "([Ljava/lang/String;)V");
+            frames += 1;
+        }
+
+        // Exit frames on the way to a jump, which leaves the count of frames
+        // for the code that follows as it is.
+        private void exits(int n) {
+            for (int i = 0; i < n; i += 1) {
+                op(ALOAD_1, 1);
+                invoke(INVOKEVIRTUAL, INTERPRETER, "exitScope", "()V");
+            }
+        }
+
+        private void exit() { exits(1); frames -= 1; }
+
+        // Leave the body with the jump flag set, as the closure engine does.
+        // Interpreter.closure clears it again.
+        private void leave(String jump) {
+            exits(frames);
+            op(ALOAD_1, 1);
+            field(GETSTATIC, INTERPRETER + "$JumpOp", jump,
+                "L" + INTERPRETER + "$JumpOp;");
+            field(PUTFIELD, INTERPRETER, "jump",
+                "L" + INTERPRETER + "$JumpOp;");
+            op(RETURN, 0);
+        }
+
+        // MARK: Statements
+        void body(NodeScope body) {
+            scope(body);
+            op(RETURN, 0);
+        }
+
+        private void scope(NodeScope scope) {
+            if (scope == null) return;
+            enter(scope.locals);
+            for (NodeStmt stmt : scope.stmts) if (stmt != null) stmt(stmt);
+            exit();
+        }
+
+        private void stmt(NodeStmt node) {
+            final int start = pc;
+            statement(node);
+            line(start, node.line());
+        }
+
+        private void statement(NodeStmt node) {
+            if (node instanceof NodeStmt.Expr) {
+                op(ALOAD_1, 1);
+                expr(((NodeStmt.Expr) node).expr);
+                field(PUTFIELD, INTERPRETER, "lastResult", OBJECT);
+            }
+            else if (node instanceof NodeStmt.Declare) {
+                final NodeStmt.Declare decl = (NodeStmt.Declare) node;
+                op(ALOAD_1, 1);
+                op(ALOAD_1, 1);
+                expr(decl.expr);
+                push(decl.slot);
+                constant(decl.var, "java/lang/String");
+                invoke(INVOKESTATIC, JIT, "define",
+                    "(" + INTR + OBJECT + "ILjava/lang/String;)" + OBJECT);
+                field(PUTFIELD, INTERPRETER, "lastResult", OBJECT);
+            }
+            else if (node instanceof NodeStmt.Assign) {
+                assign((NodeStmt.Assign) node);
+            }
+            else if (node instanceof NodeStmt.If) {
+                final NodeStmt.If stmt = (NodeStmt.If) node;
+                final Label fail = label(), end = label();
+                condition(stmt.expr);
+                jump(IFEQ, fail);
+                scope(stmt.succ);
+                if (stmt.fail != null) jump(GOTO, end);
+                bind(fail);
+                scope(stmt.fail);
+                bind(end);
+            }
+            else if (node instanceof NodeStmt.While) {
+                final NodeStmt.While stmt = (NodeStmt.While) node;
+                final Label next = label(), end = label();
+                bind(next);
+                test(stmt.expr);
+                jump(IFEQ, end);
+                loop(stmt.scope, next, end);
+                jump(GOTO, next);
+                bind(end);
+            }
+            else if (node instanceof NodeStmt.For) {
+                final NodeStmt.For stmt = (NodeStmt.For) node;
+                final Label start = label(), next = label(), end = label();
+                enter(stmt.locals);
+                if (stmt.init != null) stmt(stmt.init);
+                bind(start);
+                test(stmt.cond);
+                jump(IFEQ, end);
+                loop(stmt.scope, next, end);
+                bind(next);
+                if (stmt.inc != null) stmt(stmt.inc);
+                jump(GOTO, start);
+                bind(end);
+                exit();
+            }
+            else if (node instanceof NodeStmt.Scope) {
+                scope(((NodeStmt.Scope) node).scope);
+            }
+            else if (node instanceof NodeStmt.Return) {
+                final NodeStmt.Return stmt = (NodeStmt.Return) node;
+                op(ALOAD_1, 1);
+                if (stmt.tail == null) expr(stmt.expr);
+                else {
+                    op(ALOAD_1, 1);
+                    constant(stmt.tail.site, SITE);
+                    term(stmt.tail.f);
+                    array(stmt.tail.args);
+                    invoke(INVOKEVIRTUAL, INTERPRETER, "tail", "(L" + SITE + 
+                        ";" + OBJECT + "[" + OBJECT + ")" + OBJECT);
+                }
+                field(PUTFIELD, INTERPRETER, "lastResult", OBJECT);
+                leave("RETURN");
+            }
+            else if (node instanceof NodeStmt.Break) {
+                if (loop == null) { leave("BREAK"); return; }
+                exits(frames - loop.frames);
+                jump(GOTO, loop.end);
+            }
+            else if (node instanceof NodeStmt.Continue) {
+                if (loop == null) { leave("CONTINUE"); return; }
+                exits(frames - loop.frames);
+                jump(GOTO, loop.next);
+            }
+            else throw UNSUPPORTED;
+        }
+
+        private void loop(NodeScope body, Label next, Label end) {
+            loop = new Loop(loop, frames, next, end);
+            scope(body);
+            loop = loop.outer;
+        }
+
+        // The variable is read first, so an undefined one fails before the
+        // value is worked out.
+        private void assign(NodeStmt.Assign assign) {
+            if (!(assign.term instanceof NodeTerm.Variable)) throw UNSUPPORTED;
+            final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+
+            op(ALOAD_1, 1);
+            op(ALOAD_1, 1);
+            op(ALOAD_1, 1);
+            constant(assign.op, "smg/interpreter/AssignOp");
+            variable(var);
+            expr(assign.expr);
+            invoke(INVOKESTATIC, CALCULATIONS, "calcAssign",
+                "(" + INTR + "Lsmg/interpreter/AssignOp;" + OBJECT + OBJECT +
+                ")" + OBJECT);
+
+            if (var.slot < 0) {
+                constant(var.var, "java/lang/String");
+                invoke(INVOKESTATIC, JIT, "store",
+                    "(" + INTR + OBJECT + "Ljava/lang/String;)" + OBJECT);
+            }
+            else {
+                push(var.depth);
+                push(var.slot);
+                invoke(INVOKESTATIC, JIT, "store",
+                    "(" + INTR + OBJECT + "II)" + OBJECT);
+            }
+            field(PUTFIELD, INTERPRETER, "lastResult", OBJECT);
+        }
+
+        // Conditions of ifs are cast to booleans, those of loops must be
+        // booleans already.
+        private void condition(NodeExpr expr) {
+            expr(expr);
+            op(ALOAD_1, 1);
+            invoke(INVOKESTATIC, JIT, "truth", "(" + OBJECT + INTR + ")Z");
+        }
+
+        private void test(NodeExpr expr) {
+            expr(expr);
+            invoke(INVOKESTATIC, JIT, "test", "(" + OBJECT + ")Z");
+        }
+
+        // MARK: Expressions
+        // A missing expression is null.
+        private void expr(NodeExpr node) {
+            if (node == null) { op(ACONST_NULL, 1); return; }
+
+            final int start = pc;
+            if (node instanceof NodeExpr.Binary) binary((NodeExpr.Binary) node);
+            else if (node instanceof NodeExpr.Term)
+                term(((NodeExpr.Term) node).val);
+            else throw UNSUPPORTED;
+            line(start, node.line);
+        }
+
+        private void binary(NodeExpr.Binary node) {
+            if (node.op == BinaryOp.And || node.op == BinaryOp.Or) {
+                final Label end = label();
+                term(node.lhs);
+                op(DUP, 1);
+                op(ALOAD_1, 1);
+                invoke(INVOKESTATIC, JIT, "truth", "(" + OBJECT + INTR + ")Z");
+                jump(node.op == BinaryOp.And ? IFEQ : IFNE, end);
+                op(POP, -1);
+                term(node.rhs);
+                bind(end);
+                return;
+            }
+
+            final String fast = fastPath(node.op);
+            op(ALOAD_1, 1);
+            if (fast == null) 
+                constant(node, "smg/interpreter/NodeExpr$Binary");
+            term(node.lhs);
+            term(node.rhs);
+            if (fast != null) invoke(INVOKESTATIC, CALCULATIONS, fast,
+                "(" + INTR + OBJECT + OBJECT + ")" + OBJECT);
+            else invoke(INVOKESTATIC, CALCULATIONS, "binary",
+                "(" + INTR + "Lsmg/interpreter/NodeExpr$Binary;" + OBJECT +
+                OBJECT + ")" + OBJECT);
+        }
+
+        private static String fastPath(BinaryOp op) {
+            switch (op) {
+                case Add: return "add";
+                case Subtract: return "subtract";
+                case Multiply: return "multiply";
+                case Less: return "less";
+                case LessEqual: return "lessEqual";
+                case Greater: return "greater";
+                case GreaterEqual: return "greaterEqual";
+                case Equal: return "equal";
+                default: return null;
+            }
+        }
+
+        // MARK: Terms
+        private void term(NodeTerm node) {
+            if (node == null) op(ACONST_NULL, 1);
+            else if (node instanceof NodeTerm.Literal) {
+                final Object value = ((NodeTerm.Literal<?>) node).lit;
+                if (value == null) op(ACONST_NULL, 1);
+                else constant(value, null);
+            }
+            else if (node instanceof NodeTerm.Variable) {
+                variable((NodeTerm.Variable) node);
+            }
+            else if (node instanceof NodeTerm.Expr) {
+                expr(((NodeTerm.Expr) node).expr);
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess access = (NodeTerm.PropAccess) node;
+                op(ALOAD_1, 1);
+                term(access.object);
+                constant(access.prop, "java/lang/String");
+                invoke(INVOKEVIRTUAL, INTERPRETER, "accessProp",
+                    "(" + OBJECT + "Ljava/lang/String;)" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess access =
+                    (NodeTerm.ArrayAccess) node;
+                op(ALOAD_1, 1);
+                constant(access, "smg/interpreter/NodeTerm$ArrayAccess");
+                term(access.array);
+                expr(access.index);
+                invoke(INVOKEVIRTUAL, INTERPRETER, "accessIndex",
+                    "(Lsmg/interpreter/NodeTerm$ArrayAccess;" + OBJECT +
+                    OBJECT + ")" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call call = (NodeTerm.Call) node;
+                op(ALOAD_1, 1);
+                constant(call.site, SITE);
+                term(call.f);
+                if (call.args.size() <= 4) {
+                    for (NodeExpr arg : call.args) expr(arg);
+                    invoke(INVOKEVIRTUAL, INTERPRETER, "call", "(L" + SITE + 
+                        ";" + OBJECT.repeat(call.args.size() + 1) + ")" + 
+                        OBJECT);
+                }
+                else {
+                    array(call.args);
+                    invoke(INVOKEVIRTUAL, INTERPRETER, "call", "(L" + SITE + 
+                        ";" + OBJECT + "[" + OBJECT + ")" + OBJECT);
+                }
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr expr = (NodeTerm.UnaryExpr) node;
+                op(ALOAD_1, 1);
+                constant(expr, "smg/interpreter/NodeTerm$UnaryExpr");
+                term(expr.val);
+                invoke(INVOKESTATIC, CALCULATIONS, "unary",
+                    "(" + INTR + "Lsmg/interpreter/NodeTerm$UnaryExpr;" +
+                    OBJECT + ")" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast cast = (NodeTerm.Cast) node;
+                op(ALOAD_1, 1);
+                constant(cast.type.type, "java/lang/String");
+                term(cast.object);
+                invoke(INVOKESTATIC, "smg/interpreter/Types", "castValue",
+                    "(" + INTR + "Ljava/lang/String;" + OBJECT + ")" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.Hoisted) {
+                op(ALOAD_1, 1);
+                constant(node, "smg/interpreter/NodeTerm$Hoisted");
+                invoke(INVOKEVIRTUAL, INTERPRETER, "hoisted",
+                    "(Lsmg/interpreter/NodeTerm$Hoisted;)" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.Inline) {
+                final NodeTerm.Inline inline = (NodeTerm.Inline) node;
+                for (NodeTerm.Hoisted param : inline.params) {
+                    op(ALOAD_1, 1);
+                    constant(param, "smg/interpreter/NodeTerm$Hoisted");
+                    expr(param.expr);
+                    invoke(INVOKEVIRTUAL, INTERPRETER, "argument",
+                        "(Lsmg/interpreter/NodeTerm$Hoisted;" + OBJECT + ")V");
+                }
+                op(ALOAD_1, 1);
+                expr(inline.body);
+                invoke(INVOKEVIRTUAL, INTERPRETER, "inlined",
+                    "(" + OBJECT + ")" + OBJECT);
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                array(((NodeTerm.ArrayLiteral) node).items);
+                invoke(INVOKESTATIC, JIT, "list",
+                    "([" + OBJECT + ")Ljava/util/List;");
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                final List<NodeMapEntry> items =
+                    ((NodeTerm.MapLiteral) node).items;
+                final String[] keys = new String[items.size()];
+                final List<NodeExpr> values = new ArrayList<>(items.size());
+                for (int i = 0; i < keys.length; i += 1) {
+                    keys[i] = items.get(i).key;
+                    values.add(items.get(i).value);
+                }
+                constant(keys, "[Ljava/lang/String;");
+                array(values);
+                invoke(INVOKESTATIC, JIT, "map",
+                    "([Ljava/lang/String;[" + OBJECT + ")Ljava/util/Map;");
+            }
+            else throw UNSUPPORTED;
+        }
+
+        // Evaluate expressions in order into a new array.
+        private void array(List<NodeExpr> items) {
+            push(items.size());
+            type(ANEWARRAY, "java/lang/Object");
+            for (int i = 0; i < items.size(); i += 1) {
+                op(DUP, 1);
+                push(i);
+                expr(items.get(i));
+                op(AASTORE, -3);
+            }
+        }
+
+        private void variable(NodeTerm.Variable var) {
+            op(ALOAD_1, 1);
+            if (var.slot < 0) {
+                constant(var.var, "java/lang/String");
+                invoke(INVOKEVIRTUAL, INTERPRETER, "getVar",
+                    "(Ljava/lang/String;)" + OBJECT);
+                return;
+            }
+            push(var.depth);
+            push(var.slot);
+            constant(var.var, "java/lang/String");
+            invoke(INVOKESTATIC, JIT, "load",
+                "(" + INTR + "IILjava/lang/String;)" + OBJECT);
+        }
+
+        private void line(int start, int line) {
+            if (line >= 0 && start < pc) lines.add(new int[] {start, pc, line});
+        }
+
+        // Handlers are shared by every range with the same line, and go after
+        // the code where nothing falls into them.
+        private int[] handlers() {
+            final int type = classRef("smg/interpreter/ScriptException");
+            final Map<Integer, Integer> handlers = new HashMap<>();
+            final int[] table = new int[lines.size() * 4];
+            int i = 0;
+            for (int[] range : lines) {
+                Integer handler = handlers.get(range[2]);
+                if (handler == null) {
+                    handlers.put(range[2], handler = pc);
+                    stack = 1;
+                    op(ALOAD_1, 1);
+                    push(range[2]);
+                    invoke(INVOKESTATIC, JIT, "at",
+                        "(Lsmg/interpreter/ScriptException;" + INTR + "I)" +
+                        "Lsmg/interpreter/ScriptException;");
+                    op(ATHROW, -1);
+                }
+                table[i++] = range[0];
+                table[i++] = range[1];
+                table[i++] = handler;
+                table[i++] = type;
+            }
+            return table;
+        }
+
+        // MARK: Loading
+        Interpreter.Body define() {
+            for (Label label : labels) {
+                for (int from : label.from) {
+                    final int offset = label.at - from;
+                    if (offset != (short) offset) throw UNSUPPORTED;
+                    code[from + 1] = (byte) (offset >> 8);
+                    code[from + 2] = (byte) offset;
+                }
+            }
+            final int[] handlers = handlers();
+            if (pc > 0xffff) throw UNSUPPORTED;
+
+            final byte[] bytes = classFile(handlers);
+            try {
+                final MethodHandles.Lookup lookup =
+                    MethodHandles.lookup().defineHiddenClass(bytes, true);
+                return (Interpreter.Body) lookup.findConstructor(
+                    lookup.lookupClass(),
+                    MethodType.methodType(void.class, Object[].class)
+                ).invoke(constants.toArray());
+            }
+            catch (Throwable e) {
+                throw new IllegalStateException(
+                    "Could not load a compiled function", e
+                );
+            }
+        }
+
+        private byte[] classFile(int[] handlers) {
+            final int self = classRef(CLASS);
+            final int base = classRef("java/lang/Object");
+            final int body = classRef(INTERPRETER + "$Body");
+            final int k = utf8("k"), kType = utf8("[" + OBJECT);
+            final int kRef = member(9, CLASS, "k", "[" + OBJECT);
+            final int init = utf8("<init>");
+            final int initType = utf8("([" + OBJECT + ")V");
+            final int baseInit =
+                member(10, "java/lang/Object", "<init>", "()V");
+            final int run = utf8("run"), runType = utf8("(" + INTR + ")V");
+            final int codeName = utf8("Code");
+
+            final byte[] ctor = {
+                ALOAD_0, (byte) INVOKESPECIAL,
+                (byte) (baseInit >> 8), (byte) baseInit,
+                ALOAD_0, ALOAD_1, (byte) PUTFIELD,
+                (byte) (kRef >> 8), (byte) kRef,
+                (byte) RETURN
+            };
+
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            try {
+                out.writeInt(0xCAFEBABE);
+                out.writeShort(0);
+                out.writeShort(49);
+                out.writeShort(entryCount);
+                poolBytes.writeTo(out);
+
+                out.writeShort(0x0030); // final super
+                out.writeShort(self);
+                out.writeShort(base);
+                out.writeShort(1);
+                out.writeShort(body);
+
+                out.writeShort(1);
+                out.writeShort(0x0012); // private final
+                out.writeShort(k);
+                out.writeShort(kType);
+                out.writeShort(0);
+
+                out.writeShort(2);
+                method(out, init, initType, codeName, 2, 2,
+                    ctor, ctor.length, new int[0]);
+                method(out, run, runType, codeName, maxStack, 2,
+                    code, pc, handlers);
+
+                out.writeShort(0);
+            }
+            catch (IOException e) { throw new IllegalStateException(e); }
+            return bytes.toByteArray();
+        }
+
+        private static void method(
+            DataOutputStream out, int name, int type, int codeName,
+            int maxStack, int maxLocals, byte[] code, int length, int[] handlers
+        ) throws IOException {
+            out.writeShort(0x0001); // public
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeName);
+            out.writeInt(12 + length + handlers.length * 2);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(length);
+            out.write(code, 0, length);
+            out.writeShort(handlers.length / 4);
+            for (int value : handlers) out.writeShort(value);
+            out.writeShort(0);
+        }
+    }
+
+    // MARK: Run time
+    // Called from compiled code, and kept small enough for HotSpot to inline.
+    static Object load(Interpreter intr, int depth, int slot, String name) {
+        final Object value = intr.scopes[intr.top - depth].slots[slot];
+        if (value == Frame.UNSET)
+            throw new ScriptException.Variable(
+                "Variable %s is undefined", name
+            );
+        return value;
+    }
+
+    static ScriptException at(ScriptException e, Interpreter intr, int line) {
+        return intr.at(e, line);
+    }
+
+    static Object store(Interpreter intr, Object value, int depth, int slot) {
+        intr.scopes[intr.top - depth].slots[slot] = value;
+        return value;
+    }
+
+    static Object store(Interpreter intr, Object value, String name) {
+        intr.setVar(name, value);
+        return value;
+    }
+
+    static Object define(
+        Interpreter intr, Object value, int slot, String name
+    ) {
+        intr.defineVar(slot, name, value);
+        return value;
+    }
+
+    static boolean truth(Object value, Interpreter intr) {
+        return (boolean) Types.castValue(intr, "boolean", value);
+    }
+
+    static boolean test(Object value) { return (Boolean) value; }
+
+    static List<Object> list(Object[] items) {
+        final List<Object> list = new ArrayList<>(items.length);
+        for (Object item : items) list.add(item);
+        return list;
+    }
+
+    static Map<String, Object> map(String[] keys, Object[] values) {
+        final Map<String, Object> map = new HashMap<>(keys.length);
+        for (int i = 0; i < keys.length; i += 1) map.put(keys[i], values[i]);
+        return map;
+    }
+}
@@ -6,6 +6,12 @@ import java.util.stream.Collectors;
 // MARK: NodeScope
 class NodeProgram {
     final List<NodeStmt> stmts;
+
+    // Names of the slots the global frame is given while the program runs,
+    // for expressions the Optimiser shares at the top level. Set by the
+    // Resolver, null if there are none.
+    String[] locals = null;
+
     NodeProgram(List<NodeStmt> s) { stmts = s; }
     public String toString() {
         return String.join("", 
@@ -17,6 +23,11 @@ class NodeProgram {
 
 class NodeScope {
     final List<NodeStmt> stmts;
+
+    // Names of the variables declared directly in this scope, in slot order.
+    // Set by the Resolver, null until then.
+    String[] locals = null;
+
     NodeScope(List<NodeStmt> s) { stmts = s; }
     public String toString() {
         return "{\n" + 
@@ -41,6 +52,10 @@ enum AssignOp {
 }
 
 abstract class NodeStmt {
+    // The line of errors the statement raises itself, outside of any of its
+    // expressions, or -1 if it raises none.
+    int line() { return -1; }
+
     static class If extends NodeStmt {
         final NodeExpr expr; final NodeScope succ, fail;
         If (NodeExpr e, NodeScope s, NodeScope f) { 
@@ -57,6 +72,12 @@ abstract class NodeStmt {
 
     static class While extends NodeStmt {
         final NodeExpr expr; final NodeScope scope; 
+
+        // Profile for the tiered engine: back edges taken in the tree walker
+        // over every run of the script, and the loop once it is compiled.
+        int backEdges = 0;
+        volatile Interpreter.Body compiled = null;
+
         While(NodeExpr e, NodeScope s) { expr = e; scope = s; }
         public void host(Visitor v) { v.visit(this);  }
         public String toString() { 
@@ -66,13 +87,18 @@ abstract class NodeStmt {
 
     static class ForEach extends NodeStmt {
         final String itr; final NodeTerm list; final NodeScope scope; 
+        final int line;
+        String[] locals = null; int slot = -1;
+        int backEdges = 0;
+        volatile Closures.Resume compiled = null;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("for (%s in %s) %s", itr, list, scope); 
         } 
-        ForEach(String i, NodeTerm l, NodeScope s) { 
-            itr = i; list = l; scope = s; 
+        ForEach(String i, NodeTerm l, NodeScope s, int ln) { 
+            itr = i; list = l; scope = s; line = ln;
         }
+        int line() { return line; }
     }
 
     static class For extends NodeStmt {
@@ -80,6 +106,9 @@ abstract class NodeStmt {
         final NodeExpr cond; 
         final NodeStmt inc; 
         final NodeScope scope;
+        String[] locals = null;
+        int backEdges = 0;
+        volatile Interpreter.Body compiled = null;
         public void host(Visitor v) { v.visit(this);  }
         public String toString() { 
             return String.format("for (%s;%s;%s) %s", init, cond, inc, scope); 
@@ -98,11 +127,13 @@ abstract class NodeStmt {
 
     static class Declare extends NodeStmt {
         final String var; final NodeExpr expr;
+        int slot = -1;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("let %s = %s", var, expr); 
         } 
         Declare(String q, NodeExpr e) { var = q; expr = e; }
+        int line() { return expr == null ? -1 : expr.line; }
     }
     
     static class Assign extends NodeStmt {
@@ -114,6 +145,7 @@ abstract class NodeStmt {
         Assign(AssignOp o, NodeTerm q, NodeExpr e) { 
             op = o; term = q; expr = e; 
         }
+        int line() { return expr == null ? -1 : expr.line; }
     }
 
     static class Expr extends NodeStmt {
@@ -125,11 +157,17 @@ abstract class NodeStmt {
 
     static class Return extends NodeStmt {
         final NodeExpr expr;
+
+        // The call the expression is, if it is one the function can leave to
+        // its caller to make. Set by the Resolver.
+        NodeTerm.Call tail = null;
+
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return "return" + (expr == null ? "" : " " + expr);
         } 
         Return(NodeExpr e) { expr = e; }
+        int line() { return expr == null ? -1 : expr.line; }
     }
     
     static class Break extends NodeStmt {
@@ -146,9 +184,18 @@ abstract class NodeStmt {
         final String name;
         final List<NodeParam> params;
         final NodeScope body;
+        final NodeExpr.Lambda lambda;
+        int slot = -1;
+
+        // Annotations: how many results @memo keeps, 0 without it, and
+        // whether the function was declared @pure.
+        final int memo;
+        final boolean pure;
+
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
-            return String.format("function %s (%s) %s", 
+            return String.format("%s%sfunction %s (%s) %s", 
+                memo > 0 ? "@memo(" + memo + ") " : "", pure ? "@pure " : "",
                 name,  
                 String.join(", ", 
                     params.stream()
@@ -156,14 +203,17 @@ abstract class NodeStmt {
                     .collect(Collectors.toList())), 
                 body); 
         } 
-        Function(String e, List<NodeParam> a, NodeScope b) { 
-            name = e; params = a; body = b; 
+        Function(String e, List<NodeParam> a, NodeScope b, int m, boolean p) {
+            name = e; params = a; body = b; memo = m; pure = p;
+            lambda = new NodeExpr.Lambda(a, b, 0);
+            lambda.memo = m;
         }
     }
 
     static class TryCatch extends NodeStmt {
         final NodeScope _try, _catch, _finally;
         final String err;
+        String[] locals = null; int slot = -1;
         public void host(Visitor v) { v.visit(this); }
         public String toString() { 
             return String.format("try %s%s%s",
@@ -200,6 +250,7 @@ abstract class NodeStmt {
 
 class NodeParam {
     final String param; final NodeExpr _default;
+    int slot = -1;
     NodeParam(String p, NodeExpr e) { param = p; _default = e; }
     public String toString() { 
         return param + (_default == null ? "" : (" = " + _default)); 
@@ -229,6 +280,10 @@ abstract class NodeExpr {
     public static final NodeExpr NULL = new NodeExpr.Term(NodeTerm.NULL, 0);
     static class Binary extends NodeExpr {
         final NodeTerm lhs, rhs; final BinaryOp op;
+
+        // The kind of operands seen so far, see Calculations.binary.
+        byte state = 0;
+
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { 
             return String.format("%s %s %s", lhs, op, rhs); 
@@ -248,6 +303,22 @@ abstract class NodeExpr {
     static class Lambda extends NodeExpr {
         final List<NodeParam> params;
         final NodeScope body;
+
+        // The parameters again, to bind arguments by index when called.
+        final NodeParam[] bindings;
+        String[] locals = null;
+
+        // Names the function looks up by name, which are all it needs to
+        // capture. Null if it has to capture everything visible.
+        String[] free = null;
+
+        // Results to keep when the function is declared @memo, 0 if none.
+        int memo = 0;
+
+        // Profile for the tiered engine, as for loops.
+        int calls = 0;
+        volatile Interpreter.Body compiled = null;
+
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() {
             final String ps = String.join(", ", 
@@ -266,6 +337,7 @@ abstract class NodeExpr {
         } 
         Lambda(List<NodeParam> a, NodeScope b, int ln) { 
             super(ln); params = a; body = b; 
+            bindings = a.toArray(new NodeParam[0]);
         }
     }
 
@@ -327,6 +399,7 @@ abstract class NodeTerm {
 
     static class UnaryExpr extends NodeTerm {
         final UnaryOp op; final NodeTerm val;
+        byte state = 0;
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { return String.format("%s%s", op, val); }
         UnaryExpr(UnaryOp o, NodeTerm v) { op = o; val = v; }
@@ -343,6 +416,11 @@ abstract class NodeTerm {
     
     static class Variable extends NodeTerm {
         public final String var;
+
+        // Lexical address: how many frames up, and which slot. A negative 
+        // slot means the variable has to be looked up by name.
+        int depth = -1, slot = -1;
+
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { return var; } 
         public Variable(String v) { this.var = v; }
@@ -372,6 +450,10 @@ abstract class NodeTerm {
     
     static class Call extends NodeTerm {
         final NodeTerm f; final List<NodeExpr> args;
+
+        // What the call last resolved to, if it calls a host method.
+        final Host.Site site = new Host.Site();
+
         public <R> R host(Visitor v) { return v.visit(this); }
         public String toString() { 
             return String.format("%s(%s)", f, String.join(", ", args.stream()
@@ -391,6 +473,44 @@ abstract class NodeTerm {
         public Cast(NodeTerm o, NodeType t) { object = o; type = t; }
     }
 
+    // An expression the Optimiser found to give the same value every time
+    // round a loop, or every time it is written in a block. It is worked out
+    // where it stands, the first time it is reached, and kept in a slot of
+    // the owning scope: the scope the loop was wrapped in, or the block. The
+    // owner is null for the program itself.
+    static class Hoisted extends NodeTerm {
+        final NodeExpr expr; final NodeScope owner;
+
+        // Whether it only reads a value out of a list or map, which is then
+        // the same value whatever it is.
+        final boolean read;
+
+        // Address of its slot, set by the Resolver.
+        int depth = -1, slot = -1;
+
+        public <R> R host(Visitor v) { return v.visit(this); }
+        public String toString() { return expr.toString(); }
+        Hoisted(NodeExpr e, NodeScope o) {
+            expr = e; owner = o;
+            read = e instanceof NodeExpr.Term &&
+                (((NodeExpr.Term) e).val instanceof PropAccess ||
+                ((NodeExpr.Term) e).val instanceof ArrayAccess);
+        }
+    }
+
+    // A call the Optimiser put the body of the function in place of. Its
+    // arguments are worked out in order into the slots of its parameters,
+    // which the body reads as hoisted expressions. The call is kept to be
+    // printed and serialised as it was.
+    static class Inline extends NodeTerm {
+        final Call call; final Hoisted[] params; final NodeExpr body;
+        public <R> R host(Visitor v) { return v.visit(this); }
+        public String toString() { return call.toString(); }
+        Inline(Call c, Hoisted[] p, NodeExpr b) {
+            call = c; params = p; body = b;
+        }
+    }
+
     abstract public String toString();
     abstract <R> R host(Visitor term);
     interface Visitor {
@@ -404,6 +524,8 @@ abstract class NodeTerm {
         <R> R visit(Literal<?> lit);
         <R> R visit(Call call);
         <R> R visit(Cast cast);
+        <R> R visit(Hoisted hoisted);
+        <R> R visit(Inline inline);
     }
 }
 
@@ -0,0 +1,1382 @@
+package smg.interpreter;
+
+import static smg.interpreter.Calculations.*;
+import static smg.interpreter.Types.*;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/*
+ * Optimiser
+ *
+ * A pass over a parsed program, before it is resolved, that rewrites it into
+ * one that does the same with less work. The program given is left as it is.
+ *
+ * Constants are folded: operators, casts and parentheses over literals are
+ * worked out once, by Calculations, so they give exactly what they would have
+ * given at run time. Anything that fails, or gives something that is not a
+ * literal, is left to fail or run at run time as before. An and or an or with
+ * a literal on the left is replaced by the side it would have given.
+ *
+ * Constants are propagated: a variable declared once in the whole program,
+ * with a literal, and never assigned to, is replaced by its literal wherever
+ * it is used after its declaration and within its scope. A name declared more
+ * than once could be reached by name from somewhere else, so it is left alone.
+ * So is a variable declared at the top of the program, which is a global the
+ * host can change through the Interpreter while the script runs or between
+ * runs.
+ *
+ * Dead code is pruned: an if on a literal is replaced by the branch it takes,
+ * a while on false is dropped, and so is everything after a return, break or
+ * continue in the same block.
+ *
+ * Loop invariants are hoisted: an expression in a loop that gives the same
+ * value every time round is worked out once, the first time it is reached,
+ * and kept for the rest of the loop. Working it out where it stands, rather
+ * than before the loop, means it still fails, or is never worked out at all,
+ * exactly as it would have been. The loop is wrapped in a scope to keep the
+ * value in, so it is worked out again each time the loop is run. Only values
+ * that cannot change are kept, see Interpreter.hoisted. An expression is only
+ * invariant if it reads nothing the loop writes to, so a loop that calls any
+ * function other than a @pure one, or assigns into a list or map, is left as
+ * it is. A @pure function is only as pure as its body: one that assigns into
+ * a list or map, or calls a function it was given, counts as doing so too.
+ *
+ * Common subexpressions are shared: an expression written more than once in
+ * the statements of one block, with nothing in between writing to what it
+ * reads, is worked out the first time it is reached and kept for the rest,
+ * in the same way. Reads out of lists and maps are kept whatever they give,
+ * as they give the same list or map again. A statement that calls anything
+ * not known to be pure, between its expressions or as a side effect, ends
+ * what can be shared across it. Host functions named as pure when compiling
+ * count as pure here and in loops, unless the script declares or assigns
+ * their name.
+ *
+ * Small functions are inlined: a call, by name, to a function declared once
+ * and never assigned to, whose body only returns one small expression, is
+ * replaced by that expression. The arguments are worked out in order into
+ * hidden slots of the calling block, which the expression reads in place of
+ * the parameters. A function is only inlined if its expression makes no
+ * functions, changes no variable, and reads nothing but its parameters,
+ * other functions that are never rebound, and host functions, so that it
+ * gives the same wherever it is put. Recursive functions, @memo functions,
+ * functions with default values, and those ending in a call that would be
+ * made in constant stack are left alone, and so is every function if the
+ * script uses global, as it can rebind any name.
+ *
+ * The program is rewritten twice. The first time counts declarations and
+ * assignments, and folds what it can. The second time propagates constants
+ * with these counts, and folds what that makes constant.
+ */
+final class Optimiser {
+
+    // Declarations of each name, names assigned to, and the names of @pure
+    // functions, from the first pass.
+    private final Map<String, Integer> declared = new HashMap<>();
+    private final Set<String> assigned = new HashSet<>();
+    private final Set<String> pures = new HashSet<>();
+
+    // What a call to each @pure function may still do to its caller, once
+    // the first pass is done: write to a list or map it was given, or call a
+    // function it was given, which could do anything.
+    private final Map<String, NodeExpr.Lambda> bodies = new HashMap<>();
+    private final Map<String, Effects> effectsOf = new HashMap<>();
+
+    // Host functions named as pure.
+    private final Set<String> hosts;
+    private boolean propagate = false;
+
+    // Whether the program uses global, from the first pass.
+    private boolean rebinds = false;
+
+    // Functions that can be called by name at the current point, and those
+    // of them that can be inlined, in the second pass. Calls are inlined into
+    // the block being rewritten, but not into default values of parameters,
+    // which are worked out in the frame of the function.
+    private final Map<String, NodeStmt.Function> functions = new HashMap<>();
+    private final Map<String, NodeStmt.Function> inlines = new HashMap<>();
+    private NodeScope owner = null;
+    private boolean inlining = true;
+
+    // Constants that can be used at the current point, and the names of
+    // those declared in each scope open around it.
+    private final Map<String, NodeTerm.Literal<?>> constants = new HashMap<>();
+    private final ArrayDeque<List<String>> scopes = new ArrayDeque<>();
+
+    private Optimiser(Set<String> hosts) { this.hosts = hosts; }
+
+    static NodeProgram optimise(NodeProgram program, Set<String> hosts) {
+        if (program == null) return null;
+        final Optimiser optimiser = new Optimiser(hosts);
+        final NodeProgram folded = optimiser.program(program);
+        optimiser.pures();
+        optimiser.propagate = true;
+        return optimiser.program(folded);
+    }
+
+    private NodeProgram program(NodeProgram program) {
+        enter();
+        final NodeProgram result = new NodeProgram(stmts(program.stmts));
+        exit();
+        share(result.stmts, null);
+        return result;
+    }
+
+    // MARK: Scopes
+    private void enter() { scopes.push(new ArrayList<>()); }
+    private void exit() {
+        for (String name : scopes.pop()) {
+            constants.remove(name);
+            functions.remove(name);
+            inlines.remove(name);
+        }
+    }
+
+    private void declare(String name, NodeExpr value) {
+        if (!propagate) {
+            declared.merge(name, 1, Integer::sum);
+            return;
+        }
+        if (scopes.size() > 1 && declared.get(name) == 1 &&
+            !assigned.contains(name) && literal(value)) {
+            constants.put(name, literalOf(value));
+            scopes.peek().add(name);
+        }
+    }
+
+    private NodeScope scope(NodeScope node) {
+        if (node == null) return null;
+        final NodeScope outer = owner;
+        final NodeScope scope = new NodeScope(new ArrayList<>());
+        owner = scope;
+        enter();
+        scope.stmts.addAll(stmts(node.stmts));
+        exit();
+        owner = outer;
+        share(scope.stmts, scope);
+        return scope;
+    }
+
+    // Nothing after a jump in the same block is ever reached.
+    private List<NodeStmt> stmts(List<NodeStmt> stmts) {
+        final List<NodeStmt> result = new ArrayList<>(stmts.size());
+        for (NodeStmt stmt : stmts) {
+            final NodeStmt s = stmt(stmt);
+            if (s != null) result.add(s);
+            if (s instanceof NodeStmt.Return || s instanceof NodeStmt.Break ||
+                s instanceof NodeStmt.Continue) break;
+        }
+        return result;
+    }
+
+    // MARK: Statements
+    // Returns null for a statement that does nothing.
+    private NodeStmt stmt(NodeStmt node) {
+        if (node == null) return null;
+        else if (node instanceof NodeStmt.Declare) {
+            final NodeStmt.Declare s = (NodeStmt.Declare) node;
+            final NodeExpr expr = expr(s.expr);
+            declare(s.var, expr);
+            return new NodeStmt.Declare(s.var, expr);
+        }
+        else if (node instanceof NodeStmt.Assign) {
+            final NodeStmt.Assign s = (NodeStmt.Assign) node;
+            return new NodeStmt.Assign(s.op, target(s.term), expr(s.expr));
+        }
+        else if (node instanceof NodeStmt.If) {
+            final NodeStmt.If s = (NodeStmt.If) node;
+            final NodeExpr expr = expr(s.expr);
+            if (!literal(expr))
+                return new NodeStmt.If(expr, scope(s.succ), scope(s.fail));
+
+            final NodeScope taken =
+                (Boolean) castValue(null, "boolean", value(expr)) ?
+                s.succ : s.fail;
+            return taken == null ? null : new NodeStmt.Scope(scope(taken));
+        }
+        else if (node instanceof NodeStmt.While) {
+            final NodeStmt.While s = (NodeStmt.While) node;
+            final NodeExpr expr = expr(s.expr);
+            if (literal(expr) && Boolean.FALSE.equals(value(expr))) return null;
+            return hoist(new NodeStmt.While(expr, scope(s.scope)));
+        }
+        else if (node instanceof NodeStmt.For) {
+            final NodeStmt.For s = (NodeStmt.For) node;
+            enter();
+            final NodeStmt.Declare init = (NodeStmt.Declare) stmt(s.init);
+            final NodeExpr cond = expr(s.cond);
+            final NodeScope scope = scope(s.scope);
+            final NodeStmt inc = stmt(s.inc);
+            exit();
+            return hoist(new NodeStmt.For(init, cond, inc, scope));
+        }
+        else if (node instanceof NodeStmt.ForEach) {
+            final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+            final NodeTerm list = term(s.list);
+            enter();
+            declare(s.itr, null);
+            final NodeScope scope = scope(s.scope);
+            exit();
+            return hoist(new NodeStmt.ForEach(s.itr, list, scope, s.line));
+        }
+        else if (node instanceof NodeStmt.TryCatch) {
+            final NodeStmt.TryCatch s = (NodeStmt.TryCatch) node;
+            final NodeScope t = scope(s._try);
+            enter();
+            if (s.err != null) declare(s.err, null);
+            final NodeScope c = scope(s._catch);
+            exit();
+            return new NodeStmt.TryCatch(t, c, s.err, scope(s._finally));
+        }
+        else if (node instanceof NodeStmt.Function) {
+            final NodeStmt.Function s = (NodeStmt.Function) node;
+            final NodeExpr.Lambda def = lambda(s.lambda);
+            declare(s.name, null);
+            if (s.pure && !propagate) {
+                pures.add(s.name);
+                bodies.put(s.name, def);
+            }
+            final NodeStmt.Function result = new NodeStmt.Function(
+                s.name, def.params, def.body, s.memo, s.pure
+            );
+            if (propagate) function(result);
+            return result;
+        }
+        else if (node instanceof NodeStmt.Expr) {
+            return new NodeStmt.Expr(expr(((NodeStmt.Expr) node).expr));
+        }
+        else if (node instanceof NodeStmt.Return) {
+            return new NodeStmt.Return(expr(((NodeStmt.Return) node).expr));
+        }
+        else if (node instanceof NodeStmt.Scope) {
+            return new NodeStmt.Scope(scope(((NodeStmt.Scope) node).scope));
+        }
+        return node;
+    }
+
+    // The variable at the root of an assignment is kept as it is, and counts
+    // as assigned. Assigning into a string by index assigns the variable.
+    private NodeTerm target(NodeTerm node) {
+        if (node instanceof NodeTerm.Variable) {
+            if (!propagate) assigned.add(((NodeTerm.Variable) node).var);
+            return node;
+        }
+        else if (node instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+            return new NodeTerm.ArrayAccess(target(t.array), expr(t.index));
+        }
+        else if (node instanceof NodeTerm.PropAccess) {
+            final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+            return new NodeTerm.PropAccess(target(t.object), t.prop);
+        }
+        return term(node);
+    }
+
+    // MARK: Expressions
+    private NodeExpr expr(NodeExpr node) {
+        if (node == null) return null;
+        else if (node instanceof NodeExpr.Binary) {
+            return binary((NodeExpr.Binary) node);
+        }
+        else if (node instanceof NodeExpr.Term) {
+            final NodeTerm val = term(((NodeExpr.Term) node).val);
+            return new NodeExpr.Term(val, node.line);
+        }
+        else if (node instanceof NodeExpr.Lambda) {
+            return lambda((NodeExpr.Lambda) node);
+        }
+        return node;
+    }
+
+    private NodeExpr binary(NodeExpr.Binary node) {
+        final NodeTerm lhs = term(node.lhs), rhs = term(node.rhs);
+        if (lhs instanceof NodeTerm.Literal) {
+            final Object l = ((NodeTerm.Literal<?>) lhs).lit;
+            if (node.op == BinaryOp.And || node.op == BinaryOp.Or) {
+                final boolean truth = castValue(null, "boolean", l);
+                return new NodeExpr.Term(
+                    truth == (node.op == BinaryOp.And) ? rhs : lhs, node.line
+                );
+            }
+            if (rhs instanceof NodeTerm.Literal) {
+                final Object r = ((NodeTerm.Literal<?>) rhs).lit;
+                final NodeTerm folded =
+                    fold(() -> calcBinary(null, node.op, l, r));
+                if (folded != null) return new NodeExpr.Term(folded, node.line);
+            }
+        }
+        return new NodeExpr.Binary(node.op, lhs, rhs, node.line);
+    }
+
+    // Parameters are declared one at a time, as each default value can see
+    // the parameters before it.
+    private NodeExpr.Lambda lambda(NodeExpr.Lambda def) {
+        final List<NodeParam> params = new ArrayList<>(def.params.size());
+        final boolean outer = inlining;
+        enter();
+        for (NodeParam param : def.params) {
+            inlining = false;
+            final NodeExpr value = expr(param._default);
+            inlining = outer;
+            declare(param.param, null);
+            params.add(new NodeParam(param.param, value));
+        }
+        final NodeScope body = scope(def.body);
+        exit();
+        return new NodeExpr.Lambda(params, body, def.line);
+    }
+
+    // MARK: Terms
+    private NodeTerm term(NodeTerm node) {
+        if (node instanceof NodeTerm.Variable) {
+            final String var = ((NodeTerm.Variable) node).var;
+            if (!propagate && var.equals("global")) rebinds = true;
+            return constants.containsKey(var) ? constants.get(var) : node;
+        }
+        else if (node instanceof NodeTerm.Expr) {
+            final NodeExpr expr = expr(((NodeTerm.Expr) node).expr);
+            return literal(expr) ? literalOf(expr) : new NodeTerm.Expr(expr);
+        }
+        else if (node instanceof NodeTerm.ArrayLiteral) {
+            final List<NodeExpr> items = ((NodeTerm.ArrayLiteral) node).items;
+            final List<NodeExpr> result = new ArrayList<>(items.size());
+            for (NodeExpr item : items) result.add(expr(item));
+            return new NodeTerm.ArrayLiteral(result);
+        }
+        else if (node instanceof NodeTerm.MapLiteral) {
+            final List<NodeMapEntry> items = ((NodeTerm.MapLiteral) node).items;
+            final List<NodeMapEntry> result = new ArrayList<>(items.size());
+            for (NodeMapEntry item : items)
+                result.add(new NodeMapEntry(item.key, expr(item.value)));
+            return new NodeTerm.MapLiteral(result);
+        }
+        else if (node instanceof NodeTerm.UnaryExpr) {
+            final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+            final NodeTerm val = term(t.val);
+            if (val instanceof NodeTerm.Literal &&
+                (t.op == UnaryOp.Negate || t.op == UnaryOp.Not)) {
+                final Object v = ((NodeTerm.Literal<?>) val).lit;
+                final NodeTerm folded = fold(() -> calcUnary(null, t.op, v));
+                if (folded != null) return folded;
+            }
+            return new NodeTerm.UnaryExpr(t.op, val);
+        }
+        else if (node instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+            return new NodeTerm.ArrayAccess(term(t.array), expr(t.index));
+        }
+        else if (node instanceof NodeTerm.PropAccess) {
+            final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+            return new NodeTerm.PropAccess(term(t.object), t.prop);
+        }
+        else if (node instanceof NodeTerm.Call) {
+            final NodeTerm.Call t = (NodeTerm.Call) node;
+            final List<NodeExpr> args = new ArrayList<>(t.args.size());
+            for (NodeExpr arg : t.args) args.add(expr(arg));
+            return inline(new NodeTerm.Call(term(t.f), args));
+        }
+        else if (node instanceof NodeTerm.Cast) {
+            final NodeTerm.Cast t = (NodeTerm.Cast) node;
+            final NodeTerm object = term(t.object);
+            if (object instanceof NodeTerm.Literal) {
+                final Object v = ((NodeTerm.Literal<?>) object).lit;
+                final NodeTerm folded =
+                    fold(() -> castValue(null, t.type.type, v));
+                if (folded != null) return folded;
+            }
+            return new NodeTerm.Cast(object, t.type);
+        }
+        else if (node instanceof NodeTerm.Hoisted) {
+            // Given a program optimised already. It is hoisted again.
+            return new NodeTerm.Expr(expr(((NodeTerm.Hoisted) node).expr));
+        }
+        else if (node instanceof NodeTerm.Inline) {
+            return term(((NodeTerm.Inline) node).call);
+        }
+        return node;
+    }
+
+    // MARK: Loop invariants
+    // What a loop may change each time round.
+    private static final class Effects {
+        final Set<String> written = new HashSet<>();
+        boolean heap = false, calls = false;
+    }
+
+    // The loop, wrapped in a scope to keep its invariants in if it has any.
+    private NodeStmt hoist(NodeStmt loop) {
+        if (!propagate) return loop;
+        final Effects effects = new Effects();
+        effects(loop, effects);
+        if (effects.heap || effects.calls) return loop;
+
+        final List<NodeStmt> stmts = new ArrayList<>(1);
+        final NodeScope owner = new NodeScope(stmts);
+        final Hoister hoister = new Hoister(effects.written, owner);
+        final NodeStmt result;
+        if (loop instanceof NodeStmt.While) {
+            final NodeStmt.While s = (NodeStmt.While) loop;
+            result = new NodeStmt.While(
+                hoister.expr(s.expr), hoister.scope(s.scope)
+            );
+        }
+        else if (loop instanceof NodeStmt.For) {
+            final NodeStmt.For s = (NodeStmt.For) loop;
+            result = new NodeStmt.For(s.init, hoister.expr(s.cond),
+                hoister.stmt(s.inc), hoister.scope(s.scope));
+        }
+        else {
+            final NodeStmt.ForEach s = (NodeStmt.ForEach) loop;
+            result = new NodeStmt.ForEach(
+                s.itr, s.list, hoister.scope(s.scope), s.line
+            );
+        }
+        if (!hoister.hoisted) return loop;
+        stmts.add(result);
+        return new NodeStmt.Scope(owner);
+    }
+
+    // A call is only known to be pure if it calls a @pure function by a name
+    // declared once, by that function, and never assigned to, or a host
+    // function named as pure by a name the script leaves alone.
+    private boolean pure(NodeTerm f) {
+        if (!(f instanceof NodeTerm.Variable)) return false;
+        final String name = ((NodeTerm.Variable) f).var;
+        if (assigned.contains(name)) return false;
+        if (pures.contains(name)) return declared.get(name) == 1;
+        return hosts.contains(name) && !declared.containsKey(name);
+    }
+
+    // A pure call that does nothing to its caller either, so that it can be
+    // made once in place of twice.
+    private boolean harmless(NodeTerm f) {
+        if (!pure(f)) return false;
+        final Effects e = effectsOf.get(((NodeTerm.Variable) f).var);
+        return e == null || !e.heap && !e.calls;
+    }
+
+    // Work out what each @pure function may do, over and over until nothing
+    // changes, as they may call each other. One that declares a name it
+    // could call as a @pure function may be calling something else by it.
+    private void pures() {
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (String name : pures) {
+                final Effects e = new Effects();
+                effects(bodies.get(name), e);
+                if (!Collections.disjoint(e.written, pures)) e.calls = true;
+                final Effects old = effectsOf.get(name);
+                if (old == null || e.heap != old.heap || e.calls != old.calls)
+                    changed = true;
+                effectsOf.put(name, e);
+            }
+        }
+    }
+
+    private void effects(NodeScope node, Effects e) {
+        if (node != null) for (NodeStmt stmt : node.stmts) effects(stmt, e);
+    }
+
+    private void effects(NodeStmt node, Effects e) {
+        if (node instanceof NodeStmt.Declare) {
+            e.written.add(((NodeStmt.Declare) node).var);
+            effects(((NodeStmt.Declare) node).expr, e);
+        }
+        else if (node instanceof NodeStmt.Assign) {
+            final NodeStmt.Assign s = (NodeStmt.Assign) node;
+            NodeTerm root = s.term;
+            while (!(root instanceof NodeTerm.Variable)) {
+                e.heap = true;
+                if (root instanceof NodeTerm.ArrayAccess) {
+                    effects(((NodeTerm.ArrayAccess) root).index, e);
+                    root = ((NodeTerm.ArrayAccess) root).array;
+                }
+                else if (root instanceof NodeTerm.PropAccess)
+                    root = ((NodeTerm.PropAccess) root).object;
+                else { effects(root, e); break; }
+            }
+            if (root instanceof NodeTerm.Variable)
+                e.written.add(((NodeTerm.Variable) root).var);
+            effects(s.expr, e);
+        }
+        else if (node instanceof NodeStmt.If) {
+            final NodeStmt.If s = (NodeStmt.If) node;
+            effects(s.expr, e);
+            effects(s.succ, e);
+            effects(s.fail, e);
+        }
+        else if (node instanceof NodeStmt.While) {
+            effects(((NodeStmt.While) node).expr, e);
+            effects(((NodeStmt.While) node).scope, e);
+        }
+        else if (node instanceof NodeStmt.For) {
+            final NodeStmt.For s = (NodeStmt.For) node;
+            effects(s.init, e);
+            effects(s.cond, e);
+            effects(s.inc, e);
+            effects(s.scope, e);
+        }
+        else if (node instanceof NodeStmt.ForEach) {
+            final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+            e.written.add(s.itr);
+            effects(s.list, e);
+            effects(s.scope, e);
+        }
+        else if (node instanceof NodeStmt.TryCatch) {
+            final NodeStmt.TryCatch s = (NodeStmt.TryCatch) node;
+            if (s.err != null) e.written.add(s.err);
+            effects(s._try, e);
+            effects(s._catch, e);
+            effects(s._finally, e);
+        }
+        else if (node instanceof NodeStmt.Function) {
+            e.written.add(((NodeStmt.Function) node).name);
+            effects(((NodeStmt.Function) node).lambda, e);
+        }
+        else if (node instanceof NodeStmt.Expr) {
+            effects(((NodeStmt.Expr) node).expr, e);
+        }
+        else if (node instanceof NodeStmt.Return) {
+            effects(((NodeStmt.Return) node).expr, e);
+        }
+        else if (node instanceof NodeStmt.Scope) {
+            effects(((NodeStmt.Scope) node).scope, e);
+        }
+    }
+
+    private void effects(NodeExpr node, Effects e) {
+        if (node instanceof NodeExpr.Binary) {
+            effects(((NodeExpr.Binary) node).lhs, e);
+            effects(((NodeExpr.Binary) node).rhs, e);
+        }
+        else if (node instanceof NodeExpr.Term) {
+            effects(((NodeExpr.Term) node).val, e);
+        }
+        else if (node instanceof NodeExpr.Lambda) {
+            final NodeExpr.Lambda def = (NodeExpr.Lambda) node;
+            for (NodeParam param : def.params) {
+                e.written.add(param.param);
+                effects(param._default, e);
+            }
+            effects(def.body, e);
+        }
+    }
+
+    private void effects(NodeTerm node, Effects e) {
+        if (node instanceof NodeTerm.Expr) {
+            effects(((NodeTerm.Expr) node).expr, e);
+        }
+        else if (node instanceof NodeTerm.ArrayLiteral) {
+            for (NodeExpr item : ((NodeTerm.ArrayLiteral) node).items)
+                effects(item, e);
+        }
+        else if (node instanceof NodeTerm.MapLiteral) {
+            for (NodeMapEntry item : ((NodeTerm.MapLiteral) node).items)
+                effects(item.value, e);
+        }
+        else if (node instanceof NodeTerm.UnaryExpr) {
+            effects(((NodeTerm.UnaryExpr) node).val, e);
+        }
+        else if (node instanceof NodeTerm.ArrayAccess) {
+            effects(((NodeTerm.ArrayAccess) node).array, e);
+            effects(((NodeTerm.ArrayAccess) node).index, e);
+        }
+        else if (node instanceof NodeTerm.PropAccess) {
+            effects(((NodeTerm.PropAccess) node).object, e);
+        }
+        else if (node instanceof NodeTerm.Call) {
+            final NodeTerm.Call t = (NodeTerm.Call) node;
+            if (!pure(t.f)) e.calls = true;
+            else {
+                final Effects f =
+                    effectsOf.get(((NodeTerm.Variable) t.f).var);
+                if (f != null) { e.heap |= f.heap; e.calls |= f.calls; }
+            }
+            effects(t.f, e);
+            for (NodeExpr arg : t.args) effects(arg, e);
+        }
+        else if (node instanceof NodeTerm.Cast) {
+            effects(((NodeTerm.Cast) node).object, e);
+        }
+        else if (node instanceof NodeTerm.Hoisted) {
+            effects(((NodeTerm.Hoisted) node).expr, e);
+        }
+        else if (node instanceof NodeTerm.Inline) {
+            final NodeTerm.Inline t = (NodeTerm.Inline) node;
+            for (NodeTerm.Hoisted param : t.params) effects(param.expr, e);
+            effects(t.body, e);
+        }
+    }
+
+    // Rewrites the inside of one loop, replacing the largest invariant parts
+    // of each expression. Functions defined in the loop are left as they are,
+    // and so are inlined calls and hoisted expressions of loops inside it
+    // that are not invariant in this one.
+    private final class Hoister {
+        final Set<String> written;
+        final NodeScope owner;
+        boolean hoisted = false;
+
+        Hoister(Set<String> written, NodeScope owner) {
+            this.written = written; this.owner = owner;
+        }
+
+        // Scopes are rewritten in place, as expressions shared within them
+        // are owned by them.
+        NodeScope scope(NodeScope node) {
+            if (node == null) return null;
+            for (int i = 0; i < node.stmts.size(); i += 1)
+                node.stmts.set(i, stmt(node.stmts.get(i)));
+            return node;
+        }
+
+        NodeStmt stmt(NodeStmt node) {
+            if (node instanceof NodeStmt.Declare) {
+                final NodeStmt.Declare s = (NodeStmt.Declare) node;
+                return new NodeStmt.Declare(s.var, expr(s.expr));
+            }
+            else if (node instanceof NodeStmt.Assign) {
+                final NodeStmt.Assign s = (NodeStmt.Assign) node;
+                return new NodeStmt.Assign(s.op, s.term, expr(s.expr));
+            }
+            else if (node instanceof NodeStmt.If) {
+                final NodeStmt.If s = (NodeStmt.If) node;
+                return new NodeStmt.If(
+                    expr(s.expr), scope(s.succ), scope(s.fail)
+                );
+            }
+            else if (node instanceof NodeStmt.While) {
+                final NodeStmt.While s = (NodeStmt.While) node;
+                return new NodeStmt.While(expr(s.expr), scope(s.scope));
+            }
+            else if (node instanceof NodeStmt.For) {
+                final NodeStmt.For s = (NodeStmt.For) node;
+                return new NodeStmt.For((NodeStmt.Declare) stmt(s.init),
+                    expr(s.cond), stmt(s.inc), scope(s.scope));
+            }
+            else if (node instanceof NodeStmt.ForEach) {
+                final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+                return new NodeStmt.ForEach(
+                    s.itr, term(s.list, s.line), scope(s.scope), s.line
+                );
+            }
+            else if (node instanceof NodeStmt.TryCatch) {
+                final NodeStmt.TryCatch s = (NodeStmt.TryCatch) node;
+                return new NodeStmt.TryCatch(
+                    scope(s._try), scope(s._catch), s.err, scope(s._finally)
+                );
+            }
+            else if (node instanceof NodeStmt.Expr) {
+                return new NodeStmt.Expr(expr(((NodeStmt.Expr) node).expr));
+            }
+            else if (node instanceof NodeStmt.Return) {
+                return new NodeStmt.Return(
+                    expr(((NodeStmt.Return) node).expr)
+                );
+            }
+            else if (node instanceof NodeStmt.Scope) {
+                return new NodeStmt.Scope(scope(((NodeStmt.Scope) node).scope));
+            }
+            return node;
+        }
+
+        NodeExpr expr(NodeExpr node) {
+            if (node instanceof NodeExpr.Binary) {
+                final NodeExpr.Binary e = (NodeExpr.Binary) node;
+                if (invariant(node)) return hoisted(node);
+                return new NodeExpr.Binary(
+                    e.op, term(e.lhs, e.line), term(e.rhs, e.line), e.line
+                );
+            }
+            else if (node instanceof NodeExpr.Term) {
+                final NodeExpr.Term e = (NodeExpr.Term) node;
+                return new NodeExpr.Term(term(e.val, e.line), e.line);
+            }
+            return node;
+        }
+
+        NodeTerm term(NodeTerm node, int line) {
+            if (node instanceof NodeTerm.Hoisted) {
+                final NodeExpr expr = ((NodeTerm.Hoisted) node).expr;
+                return invariant(expr) ? hoisted(expr).val : node;
+            }
+            if (invariant(node)) {
+                if (node instanceof NodeTerm.Literal ||
+                    node instanceof NodeTerm.Variable) return node;
+                return hoisted(new NodeExpr.Term(node, line)).val;
+            }
+
+            if (node instanceof NodeTerm.Expr) {
+                return new NodeTerm.Expr(expr(((NodeTerm.Expr) node).expr));
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                final List<NodeExpr> items =
+                    ((NodeTerm.ArrayLiteral) node).items;
+                final List<NodeExpr> result = new ArrayList<>(items.size());
+                for (NodeExpr item : items) result.add(expr(item));
+                return new NodeTerm.ArrayLiteral(result);
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                final List<NodeMapEntry> items =
+                    ((NodeTerm.MapLiteral) node).items;
+                final List<NodeMapEntry> result = new ArrayList<>(items.size());
+                for (NodeMapEntry item : items)
+                    result.add(new NodeMapEntry(item.key, expr(item.value)));
+                return new NodeTerm.MapLiteral(result);
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                return new NodeTerm.UnaryExpr(t.op, term(t.val, line));
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                return new NodeTerm.ArrayAccess(
+                    term(t.array, line), expr(t.index)
+                );
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+                return new NodeTerm.PropAccess(term(t.object, line), t.prop);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                final List<NodeExpr> args = new ArrayList<>(t.args.size());
+                for (NodeExpr arg : t.args) args.add(expr(arg));
+                return new NodeTerm.Call(term(t.f, line), args);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast t = (NodeTerm.Cast) node;
+                return new NodeTerm.Cast(term(t.object, line), t.type);
+            }
+            return node;
+        }
+
+        private NodeExpr.Term hoisted(NodeExpr expr) {
+            hoisted = true;
+            return new NodeExpr.Term(
+                new NodeTerm.Hoisted(expr, owner), expr.line
+            );
+        }
+
+        // Lists, maps and functions are made afresh each time, so are never
+        // invariant.
+        boolean invariant(NodeExpr node) {
+            if (node instanceof NodeExpr.Binary) {
+                return invariant(((NodeExpr.Binary) node).lhs) &&
+                    invariant(((NodeExpr.Binary) node).rhs);
+            }
+            else if (node instanceof NodeExpr.Term) {
+                return invariant(((NodeExpr.Term) node).val);
+            }
+            return false;
+        }
+
+        boolean invariant(NodeTerm node) {
+            if (node instanceof NodeTerm.Literal) return true;
+            else if (node instanceof NodeTerm.Variable) {
+                return !written.contains(((NodeTerm.Variable) node).var);
+            }
+            else if (node instanceof NodeTerm.Hoisted) {
+                return invariant(((NodeTerm.Hoisted) node).expr);
+            }
+            else if (node instanceof NodeTerm.Expr) {
+                return invariant(((NodeTerm.Expr) node).expr);
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                return (t.op == UnaryOp.Negate || t.op == UnaryOp.Not) &&
+                    invariant(t.val);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                return invariant(((NodeTerm.Cast) node).object);
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                return invariant(((NodeTerm.PropAccess) node).object);
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                return invariant(t.array) && invariant(t.index);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                if (!harmless(t.f) || !invariant(t.f)) return false;
+                for (NodeExpr arg : t.args) if (!invariant(arg)) return false;
+                return true;
+            }
+            else if (node instanceof NodeTerm.Inline) {
+                final NodeTerm.Inline t = (NodeTerm.Inline) node;
+                for (NodeTerm.Hoisted param : t.params)
+                    if (!invariant(param.expr)) return false;
+                return invariant(t.body);
+            }
+            return false;
+        }
+    }
+
+    // MARK: Common subexpressions
+    // An expression written in a block, and what it reads.
+    private static final class Common {
+        final NodeExpr expr;
+        final Set<String> reads = new HashSet<>();
+        boolean heap = false;
+        int count = 0;
+        NodeTerm.Hoisted hoisted = null;
+
+        Common(NodeExpr expr) { this.expr = expr; }
+    }
+
+    // Share what is written more than once in the statements of a block.
+    // Only the expressions the statements work out in the block itself are
+    // looked at, not those of loops or blocks inside them.
+    private void share(List<NodeStmt> stmts, NodeScope owner) {
+        if (!propagate) return;
+        final Sharer sharer = new Sharer(owner);
+        for (NodeStmt stmt : stmts) sharer.find(stmt);
+        if (!sharer.shared()) return;
+        for (int i = 0; i < stmts.size(); i += 1)
+            stmts.set(i, sharer.stmt(stmts.get(i)));
+    }
+
+    private final class Sharer {
+        final NodeScope owner;
+
+        // Expressions that can still be shared, by key, and what each pure
+        // node written in the block turned out to be.
+        final Map<String, Common> available = new HashMap<>();
+        final Map<Object, Common> found = new IdentityHashMap<>();
+
+        Sharer(NodeScope owner) { this.owner = owner; }
+
+        boolean shared() {
+            for (Common common : found.values())
+                if (common.count > 1) return true;
+            return false;
+        }
+
+        // Count the expressions a statement works out, then forget those it
+        // may change.
+        void find(NodeStmt node) {
+            final Effects own = new Effects();
+            if (node instanceof NodeStmt.If)
+                effects(((NodeStmt.If) node).expr, own);
+            else if (node instanceof NodeStmt.ForEach)
+                effects(((NodeStmt.ForEach) node).list, own);
+            else effects(node, own);
+
+            if (own.calls) available.clear();
+            else if (node instanceof NodeStmt.Declare)
+                key(((NodeStmt.Declare) node).expr);
+            else if (node instanceof NodeStmt.Assign)
+                key(((NodeStmt.Assign) node).expr);
+            else if (node instanceof NodeStmt.If)
+                key(((NodeStmt.If) node).expr);
+            else if (node instanceof NodeStmt.ForEach) {
+                final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+                key(s.list, s.line);
+            }
+            else if (node instanceof NodeStmt.Expr)
+                key(((NodeStmt.Expr) node).expr);
+            else if (node instanceof NodeStmt.Return)
+                key(((NodeStmt.Return) node).expr);
+
+            final Effects effects = new Effects();
+            effects(node, effects);
+            if (effects.calls) available.clear();
+            else available.values().removeIf(common ->
+                common.heap && effects.heap ||
+                !Collections.disjoint(common.reads, effects.written)
+            );
+        }
+
+        // A key for a pure expression that is the same for any other written
+        // the same way, or null if it is not pure. Every part is counted.
+        String key(NodeExpr node) {
+            if (node instanceof NodeExpr.Binary) {
+                final NodeExpr.Binary e = (NodeExpr.Binary) node;
+                final String l = key(e.lhs, e.line), r = key(e.rhs, e.line);
+                if (l == null || r == null) return null;
+                return count(node, node, "(" + l + e.op.name() + r + ")");
+            }
+            else if (node instanceof NodeExpr.Term) {
+                return key(((NodeExpr.Term) node).val, node.line);
+            }
+            return null;
+        }
+
+        String key(NodeTerm node, int line) {
+            if (node instanceof NodeTerm.Literal) {
+                final Object lit = ((NodeTerm.Literal<?>) node).lit;
+                if (lit == null) return "null";
+                final String value = lit.toString();
+                return lit.getClass().getSimpleName() + value.length() + ":" +
+                    value;
+            }
+            else if (node instanceof NodeTerm.Variable) {
+                return "$" + ((NodeTerm.Variable) node).var + ";";
+            }
+            else if (node instanceof NodeTerm.Expr) {
+                return key(((NodeTerm.Expr) node).expr);
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                for (NodeExpr item : ((NodeTerm.ArrayLiteral) node).items)
+                    key(item);
+                return null;
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                for (NodeMapEntry item : ((NodeTerm.MapLiteral) node).items)
+                    key(item.value);
+                return null;
+            }
+
+            final String key;
+            if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                final String val = key(t.val, line);
+                if (val == null || t.op != UnaryOp.Negate &&
+                    t.op != UnaryOp.Not) return null;
+                key = t.op.name() + val;
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast t = (NodeTerm.Cast) node;
+                final String object = key(t.object, line);
+                if (object == null) return null;
+                key = object + " as " + t.type.type;
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+                final String object = key(t.object, line);
+                if (object == null) return null;
+                key = object + "." + t.prop + ";";
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                final String array = key(t.array, line), i = key(t.index);
+                if (array == null || i == null) return null;
+                key = array + "[" + i + "]";
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                final StringBuilder call = new StringBuilder();
+                boolean pure = harmless(t.f) && key(t.f, line) != null;
+                call.append(t.f).append("(");
+                for (NodeExpr arg : t.args) {
+                    final String a = key(arg);
+                    pure &= a != null;
+                    call.append(a).append(",");
+                }
+                if (!pure) return null;
+                key = call.append(")").toString();
+            }
+            else return null;
+            return count(node, new NodeExpr.Term(node, line), key);
+        }
+
+        // Count one more of the expressions with this key.
+        private String count(Object node, NodeExpr expr, String key) {
+            Common common = available.get(key);
+            if (common == null) {
+                available.put(key, common = new Common(expr));
+                reads(expr, common);
+            }
+            common.count += 1;
+            found.put(node, common);
+            return key;
+        }
+
+        private void reads(NodeExpr node, Common common) {
+            if (node instanceof NodeExpr.Binary) {
+                reads(((NodeExpr.Binary) node).lhs, common);
+                reads(((NodeExpr.Binary) node).rhs, common);
+            }
+            else if (node instanceof NodeExpr.Term) {
+                reads(((NodeExpr.Term) node).val, common);
+            }
+        }
+
+        private void reads(NodeTerm node, Common common) {
+            if (node instanceof NodeTerm.Variable) {
+                common.reads.add(((NodeTerm.Variable) node).var);
+            }
+            else if (node instanceof NodeTerm.Expr) {
+                reads(((NodeTerm.Expr) node).expr, common);
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                reads(((NodeTerm.UnaryExpr) node).val, common);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                reads(((NodeTerm.Cast) node).object, common);
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                common.heap = true;
+                reads(((NodeTerm.PropAccess) node).object, common);
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                common.heap = true;
+                reads(((NodeTerm.ArrayAccess) node).array, common);
+                reads(((NodeTerm.ArrayAccess) node).index, common);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                reads(((NodeTerm.Call) node).f, common);
+                for (NodeExpr arg : ((NodeTerm.Call) node).args)
+                    reads(arg, common);
+            }
+        }
+
+        // Rewrite a statement of the block, outside in, so that the largest
+        // expression written more than once is shared rather than its parts.
+        NodeStmt stmt(NodeStmt node) {
+            if (node instanceof NodeStmt.Declare) {
+                final NodeStmt.Declare s = (NodeStmt.Declare) node;
+                return new NodeStmt.Declare(s.var, expr(s.expr));
+            }
+            else if (node instanceof NodeStmt.Assign) {
+                final NodeStmt.Assign s = (NodeStmt.Assign) node;
+                return new NodeStmt.Assign(s.op, s.term, expr(s.expr));
+            }
+            else if (node instanceof NodeStmt.If) {
+                final NodeStmt.If s = (NodeStmt.If) node;
+                return new NodeStmt.If(expr(s.expr), s.succ, s.fail);
+            }
+            else if (node instanceof NodeStmt.ForEach) {
+                final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+                return new NodeStmt.ForEach(
+                    s.itr, term(s.list, s.line), s.scope, s.line
+                );
+            }
+            else if (node instanceof NodeStmt.Expr) {
+                return new NodeStmt.Expr(expr(((NodeStmt.Expr) node).expr));
+            }
+            else if (node instanceof NodeStmt.Return) {
+                return new NodeStmt.Return(
+                    expr(((NodeStmt.Return) node).expr)
+                );
+            }
+            return node;
+        }
+
+        NodeExpr expr(NodeExpr node) {
+            if (node instanceof NodeExpr.Binary) {
+                final NodeExpr.Binary e = (NodeExpr.Binary) node;
+                final NodeTerm.Hoisted shared = shared(node);
+                if (shared != null) return new NodeExpr.Term(shared, e.line);
+                return new NodeExpr.Binary(
+                    e.op, term(e.lhs, e.line), term(e.rhs, e.line), e.line
+                );
+            }
+            else if (node instanceof NodeExpr.Term) {
+                final NodeExpr.Term e = (NodeExpr.Term) node;
+                return new NodeExpr.Term(term(e.val, e.line), e.line);
+            }
+            return node;
+        }
+
+        NodeTerm term(NodeTerm node, int line) {
+            final NodeTerm.Hoisted shared = shared(node);
+            if (shared != null) return shared;
+
+            if (node instanceof NodeTerm.Expr) {
+                return new NodeTerm.Expr(expr(((NodeTerm.Expr) node).expr));
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                final List<NodeExpr> items =
+                    ((NodeTerm.ArrayLiteral) node).items;
+                final List<NodeExpr> result = new ArrayList<>(items.size());
+                for (NodeExpr item : items) result.add(expr(item));
+                return new NodeTerm.ArrayLiteral(result);
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                final List<NodeMapEntry> items =
+                    ((NodeTerm.MapLiteral) node).items;
+                final List<NodeMapEntry> result = new ArrayList<>(items.size());
+                for (NodeMapEntry item : items)
+                    result.add(new NodeMapEntry(item.key, expr(item.value)));
+                return new NodeTerm.MapLiteral(result);
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                return new NodeTerm.UnaryExpr(t.op, term(t.val, line));
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                return new NodeTerm.ArrayAccess(
+                    term(t.array, line), expr(t.index)
+                );
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+                return new NodeTerm.PropAccess(term(t.object, line), t.prop);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                final List<NodeExpr> args = new ArrayList<>(t.args.size());
+                for (NodeExpr arg : t.args) args.add(expr(arg));
+                return new NodeTerm.Call(term(t.f, line), args);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast t = (NodeTerm.Cast) node;
+                return new NodeTerm.Cast(term(t.object, line), t.type);
+            }
+            return node;
+        }
+
+        // The one node every place an expression is written is replaced by,
+        // or null if it is only written once.
+        private NodeTerm.Hoisted shared(Object node) {
+            final Common common = found.get(node);
+            if (common == null || common.count < 2) return null;
+            if (common.hoisted == null)
+                common.hoisted = new NodeTerm.Hoisted(common.expr, owner);
+            return common.hoisted;
+        }
+    }
+
+    // MARK: Inlining
+    // The most terms the expression of a function can have to be inlined.
+    private static final int INLINE_SIZE = 12;
+
+    // Make a function declared in the second pass callable by name from here
+    // on in its scope, if nothing can rebind its name.
+    private void function(NodeStmt.Function def) {
+        if (rebinds || declared.get(def.name) != 1 ||
+            assigned.contains(def.name)) return;
+        functions.put(def.name, def);
+        scopes.peek().add(def.name);
+        if (inlinable(def)) inlines.put(def.name, def);
+    }
+
+    private boolean inlinable(NodeStmt.Function def) {
+        if (def.memo != 0 || def.body.stmts.size() != 1 ||
+            !(def.body.stmts.get(0) instanceof NodeStmt.Return)) return false;
+        final NodeExpr body = ((NodeStmt.Return) def.body.stmts.get(0)).expr;
+        if (body == null || tail(body)) return false;
+
+        final Set<String> params = new HashSet<>();
+        for (NodeParam param : def.params)
+            if (param._default != null || !params.add(param.param))
+                return false;
+
+        final Set<String> names = new HashSet<>();
+        if (size(body, names) > INLINE_SIZE) return false;
+        names.removeAll(params);
+        for (String name : names) {
+            if (name.equals(def.name) || name.equals("exists")) return false;
+            if (!functions.containsKey(name) &&
+                (declared.containsKey(name) || assigned.contains(name)))
+                return false;
+        }
+        return true;
+    }
+
+    // Whether the expression is a call made in constant stack when returned.
+    private static boolean tail(NodeExpr node) {
+        if (!(node instanceof NodeExpr.Term)) return false;
+        final NodeTerm val = ((NodeExpr.Term) node).val;
+        if (val instanceof NodeTerm.Inline)
+            return tail(((NodeTerm.Inline) val).body);
+        return val instanceof NodeTerm.Call;
+    }
+
+    // The number of terms in an expression, and the names it reads. Anything
+    // that makes a function, changes a variable, or is hoisted, is too big.
+    private static int size(NodeExpr node, Set<String> names) {
+        if (node == null) return 0;
+        else if (node instanceof NodeExpr.Binary) {
+            final NodeExpr.Binary e = (NodeExpr.Binary) node;
+            return 1 + size(e.lhs, names) + size(e.rhs, names);
+        }
+        else if (node instanceof NodeExpr.Term) {
+            return size(((NodeExpr.Term) node).val, names);
+        }
+        return INLINE_SIZE + 1;
+    }
+
+    private static int size(NodeTerm node, Set<String> names) {
+        if (node == null) return 0;
+        else if (node instanceof NodeTerm.Literal) return 1;
+        else if (node instanceof NodeTerm.Variable) {
+            names.add(((NodeTerm.Variable) node).var);
+            return 1;
+        }
+        else if (node instanceof NodeTerm.Expr) {
+            return size(((NodeTerm.Expr) node).expr, names);
+        }
+        else if (node instanceof NodeTerm.ArrayLiteral) {
+            int size = 1;
+            for (NodeExpr item : ((NodeTerm.ArrayLiteral) node).items)
+                size += size(item, names);
+            return size;
+        }
+        else if (node instanceof NodeTerm.MapLiteral) {
+            int size = 1;
+            for (NodeMapEntry item : ((NodeTerm.MapLiteral) node).items)
+                size += size(item.value, names);
+            return size;
+        }
+        else if (node instanceof NodeTerm.UnaryExpr) {
+            final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+            if (t.op == UnaryOp.Increment || t.op == UnaryOp.Decrement)
+                return INLINE_SIZE + 1;
+            return 1 + size(t.val, names);
+        }
+        else if (node instanceof NodeTerm.ArrayAccess) {
+            final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+            return 1 + size(t.array, names) + size(t.index, names);
+        }
+        else if (node instanceof NodeTerm.PropAccess) {
+            return 1 + size(((NodeTerm.PropAccess) node).object, names);
+        }
+        else if (node instanceof NodeTerm.Call) {
+            final NodeTerm.Call t = (NodeTerm.Call) node;
+            int size = 1 + size(t.f, names);
+            for (NodeExpr arg : t.args) size += size(arg, names);
+            return size;
+        }
+        else if (node instanceof NodeTerm.Cast) {
+            return 1 + size(((NodeTerm.Cast) node).object, names);
+        }
+        else if (node instanceof NodeTerm.Inline) {
+            return size(((NodeTerm.Inline) node).call, names);
+        }
+        return INLINE_SIZE + 1;
+    }
+
+    // The call, or its function's expression put in its place.
+    private NodeTerm inline(NodeTerm.Call call) {
+        if (!propagate || !inlining ||
+            !(call.f instanceof NodeTerm.Variable)) return call;
+        final NodeStmt.Function def =
+            inlines.get(((NodeTerm.Variable) call.f).var);
+        if (def == null || call.args.size() > def.params.size()) return call;
+
+        final Inliner inliner = new Inliner();
+        final NodeTerm.Hoisted[] params =
+            new NodeTerm.Hoisted[def.params.size()];
+        for (int i = 0; i < params.length; i += 1) {
+            params[i] = new NodeTerm.Hoisted(
+                i < call.args.size() ? call.args.get(i) : NodeExpr.NULL, owner
+            );
+            inliner.params.put(def.params.get(i).param, params[i]);
+        }
+        final NodeExpr body = ((NodeStmt.Return) def.body.stmts.get(0)).expr;
+        return new NodeTerm.Inline(call, params, inliner.expr(body));
+    }
+
+    // Copies the expression of an inlined function, reading its parameters,
+    // and those of calls inlined into it, from the calling block instead.
+    private final class Inliner {
+        final Map<Object, NodeTerm.Hoisted> params = new HashMap<>();
+
+        NodeExpr expr(NodeExpr node) {
+            if (node instanceof NodeExpr.Binary) {
+                final NodeExpr.Binary e = (NodeExpr.Binary) node;
+                return new NodeExpr.Binary(
+                    e.op, term(e.lhs), term(e.rhs), e.line
+                );
+            }
+            else if (node instanceof NodeExpr.Term) {
+                final NodeExpr.Term e = (NodeExpr.Term) node;
+                return new NodeExpr.Term(term(e.val), e.line);
+            }
+            return node;
+        }
+
+        NodeTerm term(NodeTerm node) {
+            if (node instanceof NodeTerm.Variable) {
+                final NodeTerm.Hoisted param =
+                    params.get(((NodeTerm.Variable) node).var);
+                return param != null ? param : node;
+            }
+            else if (node instanceof NodeTerm.Hoisted) {
+                return params.get(node);
+            }
+            else if (node instanceof NodeTerm.Expr) {
+                return new NodeTerm.Expr(expr(((NodeTerm.Expr) node).expr));
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                final List<NodeExpr> items =
+                    ((NodeTerm.ArrayLiteral) node).items;
+                final List<NodeExpr> result = new ArrayList<>(items.size());
+                for (NodeExpr item : items) result.add(expr(item));
+                return new NodeTerm.ArrayLiteral(result);
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                final List<NodeMapEntry> items =
+                    ((NodeTerm.MapLiteral) node).items;
+                final List<NodeMapEntry> result = new ArrayList<>(items.size());
+                for (NodeMapEntry item : items)
+                    result.add(new NodeMapEntry(item.key, expr(item.value)));
+                return new NodeTerm.MapLiteral(result);
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                return new NodeTerm.UnaryExpr(t.op, term(t.val));
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                return new NodeTerm.ArrayAccess(term(t.array), expr(t.index));
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+                return new NodeTerm.PropAccess(term(t.object), t.prop);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                final List<NodeExpr> args = new ArrayList<>(t.args.size());
+                for (NodeExpr arg : t.args) args.add(expr(arg));
+                return new NodeTerm.Call(term(t.f), args);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast t = (NodeTerm.Cast) node;
+                return new NodeTerm.Cast(term(t.object), t.type);
+            }
+            else if (node instanceof NodeTerm.Inline) {
+                final NodeTerm.Inline t = (NodeTerm.Inline) node;
+                final NodeTerm.Hoisted[] inner =
+                    new NodeTerm.Hoisted[t.params.length];
+                for (int i = 0; i < inner.length; i += 1) {
+                    inner[i] = new NodeTerm.Hoisted(
+                        expr(t.params[i].expr), owner
+                    );
+                    params.put(t.params[i], inner[i]);
+                }
+                return new NodeTerm.Inline(
+                    (NodeTerm.Call) term(t.call), inner, expr(t.body)
+                );
+            }
+            return node;
+        }
+    }
+
+    // MARK: Literals
+    private static boolean literal(NodeExpr expr) {
+        return expr instanceof NodeExpr.Term &&
+            ((NodeExpr.Term) expr).val instanceof NodeTerm.Literal;
+    }
+
+    private static NodeTerm.Literal<?> literalOf(NodeExpr expr) {
+        return (NodeTerm.Literal<?>) ((NodeExpr.Term) expr).val;
+    }
+
+    private static Object value(NodeExpr expr) { return literalOf(expr).lit; }
+
+    // A literal for a value worked out now, or null if working it out fails
+    // or gives a value the parser could not have given as a literal.
+    private static NodeTerm fold(Supplier<Object> value) {
+        final Object v;
+        try { v = value.get(); }
+        catch (RuntimeException e) { return null; }
+
+        if (v == null) return NodeTerm.NULL;
+        if (v instanceof Long || v instanceof Double || v instanceof String ||
+            v instanceof Boolean) return new NodeTerm.Literal<>(v);
+        return null;
+    }
+}
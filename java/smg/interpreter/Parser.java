@@ -9,36 +9,62 @@ import java.util.stream.Collectors;
 
 public class Parser {
     
-    private final List<Token> cache;
+    // Tokens are read from a packed stream by position, so no Token objects
+    // are created while parsing. When the parser reads straight from a 
+    // tokeniser the stream only holds the lookahead, since every consumed 
+    // token is released.
     private final Tokeniser tokeniser;
+    private TokenStream tokens;
+    private int pos = 0;
     private NodeProgram root = null;
     private int line = 1;
 
+    // Line of the last token consumed that is not blank, which is where the
+    // expression just parsed ends. Errors in it are reported on this line.
+    private int last = 1;
+
+    // Results a @memo function keeps when it is not given a size.
+    static final int MEMO = 1024;
+
     public Parser(Tokeniser t) {
         tokeniser = t;
-        cache = new LinkedList<>();
+    }
+
+    public Parser(TokenStream s) {
+        tokeniser = null;
+        tokens = s;
     }
     
-    public Parser(String input) {
-        this(new Tokeniser(input + Token.EOF));
+    public Parser(CharSequence input) {
+        this(new Tokeniser(input));
     }
 
     public static NodeProgram parseFile(Path path) throws IOException {
         return parse(String.join("\n", Files.readAllLines(path)));
     }
 
-    public static NodeProgram parse(String code) {
+    // Parse a file through a memory mapped tokeniser. Unlike parseFile() the 
+    // contents are read as they are, so line endings must be '\n'.
+    public static NodeProgram parseMapped(Path path) throws IOException {
+        return new Parser(Tokeniser.map(path)).parse();
+    }
+
+    public static NodeProgram parse(CharSequence code) {
         return new Parser(code).parse();
     }
 
     public NodeProgram parse() {
-        tokeniser.reset();
-        line = 1;
+        if (tokeniser != null) {
+            tokeniser.reset();
+            tokens = new TokenStream(tokeniser);
+        }
+        pos = 0;
+        line = tokens.line(pos);
         skipBlank();
         root = parseProgram();
 
         if (peek() != Token.EOT) {
-            throw error("Unexpected token at end of program: " + peek().value);
+            throw error("Unexpected token at end of program: " + peekText());
         }
         return root;
     }
@@ -109,7 +135,7 @@ public class Parser {
         if (!tryConsume(Token.Let)) return null;
 
         return new NodeStmt.Declare(
-            tryParse(parseVariable(), "Expected qualifier: " + peek().value), 
+            tryParse(parseVariable(), "Expected qualifier: " + peekText()), 
             !tryConsume(Token.EqualSign) ? NodeExpr.NULL :
                 tryParse(parseExpr(), "Expected expression.")                
         );
@@ -146,10 +172,11 @@ public class Parser {
     //     ([Assign] | [Expr])? ')' [Scope]
     private NodeStmt parseFor() {
         if (!tryConsume(Token.For)) return null;
+        final int cline = last;
         
         // For Each
         tryConsume(Token.OpenParen, "Expected '('");
-        if (peek().isAny(TokenType.Qualifier) && peekNonBlank() == Token.In) {
+        if (peek().is(TokenType.Qualifier) && peekNonBlank() == Token.In) {
             final String itr; final NodeTerm list;
 
             itr = parseVariable();
@@ -158,7 +185,7 @@ public class Parser {
             tryConsume(Token.CloseParen, "Expected ')'");
 
             return new NodeStmt.ForEach(itr, list, 
-                tryParse(parseScope(), "Unparsable Scope.")
+                tryParse(parseScope(), "Unparsable Scope."), cline
             );
         }
 
@@ -209,18 +236,45 @@ public class Parser {
         return null;
     }
 
-    // Func -> 'define' [Variable] [ParamList] [Scope]
+    // Func -> [Annotation]* 'define' [Variable] [ParamList] [Scope]
     private NodeStmt.Function parseFunction() {
+        int memo = 0; boolean pure = false;
+        final boolean annotated = peek() == Token.At;
+
+        // Annotation -> '@' ('memo' ('(' [Number] ')')? | 'pure')
+        while (tryConsume(Token.At)) {
+            final String name = tryParse(
+                parseVariable(), 
+                "Expected annotation, found: " + peekText()
+            );
+            if (name.equals("pure")) pure = true;
+            else if (!name.equals("memo")) 
+                throw error("Unknown annotation: @" + name);
+            else if (!tryConsume(Token.OpenParen)) memo = MEMO;
+            else {
+                final String size = tryParse(
+                    tryConsumeText(TokenType.NumberLiteral), 
+                    "Expected size of @memo cache"
+                );
+                try { memo = Integer.parseInt(size); }
+                catch (NumberFormatException e) { memo = 0; }
+                if (memo <= 0) throw error("Invalid @memo cache size: " + size);
+                tryConsume(Token.CloseParen, "Expected ')'");
+            }
+        }
+
         // If it has a qualifier, it is a proper function and not a lambda
         if (peek() != Token.Function || 
-            !peekNonBlank(1).isAny(TokenType.Qualifier)) 
+            !peekNonBlank(1).is(TokenType.Qualifier)) {
+            if (annotated) throw error("Expected function after annotation");
             return null;
+        }
 
         tryConsume(Token.Function);
         return new NodeStmt.Function(parseVariable(), parseParams(), tryParse(
             parseScope(), 
             "Expected function body"
-        ));
+        ), memo, pure);
     }
 
     // ParamList -> '(' ([Param] (',' [Param])*)? ')'
@@ -231,7 +285,7 @@ public class Parser {
             do {
                 params.add(tryParse(
                     parseParam(), 
-                    "Unexpected Token: " + peek().value
+                    "Unexpected Token: " + peekText()
                 ));
             } 
             while (tryConsume(Token.Comma));
@@ -282,7 +336,7 @@ public class Parser {
             term instanceof NodeTerm.PropAccess || 
             term instanceof NodeTerm.Variable;
 
-        if (!(assignType && peek().isAny(TokenType.AssignOperator))) 
+        if (!(assignType && peek().is(TokenType.AssignOperator))) 
             return null;
         
         final Token op = tryConsume(TokenType.AssignOperator);
@@ -316,7 +370,7 @@ public class Parser {
     // MARK: Parse Expression
     private NodeExpr parseExpr() {
         final NodeTerm term;
-        if (peek().isAny(TokenType.FunctionDecl)) return parseLambda();
+        if (peek().is(TokenType.FunctionDecl)) return parseLambda();
         else if ((term = parseTerm()) != null) return parseExpr(term, 0);
         else return null;
     }
@@ -330,7 +384,7 @@ public class Parser {
             do {
                 params.add(tryParse(
                     parseParam(), 
-                    "Unexpected Token: " + peek().value
+                    "Unexpected Token: " + peekText()
                 ));
             } 
             while (tryConsume(Token.Comma));
@@ -357,13 +411,12 @@ public class Parser {
     }
     
     private NodeExpr parseExpr(NodeTerm left, int prec) {
-        final int cline = line;
-        while (peek().isAny(TokenType.BinaryArithmetic) && peek().prec >= prec) 
+        while (peek().is(TokenType.BinaryArithmetic) && peek().prec >= prec) 
         {
             final Token op = tryConsume(TokenType.BinaryArithmetic);
             NodeTerm right = parseTerm();
 
-            while (peek().isAny(TokenType.BinaryArithmetic) && (
+            while (peek().is(TokenType.BinaryArithmetic) && (
                 (peek().prec > op.prec) || 
                 (peek().prec >= op.prec && peek().rassoc))) {
                 right = new NodeTerm.Expr(
@@ -374,7 +427,7 @@ public class Parser {
         }
 
         return left instanceof NodeTerm.Expr ? ((NodeTerm.Expr) left).expr : 
-            new NodeExpr.Term(left, cline);
+            new NodeExpr.Term(left, last);
     }
 
     private NodeExpr.Binary arthmeticNode(Token op, NodeTerm lhs, NodeTerm rhs)
@@ -398,7 +451,7 @@ public class Parser {
             throw error("Unsupported binary arithmetic operation: " + op);
         }
 
-        return new NodeExpr.Binary(bop, lhs, rhs, line);
+        return new NodeExpr.Binary(bop, lhs, rhs, last);
     }
 
     
@@ -544,7 +597,7 @@ public class Parser {
         if (tryConsume(Token.CloseParen)) return call;
         
         do {
-            call.args.add(tryParse(parseExpr(), "Expected expression, found: " + peek().value));
+            call.args.add(tryParse(parseExpr(), "Expected expression, found: " + peekText()));
         } 
         while (tryConsume(Token.Comma));
 
@@ -573,21 +626,20 @@ public class Parser {
     }
     
     private String parseVariable() {
-        final Token token = tryConsume(TokenType.Qualifier);
-        return token == null ? null : token.value;
+        return tryConsumeText(TokenType.Qualifier);
     }
     
     // Term.Literal<?>
     private NodeTerm.Literal<?> parseLiteral() {
-        Token token;
+        Token token; String text;
         if (tryConsume(Token.Null)) 
             return new NodeTerm.Literal<Void>(null);
         else if ((token = tryConsume(TokenType.BooleanLiteral)) != null) 
             return new NodeTerm.Literal<Boolean>(token.equals(Token.True));
-        else if ((token = tryConsume(TokenType.StringLiteral)) != null)
-            return new NodeTerm.Literal<String>(token.value);
-        else if ((token = tryConsume(TokenType.NumberLiteral)) != null) {
-            final String repr = token.value;
+        else if ((text = tryConsumeText(TokenType.StringLiteral)) != null)
+            return new NodeTerm.Literal<String>(text);
+        else if ((text = tryConsumeText(TokenType.NumberLiteral)) != null) {
+            final String repr = text;
             try {
                 return new NodeTerm.Literal<Long>(Long.parseLong(repr));
             }
@@ -605,20 +657,22 @@ public class Parser {
     }
 
     private Token peek(int offset) {
-        while (cache.size() <= offset) {
-            cache.add(tokeniser.nextToken());
-        }
-        return cache.get(offset);
+        return tokens.token(pos + offset);
+    }
+
+    private String peekText() {
+        return tokens.text(pos);
     }
     
+    // The line is always the one the next token starts on, which is the same
+    // as counting the newlines in every token consumed so far.
     private Token consume() {
-        final Token consumable = cache.size() > 0 ? 
-            cache.remove(0) : 
-            tokeniser.nextToken();
-
-        if (!consumable.isAny(TokenType.StringLiteral))
-            line += consumable.value.chars().filter(i -> i == '\n').count(); 
-        
+        final Token consumable = tokens.token(pos);
+        if (consumable != Token.Newline && !consumable.is(TokenType.Comment))
+            last = tokens.line(pos);
+        if (consumable != Token.EOT) pos += 1;
+        if (tokeniser != null) tokens.release(pos);
+        line = tokens.line(pos);
         return consumable;
     }
 
@@ -631,20 +685,29 @@ public class Parser {
         return success;
     }
 
-    private Token tryConsume(boolean skipBlank, TokenType... types) {
-        if (!peek().isAny(types) || peek() == Token.EOT) return null; 
+    private Token tryConsume(boolean skipBlank, TokenType type) {
+        if (!peek().is(type) || peek() == Token.EOT) return null; 
         
         final Token token = consume();
         if (skipBlank) skipBlank();
         return token;
     }
 
+    // Consume an indefinite token and materialise its text.
+    private String tryConsumeText(TokenType type) {
+        if (!peek().is(type)) return null;
+
+        final String text = tokens.text(pos);
+        consume(); skipBlank();
+        return text;
+    }
+
     private boolean tryConsume(Token token) {
         return tryConsume(token, true);
     }
 
-    private Token tryConsume(TokenType... types) {
-        return tryConsume(true, types);
+    private Token tryConsume(TokenType type) {
+        return tryConsume(true, type);
     }
 
     private void tryConsume(Token token, String message) {
@@ -652,7 +715,7 @@ public class Parser {
     }
 
     private void skipBlank() {
-        while (peek() == Token.Newline || peek().isAny(TokenType.Comment)) 
+        while (peek() == Token.Newline || peek().is(TokenType.Comment)) 
             consume();
     }
 
@@ -665,7 +728,7 @@ public class Parser {
         while (count > 0) {
             while (
                 peek(ahead) == Token.Newline || 
-                peek(ahead).isAny(TokenType.Comment)
+                peek(ahead).is(TokenType.Comment)
             ) ahead += 1;
            
             count -= 1;
@@ -0,0 +1,156 @@
+package smg.interpreter;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Program Cache
+ *
+ * Compiled scripts keyed by a hash of their source code. The same script run
+ * many times only has to be parsed once, and every Interpreter built from it
+ * shares the same tree. Compiled scripts are immutable so this is safe across
+ * threads.
+ *
+ * The cache holds at most a fixed number of programs and evicts the least
+ * recently used one when it is full. If many threads miss on the same script
+ * at once, only the first of them parses it while the rest wait for its
+ * result. A failed parse is not cached, so the error is thrown to every
+ * waiting thread and the next lookup tries again. This holds for errors like
+ * StackOverflowError as well as exceptions.
+ */
+public class ProgramCache {
+
+    private final int capacity;
+
+    // Least recently used entries come first. Guarded by the cache itself.
+    private final LinkedHashMap<Key, CompletableFuture<CompiledScript>> programs;
+
+    // Statistics
+    private final AtomicLong hits = new AtomicLong(),
+        misses = new AtomicLong(),
+        evictions = new AtomicLong();
+
+    public ProgramCache(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException(
+            "Cache capacity must be at least 1"
+        );
+        this.capacity = capacity;
+        programs = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    // Get the compiled script for the given code, compiling it if needed.
+    public CompiledScript get(CharSequence code) {
+        final Key key = new Key(code);
+        final CompletableFuture<CompiledScript> program;
+        final boolean owner;
+
+        synchronized (this) {
+            final CompletableFuture<CompiledScript> cached = programs.get(key);
+            if (owner = cached == null) {
+                misses.incrementAndGet();
+                program = new CompletableFuture<>();
+                programs.put(key, program);
+                evict();
+            }
+            else {
+                hits.incrementAndGet();
+                program = cached;
+            }
+        }
+
+        // The thread that missed parses the program outside of the lock.
+        if (owner) {
+            try {
+                program.complete(CompiledScript.compile(code));
+            }
+            // Errors too, like running out of stack on deeply nested code, or
+            // the threads waiting on it would wait forever.
+            catch (Throwable e) {
+                synchronized (this) { programs.remove(key, program); }
+                program.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        try {
+            return program.join();
+        }
+        catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            if (e.getCause() instanceof Error) throw (Error) e.getCause();
+            throw e;
+        }
+    }
+
+    private void evict() {
+        final Iterator<?> itr = programs.entrySet().iterator();
+        while (programs.size() > capacity && itr.hasNext()) {
+            itr.next(); itr.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    public synchronized void clear() { programs.clear(); }
+    public synchronized int size() { return programs.size(); }
+    public int capacity() { return capacity; }
+    public long hits() { return hits.get(); }
+    public long misses() { return misses.get(); }
+    public long evictions() { return evictions.get(); }
+    public double hitRate() {
+        final long h = hits(), total = h + misses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    public String toString() {
+        return String.format(
+            "ProgramCache(size: %d/%d, hits: %d, misses: %d, evictions: %d)",
+            size(), capacity, hits(), misses(), evictions()
+        );
+    }
+
+    /*
+     * Cache keys are SHA-256 digests of the source code, so the cache does not
+     * need to hold on to the (possibly very large) source itself.
+     */
+    private static final class Key {
+        private final byte[] digest;
+        private final int hash;
+
+        Key(CharSequence code) {
+            final MessageDigest md;
+            try {
+                md = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+
+            final ByteBuffer buffer = ByteBuffer.allocate(2048);
+            for (int i = 0; i < code.length(); i += 1) {
+                if (!buffer.hasRemaining()) {
+                    md.update(buffer.flip()); buffer.clear();
+                }
+                buffer.putChar(code.charAt(i));
+            }
+            md.update(buffer.flip());
+
+            digest = md.digest();
+            hash = Arrays.hashCode(digest);
+        }
+
+        public int hashCode() { return hash; }
+        public boolean equals(Object other) {
+            return other instanceof Key &&
+                Arrays.equals(digest, ((Key) other).digest);
+        }
+    }
+}
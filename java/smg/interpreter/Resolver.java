@@ -0,0 +1,475 @@
+package smg.interpreter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Resolver
+ *
+ * A pass over a parsed program that works out, ahead of execution, where each
+ * variable will live. Every scope that gets a frame of its own at run time is
+ * given a list of the names declared directly in it, and each of those names
+ * a slot. A variable that refers to one of them is then tagged with its
+ * lexical address: the number of frames between it and the frame the name was
+ * declared in, and its slot there. The Interpreter reaches these variables by
+ * index instead of searching through maps by name.
+ *
+ * Some variables are left to be found by name:
+ *   - Globals, and anything defined by the host before running.
+ *   - Names used inside a function but declared outside of it. Functions run
+ *     with a copy of the variables visible where they were defined, and fall
+ *     back on the scopes of their caller after that.
+ *   - Names used before they are declared in the scope they are used in.
+ *
+ * The frames the Interpreter pushes have to match the scopes here one for one,
+ * or addresses would point at the wrong frame.
+ *
+ * The names a function looks up by name, including those of functions nested
+ * in it, are its free variables. A closure only captures these. Whatever a
+ * function calls can also find names through the variables the function
+ * captured, as it falls back on the scopes of its caller, so a function also
+ * captures the free variables of every function it uses by name, and of
+ * every function those use in turn. A function that calls exists() could
+ * ask for any name at all, and a function that calls something other than a
+ * function, by a name only ever given a function declared in place or
+ * values that cannot be called, could call anything, so these and every
+ * function around them capture everything, as they did before.
+ *
+ * A function that returns the result of a call can make that call after it
+ * has returned, as a tail call. This is only done outside of try blocks, as
+ * the call would otherwise escape its catch and run after its finally.
+ *
+ * Expressions the Optimiser hoisted out of a loop, or shared within a block,
+ * are given a slot in the scope that owns them, as if they were declared
+ * there. Those owned by the program get a slot in the global frame, which
+ * has none otherwise.
+ *
+ * Functions declared @pure are checked here as well. One may only use its own
+ * parameters and variables, and other @pure functions by a name nothing ever
+ * assigns to, and may only call functions by name. Everything defined by the
+ * host is a global, so this keeps host functions and methods out of it. A
+ * name it calls must also not be a parameter, or a variable that was given
+ * a function, as that could be any function at all. It may not assign to a
+ * property or index either, since the list or map may be one it was given.
+ */
+final class Resolver
+    implements NodeStmt.Visitor, NodeExpr.Visitor, NodeTerm.Visitor {
+
+    // A scope as seen at compile time. The global scope is null.
+    private static final class Scope {
+        final Scope parent;
+
+        // The outermost scope of a function. Scopes above it belong to
+        // whatever code defined the function, not the code calling it.
+        final boolean function;
+
+        final List<String> names = new ArrayList<>();
+        final Set<String> declared = new HashSet<>();
+
+        // The node this scope was made for, if it is a plain scope.
+        NodeScope node = null;
+
+        Scope(Scope parent, boolean function) {
+            this.parent = parent; this.function = function;
+        }
+
+        String[] locals() { return names.toArray(new String[0]); }
+    }
+
+    private Scope scope = null;
+
+    // Slots of the global frame.
+    private final List<String> globals = new ArrayList<>();
+
+    // Free variables of the function being resolved, null outside of one.
+    private Set<String> free = null;
+
+    // Try blocks around the current point within that function.
+    private int tries = 0;
+
+    // Names the function being resolved uses, names it calls, and whether it
+    // calls anything not by name. Kept for every function, with the functions
+    // declared by each name and the names declared or assigned otherwise, to
+    // add the free variables of what each function uses once all are known.
+    private Set<String> uses = null, callees = null;
+    private boolean unknown = false;
+    private final Map<NodeExpr.Lambda, Set<String>> used = new HashMap<>(),
+        called = new HashMap<>();
+    private final Map<String, List<NodeExpr.Lambda>> functions =
+        new HashMap<>();
+    private final Set<String> rebound = new HashSet<>();
+
+    // The @pure function being resolved, if any. Every @pure function, and
+    // every name assigned to by name, is checked once all have been seen.
+    private NodeStmt.Function pure = null;
+    private final List<NodeStmt.Function> pures = new ArrayList<>();
+    private final Set<String> assigned = new HashSet<>();
+
+    // The names of its own variables each @pure function calls. Only those
+    // declared as functions, and never given anything else, are pure.
+    private final Map<NodeStmt.Function, Set<String>> locals = new HashMap<>();
+
+    private Resolver() {}
+
+    static NodeProgram resolve(NodeProgram program) {
+        if (program != null) {
+            final Resolver resolver = new Resolver();
+            resolver.stmts(program.stmts);
+            resolver.pure();
+            resolver.capture();
+            if (!resolver.globals.isEmpty())
+                program.locals = resolver.globals.toArray(new String[0]);
+        }
+        return program;
+    }
+
+    // MARK: Scopes
+    private void enter(boolean function) { scope = new Scope(scope, function); }
+    private String[] exit() {
+        final String[] locals = scope.locals();
+        scope = scope.parent;
+        return locals;
+    }
+
+    // Give a name a slot in the current scope. Declaring the same name twice
+    // gives the same slot, so the second declaration still fails at run time.
+    private int declare(String name) {
+        if (scope == null) return -1;
+        int slot = scope.names.indexOf(name);
+        if (slot < 0) {
+            slot = scope.names.size();
+            scope.names.add(name);
+        }
+        scope.declared.add(name);
+        return slot;
+    }
+
+    private void scope(NodeScope node) {
+        if (node == null) return;
+        enter(false);
+        scope.node = node;
+        stmts(node.stmts);
+        node.locals = exit();
+    }
+
+    private void stmts(List<NodeStmt> stmts) {
+        for (NodeStmt stmt : stmts) stmt(stmt);
+    }
+
+    private void stmt(NodeStmt stmt) { if (stmt != null) stmt.host(this); }
+    private void expr(NodeExpr expr) { if (expr != null) expr.host(this); }
+    private void term(NodeTerm term) { if (term != null) term.host(this); }
+
+    // MARK: Statements
+    public void visit(NodeStmt.Assign assign) {
+        if (pure != null && !(assign.term instanceof NodeTerm.Variable))
+            throw impure(pure, "assigns to " + assign.term);
+        term(assign.term);
+        expr(assign.expr);
+        if (assign.term instanceof NodeTerm.Variable) {
+            final NodeTerm.Variable var = (NodeTerm.Variable) assign.term;
+            if (var.slot < 0) assigned.add(var.var);
+            if (assign.op == AssignOp.AssignEqual && callable(assign.expr))
+                rebound.add(var.var);
+        }
+    }
+
+    // A name declared with a function is known as if it were declared as
+    // one. One only ever given literals, or worked out by an operator such
+    // as +=, can never be called at all.
+    public void visit(NodeStmt.Declare decl) {
+        expr(decl.expr);
+        decl.slot = declare(decl.var);
+        if (decl.expr instanceof NodeExpr.Lambda) functions.computeIfAbsent(
+            decl.var, k -> new ArrayList<>()
+        ).add((NodeExpr.Lambda) decl.expr);
+        else if (callable(decl.expr)) rebound.add(decl.var);
+    }
+
+    private static boolean callable(NodeExpr expr) {
+        return expr != null && !(expr instanceof NodeExpr.Term &&
+            ((NodeExpr.Term) expr).val instanceof NodeTerm.Literal);
+    }
+
+    public void visit(NodeStmt.If stmt) {
+        expr(stmt.expr);
+        scope(stmt.succ);
+        scope(stmt.fail);
+    }
+
+    public void visit(NodeStmt.While loop) {
+        expr(loop.expr);
+        scope(loop.scope);
+    }
+
+    public void visit(NodeStmt.For loop) {
+        enter(false);
+        stmt(loop.init);
+        expr(loop.cond);
+        scope(loop.scope);
+        stmt(loop.inc);
+        loop.locals = exit();
+    }
+
+    public void visit(NodeStmt.ForEach loop) {
+        term(loop.list);
+        enter(false);
+        loop.slot = declare(loop.itr);
+        rebound.add(loop.itr);
+        scope(loop.scope);
+        loop.locals = exit();
+    }
+
+    public void visit(NodeStmt.TryCatch block) {
+        tries += 1;
+        scope(block._try);
+        enter(false);
+        if (block.err != null) {
+            block.slot = declare(block.err);
+            rebound.add(block.err);
+        }
+        scope(block._catch);
+        block.locals = exit();
+        scope(block._finally);
+        tries -= 1;
+    }
+
+    public void visit(NodeStmt.Function def) {
+        final NodeStmt.Function outer = pure;
+        if (def.pure) { pure = def; pures.add(def); }
+        expr(def.lambda);
+        pure = outer;
+        def.slot = declare(def.name);
+        functions.computeIfAbsent(def.name, k -> new ArrayList<>())
+            .add(def.lambda);
+    }
+
+    public void visit(NodeStmt.Expr stmt) { expr(stmt.expr); }
+    public void visit(NodeStmt.Return stmt) {
+        expr(stmt.expr);
+        if (free != null && tries == 0 && stmt.expr instanceof NodeExpr.Term) {
+            final NodeTerm term = ((NodeExpr.Term) stmt.expr).val;
+            if (term instanceof NodeTerm.Call) stmt.tail = (NodeTerm.Call) term;
+        }
+    }
+    public void visit(NodeStmt.Scope stmt) { scope(stmt.scope); }
+    public void visit(NodeStmt.Break stmt) {}
+    public void visit(NodeStmt.Continue stmt) {}
+
+    // MARK: Expressions
+    public <R> R visit(NodeExpr.Binary node) {
+        term(node.lhs);
+        term(node.rhs);
+        return null;
+    }
+
+    public <R> R visit(NodeExpr.Term node) {
+        term(node.val);
+        return null;
+    }
+
+    // Parameters are declared one at a time, as each default value can see
+    // the parameters before it.
+    public <R> R visit(NodeExpr.Lambda def) {
+        final Set<String> outer = free, outerUses = uses,
+            outerCallees = callees;
+        final boolean outerUnknown = unknown;
+        final int outerTries = tries;
+        free = new HashSet<>();
+        uses = new HashSet<>();
+        callees = new HashSet<>();
+        unknown = false;
+        tries = 0;
+
+        enter(true);
+        for (NodeParam param : def.params) {
+            expr(param._default);
+            param.slot = declare(param.param);
+            rebound.add(param.param);
+        }
+        scope(def.body);
+        def.locals = exit();
+
+        def.free = free.contains("exists") || unknown ?
+            null : free.toArray(new String[0]);
+        used.put(def, uses);
+        called.put(def, callees);
+        if (outer != null) {
+            outer.addAll(free);
+            outerUses.addAll(uses);
+            outerCallees.addAll(callees);
+        }
+        free = outer;
+        uses = outerUses;
+        callees = outerCallees;
+        unknown |= outerUnknown;
+        tries = outerTries;
+        return null;
+    }
+
+    // MARK: Terms
+    public <R> R visit(NodeTerm.Variable var) {
+        if (uses != null) uses.add(var.var);
+        int depth = 0;
+        for (Scope s = scope; s != null; s = s.parent, depth += 1) {
+            if (s.declared.contains(var.var)) {
+                var.depth = depth;
+                var.slot = s.names.indexOf(var.var);
+                return null;
+            }
+            if (s.function) break;
+        }
+
+        var.depth = var.slot = -1;
+        if (free != null) free.add(var.var);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Expr expr) {
+        expr(expr.expr);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.ArrayLiteral arr) {
+        for (NodeExpr item : arr.items) expr(item);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.MapLiteral map) {
+        for (NodeMapEntry entry : map.items) expr(entry.value);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.UnaryExpr expr) {
+        term(expr.val);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.ArrayAccess access) {
+        term(access.array);
+        expr(access.index);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.PropAccess access) {
+        term(access.object);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Call call) {
+        if (pure != null && !(call.f instanceof NodeTerm.Variable))
+            throw impure(pure, "calls " + call.f + ", which may not be pure");
+        if (!(call.f instanceof NodeTerm.Variable)) unknown = true;
+        else if (callees != null)
+            callees.add(((NodeTerm.Variable) call.f).var);
+        term(call.f);
+        if (pure != null && ((NodeTerm.Variable) call.f).slot >= 0)
+            locals.computeIfAbsent(pure, k -> new HashSet<>())
+                .add(((NodeTerm.Variable) call.f).var);
+        for (NodeExpr arg : call.args) expr(arg);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Cast cast) {
+        term(cast.object);
+        return null;
+    }
+
+    public <R> R visit(NodeTerm.Literal<?> lit) { return null; }
+
+    // The function an inlined call stands for is still looked at, so that
+    // a @pure function calling it is checked as before. The arguments are
+    // the expressions of the parameters.
+    public <R> R visit(NodeTerm.Inline inline) {
+        term(inline.call.f);
+        for (NodeTerm.Hoisted param : inline.params) param.host(this);
+        expr(inline.body);
+        return null;
+    }
+
+    // A hoisted expression keeps its value in a slot of the scope that owns
+    // it, under a name no script can use. One shared within a block appears
+    // wherever it is written, but only needs the one slot.
+    public <R> R visit(NodeTerm.Hoisted hoisted) {
+        if (hoisted.slot >= 0) return null;
+        expr(hoisted.expr);
+        int depth = 0;
+        Scope s = scope;
+        for (; s != null; s = s.parent, depth += 1)
+            if (hoisted.owner != null && s.node == hoisted.owner) break;
+        if (s == null && hoisted.owner != null) throw new IllegalStateException(
+            "Hoisted expression outside of its scope: " + hoisted
+        );
+        final List<String> names = s == null ? globals : s.names;
+        hoisted.depth = depth;
+        hoisted.slot = names.size();
+        names.add("$" + hoisted.slot);
+        return null;
+    }
+
+    // MARK: Captures
+    // Add to each function the free variables of the functions it uses, over
+    // and over until nothing changes, as they may use each other.
+    private void capture() {
+        final Map<NodeExpr.Lambda, Set<String>> free = new HashMap<>();
+        for (NodeExpr.Lambda def : used.keySet()) {
+            if (def.free == null) continue;
+            for (String name : called.get(def)) {
+                if (rebound.contains(name)) {
+                    def.free = null;
+                    break;
+                }
+            }
+            if (def.free != null) free.put(def, new HashSet<>(
+                Arrays.asList(def.free)
+            ));
+        }
+
+        for (boolean changed = true; changed; ) {
+            changed = false;
+            for (Map.Entry<NodeExpr.Lambda, Set<String>> e : free.entrySet()) {
+                final NodeExpr.Lambda def = e.getKey();
+                if (def.free == null) continue;
+                for (String name : used.get(def)) {
+                    for (NodeExpr.Lambda f : functions.getOrDefault(
+                        name, List.of()
+                    )) {
+                        if (f.free == null) { def.free = null; break; }
+                        changed |= e.getValue().addAll(free.get(f));
+                    }
+                    if (def.free == null) { changed = true; break; }
+                }
+            }
+        }
+
+        for (Map.Entry<NodeExpr.Lambda, Set<String>> e : free.entrySet())
+            if (e.getKey().free != null)
+                e.getKey().free = e.getValue().toArray(new String[0]);
+    }
+
+    // MARK: Purity
+    private void pure() {
+        final Set<String> names = new HashSet<>();
+        for (NodeStmt.Function def : pures) names.add(def.name);
+        names.removeAll(assigned);
+
+        for (NodeStmt.Function def : pures) {
+            if (def.lambda.free == null) throw impure(def, "uses exists");
+            for (String name : def.lambda.free) if (!names.contains(name))
+                throw impure(def, "uses " + name + ", which is not pure");
+            for (String name : locals.getOrDefault(def, Set.of()))
+                if (rebound.contains(name)) throw impure(
+                    def, "calls " + name + ", which may not be pure"
+                );
+        }
+    }
+
+    private static RuntimeException impure(NodeStmt.Function def, String s) {
+        return new RuntimeException("@pure function " + def.name + " " + s);
+    }
+}
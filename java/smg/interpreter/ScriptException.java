@@ -0,0 +1,99 @@
+package smg.interpreter;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Collection;
+import java.util.Map;
+
+/*
+ * Script Exception
+ *
+ * An error raised by a script while it runs. Scripts raise and catch errors
+ * as a matter of course, to test whether something is defined for instance,
+ * so making one is kept cheap: there is no stack trace, which would only show
+ * the Interpreter's own frames anyway, and the message is only formatted when
+ * it is asked for. A list, map or other collection in the message could still
+ * change before then, so it is only described, by its type and size, when the
+ * error is raised. The message is formatted once if the error is serialised.
+ *
+ * Scripts see every kind of error as a RuntimeException, as all errors were
+ * before the kinds were added, both when one is printed and through type().
+ *
+ * Errors are raised without a line. The innermost expression or statement an
+ * error passes through on its way out gives it its line, so nothing has to
+ * keep track of the current line while the script is running.
+ */
+public class ScriptException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    // The class scripts see errors as.
+    static final Class<?> SHOWN_AS = RuntimeException.class;
+
+    private final String format;
+    private transient Object[] args;
+    private String message = null;
+    private int line = -1;
+
+    ScriptException(String format, Object... args) {
+        super(null, null, false, false);
+        this.format = format;
+        this.args = args;
+        for (int i = 0; i < args.length; i += 1) {
+            if (args[i] instanceof Collection) args[i] = describe(
+                args[i], ((Collection<?>) args[i]).size()
+            );
+            else if (args[i] instanceof Map) args[i] = describe(
+                args[i], ((Map<?, ?>) args[i]).size()
+            );
+        }
+    }
+
+    private static String describe(Object value, int size) {
+        return Types.javaType(value) + " of size " + size;
+    }
+
+    // A variable that is not defined, or is defined twice.
+    public static class Variable extends ScriptException {
+        private static final long serialVersionUID = 1L;
+        Variable(String format, Object... args) { super(format, args); }
+    }
+
+    // An operation, cast or access that does not apply to the given values.
+    public static class Type extends ScriptException {
+        private static final long serialVersionUID = 1L;
+        Type(String format, Object... args) { super(format, args); }
+    }
+
+    // A value that cannot be called, or a host function that failed.
+    public static class Call extends ScriptException {
+        private static final long serialVersionUID = 1L;
+        Call(String format, Object... args) { super(format, args); }
+    }
+
+    // The line the error was raised on, or -1 if it is not known.
+    public int line() { return line; }
+
+    // Only the first line given counts, as that is the innermost.
+    ScriptException at(int line) {
+        if (this.line < 0) this.line = line;
+        return this;
+    }
+
+    public String getMessage() {
+        final String text = message != null ? message : 
+            String.format(format, args);
+        return line < 0 ? text : text + " (line: " + line + ")";
+    }
+
+    public String toString() {
+        return SHOWN_AS.getName() + ": " + getMessage();
+    }
+
+    // The arguments may not be serialisable, so the message is written in
+    // their place.
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        if (message == null) message = String.format(format, args);
+        out.defaultWriteObject();
+    }
+}
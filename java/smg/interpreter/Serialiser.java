@@ -0,0 +1,635 @@
+package smg.interpreter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Serialiser
+ *
+ * Writes parsed programs into a compact binary format (.smgc) and reads them
+ * back without going through the Tokeniser or the Parser. A serialised
+ * program looks like this:
+ *
+ *   'SMGC' version
+ *   [String Table]  count (utf8 length, bytes)*
+ *   [Long Pool]     count (8 bytes)*
+ *   [Double Pool]   count (8 bytes)*
+ *   [Body]          program node
+ *
+ * Nodes are written as a one byte tag followed by their children. Names and
+ * string literals are written as an index into the string table, and number
+ * literals as an index into their pool, so repeated values are stored once.
+ * All counts, indexes and line numbers are unsigned variable length ints.
+ *
+ * Many programs can also be stored together in an Archive. Archives are read
+ * through a memory mapping and each script is only decoded and compiled the
+ * first time it is asked for.
+ */
+public class Serialiser {
+
+    static final int VERSION = 3;
+    private static final byte[]
+        MAGIC = { 'S', 'M', 'G', 'C' },
+        ARCHIVE = { 'S', 'M', 'G', 'A' };
+
+    // Node tags
+    private static final int
+        NONE = 0,
+        // Statements
+        S_IF = 1, S_WHILE = 2, S_FOREACH = 3, S_FOR = 4, S_SCOPE = 5,
+        S_DECLARE = 6, S_ASSIGN = 7, S_EXPR = 8, S_RETURN = 9, S_BREAK = 10,
+        S_CONTINUE = 11, S_FUNCTION = 12, S_TRY = 13,
+        // Expressions
+        E_BINARY = 20, E_TERM = 21, E_LAMBDA = 22, E_NULL = 23,
+        // Terms
+        T_EXPR = 30, T_ARRAY = 31, T_MAP = 32, T_UNARY = 33, T_ACCESS = 34,
+        T_VARIABLE = 35, T_PROP = 36, T_CALL = 37, T_CAST = 38,
+        // Literals
+        L_NULL = 40, L_TRUE = 41, L_FALSE = 42, L_STRING = 43, L_LONG = 44,
+        L_DOUBLE = 45, L_CHAR = 46;
+
+    public static byte[] serialise(NodeProgram program) {
+        return new Writer().write(program);
+    }
+
+    // Write a compiled script as it was optimised. Hoisted expressions and
+    // inlined calls are written as they were before, and are optimised again
+    // when the script is read back.
+    public static byte[] serialise(CompiledScript script) {
+        return serialise(script.program);
+    }
+
+    public static void serialise(NodeProgram program, Path path)
+        throws IOException {
+        Files.write(path, serialise(program));
+    }
+
+    public static NodeProgram deserialise(byte[] data) {
+        return deserialise(ByteBuffer.wrap(data));
+    }
+
+    public static NodeProgram deserialise(ByteBuffer data) {
+        return new Reader(data).read();
+    }
+
+    public static NodeProgram deserialise(Path path) throws IOException {
+        return deserialise(map(path));
+    }
+
+    private static MappedByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
+
+    // MARK: Writer
+    private static class Writer {
+        private final Map<String, Integer> strings = new LinkedHashMap<>();
+        private final Map<Long, Integer> longs = new LinkedHashMap<>();
+        private final Map<Long, Integer> doubles = new LinkedHashMap<>();
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        byte[] write(NodeProgram program) {
+            stmts(program.stmts);
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                body.size() + 64
+            );
+            out.writeBytes(MAGIC);
+            varint(out, VERSION);
+
+            varint(out, strings.size());
+            for (String s : strings.keySet()) {
+                final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                varint(out, bytes.length);
+                out.writeBytes(bytes);
+            }
+
+            varint(out, longs.size());
+            for (long l : longs.keySet()) int64(out, l);
+            varint(out, doubles.size());
+            for (long d : doubles.keySet()) int64(out, d);
+
+            out.writeBytes(body.toByteArray());
+            return out.toByteArray();
+        }
+
+        private void tag(int tag) { body.write(tag); }
+        private void uint(int value) { varint(body, value); }
+        private void string(String s) {
+            if (s == null) { uint(0); return; }
+            uint(1 + strings.computeIfAbsent(s, k -> strings.size()));
+        }
+
+        private void stmts(List<NodeStmt> stmts) {
+            uint(stmts.size());
+            for (NodeStmt stmt : stmts) stmt(stmt);
+        }
+
+        private void scope(NodeScope scope) {
+            if (scope == null) { tag(NONE); return; }
+            tag(S_SCOPE);
+            stmts(scope.stmts);
+        }
+
+        private void params(List<NodeParam> params) {
+            uint(params.size());
+            for (NodeParam p : params) { string(p.param); expr(p._default); }
+        }
+
+        private void stmt(NodeStmt node) {
+            if (node == null) tag(NONE);
+            else if (node instanceof NodeStmt.If) {
+                final NodeStmt.If s = (NodeStmt.If) node;
+                tag(S_IF); expr(s.expr); scope(s.succ); scope(s.fail);
+            }
+            else if (node instanceof NodeStmt.While) {
+                final NodeStmt.While s = (NodeStmt.While) node;
+                tag(S_WHILE); expr(s.expr); scope(s.scope);
+            }
+            else if (node instanceof NodeStmt.ForEach) {
+                final NodeStmt.ForEach s = (NodeStmt.ForEach) node;
+                tag(S_FOREACH); uint(s.line); string(s.itr); term(s.list);
+                scope(s.scope);
+            }
+            else if (node instanceof NodeStmt.For) {
+                final NodeStmt.For s = (NodeStmt.For) node;
+                tag(S_FOR); stmt(s.init); expr(s.cond); stmt(s.inc);
+                scope(s.scope);
+            }
+            else if (node instanceof NodeStmt.Scope) {
+                tag(S_SCOPE); scope(((NodeStmt.Scope) node).scope);
+            }
+            else if (node instanceof NodeStmt.Declare) {
+                final NodeStmt.Declare s = (NodeStmt.Declare) node;
+                tag(S_DECLARE); string(s.var); expr(s.expr);
+            }
+            else if (node instanceof NodeStmt.Assign) {
+                final NodeStmt.Assign s = (NodeStmt.Assign) node;
+                tag(S_ASSIGN); uint(s.op.ordinal()); term(s.term); expr(s.expr);
+            }
+            else if (node instanceof NodeStmt.Expr) {
+                tag(S_EXPR); expr(((NodeStmt.Expr) node).expr);
+            }
+            else if (node instanceof NodeStmt.Return) {
+                tag(S_RETURN); expr(((NodeStmt.Return) node).expr);
+            }
+            else if (node instanceof NodeStmt.Break) tag(S_BREAK);
+            else if (node instanceof NodeStmt.Continue) tag(S_CONTINUE);
+            else if (node instanceof NodeStmt.Function) {
+                final NodeStmt.Function s = (NodeStmt.Function) node;
+                tag(S_FUNCTION); string(s.name); params(s.params);
+                scope(s.body); uint(s.memo); uint(s.pure ? 1 : 0);
+            }
+            else if (node instanceof NodeStmt.TryCatch) {
+                final NodeStmt.TryCatch s = (NodeStmt.TryCatch) node;
+                tag(S_TRY); scope(s._try); scope(s._catch); string(s.err);
+                scope(s._finally);
+            }
+            else throw new IllegalArgumentException(
+                "Cannot serialise statement: " + node
+            );
+        }
+
+        private void expr(NodeExpr node) {
+            if (node == null) tag(NONE);
+            else if (node == NodeExpr.NULL) tag(E_NULL);
+            else if (node instanceof NodeExpr.Binary) {
+                final NodeExpr.Binary e = (NodeExpr.Binary) node;
+                tag(E_BINARY); uint(e.line); uint(e.op.ordinal());
+                term(e.lhs); term(e.rhs);
+            }
+            else if (node instanceof NodeExpr.Term) {
+                tag(E_TERM); uint(node.line); term(((NodeExpr.Term) node).val);
+            }
+            else if (node instanceof NodeExpr.Lambda) {
+                final NodeExpr.Lambda e = (NodeExpr.Lambda) node;
+                tag(E_LAMBDA); uint(e.line); params(e.params); scope(e.body);
+            }
+            else throw new IllegalArgumentException(
+                "Cannot serialise expression: " + node
+            );
+        }
+
+        private void term(NodeTerm node) {
+            if (node == null) tag(NONE);
+            else if (node instanceof NodeTerm.Expr) {
+                tag(T_EXPR); expr(((NodeTerm.Expr) node).expr);
+            }
+            // Hoisted and inlined again when read back, as it is optimised
+            // again.
+            else if (node instanceof NodeTerm.Hoisted) {
+                tag(T_EXPR); expr(((NodeTerm.Hoisted) node).expr);
+            }
+            else if (node instanceof NodeTerm.Inline) {
+                term(((NodeTerm.Inline) node).call);
+            }
+            else if (node instanceof NodeTerm.ArrayLiteral) {
+                final List<NodeExpr> items = ((NodeTerm.ArrayLiteral) node).items;
+                tag(T_ARRAY); uint(items.size());
+                for (NodeExpr item : items) expr(item);
+            }
+            else if (node instanceof NodeTerm.MapLiteral) {
+                final List<NodeMapEntry> items =
+                    ((NodeTerm.MapLiteral) node).items;
+                tag(T_MAP); uint(items.size());
+                for (NodeMapEntry e : items) { string(e.key); expr(e.value); }
+            }
+            else if (node instanceof NodeTerm.UnaryExpr) {
+                final NodeTerm.UnaryExpr t = (NodeTerm.UnaryExpr) node;
+                tag(T_UNARY); uint(t.op.ordinal()); term(t.val);
+            }
+            else if (node instanceof NodeTerm.ArrayAccess) {
+                final NodeTerm.ArrayAccess t = (NodeTerm.ArrayAccess) node;
+                tag(T_ACCESS); term(t.array); expr(t.index);
+            }
+            else if (node instanceof NodeTerm.Variable) {
+                tag(T_VARIABLE); string(((NodeTerm.Variable) node).var);
+            }
+            else if (node instanceof NodeTerm.PropAccess) {
+                final NodeTerm.PropAccess t = (NodeTerm.PropAccess) node;
+                tag(T_PROP); term(t.object); string(t.prop);
+            }
+            else if (node instanceof NodeTerm.Call) {
+                final NodeTerm.Call t = (NodeTerm.Call) node;
+                tag(T_CALL); term(t.f); uint(t.args.size());
+                for (NodeExpr arg : t.args) expr(arg);
+            }
+            else if (node instanceof NodeTerm.Cast) {
+                final NodeTerm.Cast t = (NodeTerm.Cast) node;
+                tag(T_CAST); term(t.object); string(t.type.type);
+            }
+            else if (node instanceof NodeTerm.Literal) {
+                literal(((NodeTerm.Literal<?>) node).lit);
+            }
+            else throw new IllegalArgumentException(
+                "Cannot serialise term: " + node
+            );
+        }
+
+        private void literal(Object lit) {
+            if (lit == null) tag(L_NULL);
+            else if (lit instanceof Boolean)
+                tag((Boolean) lit ? L_TRUE : L_FALSE);
+            else if (lit instanceof String) { tag(L_STRING); string((String) lit); }
+            else if (lit instanceof Character) {
+                tag(L_CHAR); uint((Character) lit);
+            }
+            else if (lit instanceof Long) {
+                tag(L_LONG);
+                uint(longs.computeIfAbsent((Long) lit, k -> longs.size()));
+            }
+            else if (lit instanceof Double) {
+                final long bits = Double.doubleToRawLongBits((Double) lit);
+                tag(L_DOUBLE);
+                uint(doubles.computeIfAbsent(bits, k -> doubles.size()));
+            }
+            else throw new IllegalArgumentException(
+                "Cannot serialise literal of type " + Types.javaType(lit)
+            );
+        }
+    }
+
+    private static void varint(OutputStream out, int value) {
+        try {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+        }
+        catch (IOException e) { throw new IllegalStateException(e); }
+    }
+
+    private static void int64(OutputStream out, long value) {
+        for (int i = 56; i >= 0; i -= 8) uint8(out, (int) (value >>> i));
+    }
+
+    private static void uint8(OutputStream out, int value) {
+        try { out.write(value & 0xFF); }
+        catch (IOException e) { throw new IllegalStateException(e); }
+    }
+
+    // MARK: Reader
+    private static class Reader {
+        private final ByteBuffer in;
+        private String[] strings;
+        private long[] longs;
+        private double[] doubles;
+
+        Reader(ByteBuffer data) { in = data.duplicate(); }
+
+        NodeProgram read() {
+            magic(in, MAGIC);
+
+            strings = new String[uint()];
+            for (int i = 0; i < strings.length; i += 1) {
+                final byte[] bytes = new byte[uint()];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            longs = new long[uint()];
+            for (int i = 0; i < longs.length; i += 1) longs[i] = in.getLong();
+            doubles = new double[uint()];
+            for (int i = 0; i < doubles.length; i += 1)
+                doubles[i] = in.getDouble();
+
+            return new NodeProgram(stmts());
+        }
+
+        private int tag() { return in.get() & 0xFF; }
+        private int uint() { return varint(in); }
+        private String string() {
+            final int i = uint();
+            return i == 0 ? null : strings[i - 1];
+        }
+
+        private List<NodeStmt> stmts() {
+            final int count = uint();
+            final List<NodeStmt> stmts = new LinkedList<>();
+            for (int i = 0; i < count; i += 1) stmts.add(stmt());
+            return stmts;
+        }
+
+        private NodeScope scope() {
+            final int tag = tag();
+            if (tag == NONE) return null;
+            if (tag != S_SCOPE) throw corrupt(tag);
+            return new NodeScope(stmts());
+        }
+
+        private List<NodeParam> params() {
+            final int count = uint();
+            final List<NodeParam> params = new LinkedList<>();
+            for (int i = 0; i < count; i += 1)
+                params.add(new NodeParam(string(), expr()));
+            return params;
+        }
+
+        private NodeStmt stmt() {
+            final int tag = tag();
+            switch (tag) {
+                case NONE: return null;
+                case S_IF: return new NodeStmt.If(expr(), scope(), scope());
+                case S_WHILE: return new NodeStmt.While(expr(), scope());
+                case S_FOREACH: {
+                    final int line = uint();
+                    return new NodeStmt.ForEach(
+                        string(), term(), scope(), line
+                    );
+                }
+                case S_FOR: return new NodeStmt.For(
+                    (NodeStmt.Declare) stmt(), expr(), stmt(), scope()
+                );
+                case S_SCOPE: return new NodeStmt.Scope(scope());
+                case S_DECLARE: return new NodeStmt.Declare(string(), expr());
+                case S_ASSIGN: return new NodeStmt.Assign(
+                    AssignOp.values()[uint()], term(), expr()
+                );
+                case S_EXPR: return new NodeStmt.Expr(expr());
+                case S_RETURN: return new NodeStmt.Return(expr());
+                case S_BREAK: return new NodeStmt.Break();
+                case S_CONTINUE: return new NodeStmt.Continue();
+                case S_FUNCTION: {
+                    final String name = string();
+                    final List<NodeParam> params = params();
+                    final NodeScope body = scope();
+                    return new NodeStmt.Function(
+                        name, params, body, uint(), uint() != 0
+                    );
+                }
+                case S_TRY: {
+                    final NodeScope t = scope(), c = scope();
+                    final String err = string();
+                    return new NodeStmt.TryCatch(t, c, err, scope());
+                }
+            }
+            throw corrupt(tag);
+        }
+
+        private NodeExpr expr() {
+            final int tag = tag();
+            switch (tag) {
+                case NONE: return null;
+                case E_NULL: return NodeExpr.NULL;
+                case E_BINARY: {
+                    final int line = uint();
+                    final BinaryOp op = BinaryOp.values()[uint()];
+                    final NodeTerm lhs = term();
+                    return new NodeExpr.Binary(op, lhs, term(), line);
+                }
+                case E_TERM: {
+                    final int line = uint();
+                    return new NodeExpr.Term(term(), line);
+                }
+                case E_LAMBDA: {
+                    final int line = uint();
+                    final List<NodeParam> params = params();
+                    return new NodeExpr.Lambda(params, scope(), line);
+                }
+            }
+            throw corrupt(tag);
+        }
+
+        private NodeTerm term() {
+            final int tag = tag();
+            switch (tag) {
+                case NONE: return null;
+                case T_EXPR: return new NodeTerm.Expr(expr());
+                case T_ARRAY: {
+                    final int count = uint();
+                    final List<NodeExpr> items = new LinkedList<>();
+                    for (int i = 0; i < count; i += 1) items.add(expr());
+                    return new NodeTerm.ArrayLiteral(items);
+                }
+                case T_MAP: {
+                    final int count = uint();
+                    final List<NodeMapEntry> items = new LinkedList<>();
+                    for (int i = 0; i < count; i += 1)
+                        items.add(new NodeMapEntry(string(), expr()));
+                    return new NodeTerm.MapLiteral(items);
+                }
+                case T_UNARY:
+                    return new NodeTerm.UnaryExpr(UnaryOp.values()[uint()], term());
+                case T_ACCESS: return new NodeTerm.ArrayAccess(term(), expr());
+                case T_VARIABLE: return new NodeTerm.Variable(string());
+                case T_PROP: return new NodeTerm.PropAccess(term(), string());
+                case T_CALL: {
+                    final NodeTerm f = term();
+                    final int count = uint();
+                    final List<NodeExpr> args = new LinkedList<>();
+                    for (int i = 0; i < count; i += 1) args.add(expr());
+                    return new NodeTerm.Call(f, args);
+                }
+                case T_CAST:
+                    return new NodeTerm.Cast(term(), new NodeType(string()));
+                case L_NULL: return new NodeTerm.Literal<Void>(null);
+                case L_TRUE: return new NodeTerm.Literal<Boolean>(true);
+                case L_FALSE: return new NodeTerm.Literal<Boolean>(false);
+                case L_STRING: return new NodeTerm.Literal<String>(string());
+                case L_CHAR:
+                    return new NodeTerm.Literal<Character>((char) uint());
+                case L_LONG: return new NodeTerm.Literal<Long>(longs[uint()]);
+                case L_DOUBLE:
+                    return new NodeTerm.Literal<Double>(doubles[uint()]);
+            }
+            throw corrupt(tag);
+        }
+
+        private RuntimeException corrupt(int tag) {
+            return new IllegalArgumentException(String.format(
+                "Corrupt smgc data: unexpected tag %d at byte %d",
+                tag, in.position() - 1
+            ));
+        }
+    }
+
+    private static int varint(ByteBuffer in) {
+        int value = 0, shift = 0, b;
+        do {
+            b = in.get() & 0xFF;
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        }
+        while ((b & 0x80) != 0);
+        return value;
+    }
+
+    private static void magic(ByteBuffer in, byte[] magic) {
+        for (byte b : magic) if (in.get() != b) throw new IllegalArgumentException(
+            "Not smgc data: bad magic number"
+        );
+
+        final int version = varint(in);
+        if (version != VERSION) throw new IllegalArgumentException(String.format(
+            "Unsupported smgc version %d (expected %d)", version, VERSION
+        ));
+    }
+
+    // MARK: Archive
+    /*
+     * An archive holds many serialised programs under a name. The file begins
+     * with an index of every name and where its program lies in the file:
+     *
+     *   'SMGA' version count (name offset length)*
+     *
+     * followed by the programs themselves. Opening an archive only reads the
+     * index, each program is decoded from the mapping when it is first used
+     * and then kept.
+     */
+    public static class Archive {
+        private final ByteBuffer data;
+        private final Map<String, int[]> index;
+        private final Map<String, CompiledScript> scripts =
+            new ConcurrentHashMap<>();
+
+        private Archive(ByteBuffer data) {
+            this.data = data;
+            final ByteBuffer in = data.duplicate();
+            magic(in, ARCHIVE);
+
+            final int count = varint(in);
+            final Map<String, int[]> idx = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i += 1) {
+                final byte[] name = new byte[varint(in)];
+                in.get(name);
+                idx.put(new String(name, StandardCharsets.UTF_8),
+                    new int[] { in.getInt(), in.getInt() }
+                );
+            }
+            index = Collections.unmodifiableMap(idx);
+        }
+
+        public static Archive open(Path path) throws IOException {
+            return new Archive(map(path));
+        }
+
+        public static Archive of(byte[] data) {
+            return new Archive(ByteBuffer.wrap(data));
+        }
+
+        public Set<String> names() { return index.keySet(); }
+        public boolean contains(String name) { return index.containsKey(name); }
+
+        // Decode (once) and return the named script, or null if the archive
+        // does not have it.
+        public CompiledScript script(String name) {
+            if (!index.containsKey(name)) return null;
+            return scripts.computeIfAbsent(
+                name, n -> CompiledScript.of(program(n))
+            );
+        }
+
+        // The named program as it was written, or null if the archive does
+        // not have it. It is decoded again on every call, as compiling a
+        // program annotates its tree, so each caller gets its own.
+        public NodeProgram program(String name) {
+            final int[] at = index.get(name);
+            if (at == null) return null;
+            return deserialise(data.duplicate()
+                .position(at[0]).limit(at[0] + at[1]).slice());
+        }
+
+        public static byte[] write(Map<String, NodeProgram> programs) {
+            final List<byte[]> names = new ArrayList<>(programs.size()),
+                blobs = new ArrayList<>(programs.size());
+            for (Map.Entry<String, NodeProgram> e : programs.entrySet()) {
+                names.add(e.getKey().getBytes(StandardCharsets.UTF_8));
+                blobs.add(serialise(e.getValue()));
+            }
+
+            // The index size must be known before the offsets can be.
+            final ByteArrayOutputStream header = new ByteArrayOutputStream();
+            header.writeBytes(ARCHIVE);
+            varint(header, VERSION);
+            varint(header, names.size());
+            int size = header.size();
+            for (byte[] name : names) {
+                final ByteArrayOutputStream len = new ByteArrayOutputStream();
+                varint(len, name.length);
+                size += len.size() + name.length + 8;
+            }
+
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.writeBytes(header.toByteArray());
+            int offset = size;
+            for (int i = 0; i < names.size(); i += 1) {
+                varint(out, names.get(i).length);
+                out.writeBytes(names.get(i));
+                int32(out, offset);
+                int32(out, blobs.get(i).length);
+                offset += blobs.get(i).length;
+            }
+            for (byte[] blob : blobs) out.writeBytes(blob);
+            return out.toByteArray();
+        }
+
+        public static void write(Map<String, NodeProgram> programs, Path path)
+            throws IOException {
+            Files.write(path, write(programs));
+        }
+
+        private static void int32(OutputStream out, int value) {
+            for (int i = 24; i >= 0; i -= 8) uint8(out, value >>> i);
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package smg.interpreter;
 
 import java.lang.reflect.Field;
+import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.Map;
 import java.util.Set;
 
 /*
@@ -19,14 +21,22 @@ import java.util.Set;
  * constructed and instantiated through Token.make().
  * 
  * A list of all definite tokens (except EOT) is collected through reflection 
- * and stored for convenience.
+ * and stored for convenience. From that list two lookup structures are built
+ * once for the Tokeniser: a character trie holding every definite token, and a
+ * hash table holding only the keywords that look like qualifiers.
  */
 public class Token {
 
     // Token properties
     
-    // Type(s) indicate how the token is used
+    // Type(s) indicate how the token is used, both as a set and as a mask.
     final Set<TokenType> types; 
+    final int mask;
+
+    // Kind is a number identifying the token. Every definite token has its own
+    // kind, and indefinite tokens share one kind per type. Kinds are used in 
+    // packed token streams in place of Token objects.
+    final int kind;
 
     // String value stores the contents of a token.
     final String value; 
@@ -43,6 +53,9 @@ public class Token {
     boolword = Set.of(TokenType.BooleanLiteral, TokenType.Keyword),
     castword = Set.of(TokenType.CastType, TokenType.Keyword);
 
+    // Definite tokens are numbered in order of construction.
+    private static int definiteCount;
+
     // All definite tokens
     static final Token
     Null = new Token("null", TokenType.Keyword),
@@ -148,19 +161,51 @@ public class Token {
     // List of definite tokens for convenience
     public static final LinkedList<Token> tokenList = new LinkedList<>();
 
+    // Definite tokens (and EOT) indexed by kind. Indefinite token kinds start
+    // after them, at INDEFINITE + the ordinal of their type. Each indefinite 
+    // kind has a shared value-less Token which stands in for it in streams.
+    static final Token[] definite = new Token[definiteCount];
+    static final int INDEFINITE = definiteCount;
+    private static final Token[] indefinite = 
+        new Token[TokenType.values().length];
+
+    // Trie of all definite tokens, used to find the longest match in a single
+    // forward walk over the program string.
+    static final Trie trie = new Trie();
+
+    // Hash table of all word-like keywords ('if', 'and', 'int', ...). The size
+    // and multiplier are searched for once so that, as long as one is found,
+    // no two keywords share a bucket and a lookup is one hash and one
+    // comparison. Otherwise keywords are probed for linearly, up to
+    // keywordProbes buckets past their own.
+    private static Token[] keywords;
+    private static int keywordMul, keywordProbes;
+    private static final int MAX_KEYWORD_TABLE = 1 << 12;
+
     static {
         try {
             // It is built through reflection
             for (Field f : Token.class.getDeclaredFields()) {
                 if (f.getType() == Token.class) {
                     Token t = (Token) f.get(null); 
+                    definite[t.kind] = t;
                     if (t == EOT) continue;
                     tokenList.add(t);
                 }
             }
 
+            for (TokenType type : TokenType.values()) 
+                indefinite[type.ordinal()] = make("", type);
+
             // And sorted from largest to smallest.
             tokenList.sort((a, b) -> b.value.length() - a.value.length());
+
+            final LinkedList<Token> words = new LinkedList<>();
+            for (Token t : tokenList) {
+                trie.add(t);
+                if (isWord(t.value)) words.add(t);
+            }
+            buildKeywords(words);
         }
 
         // Do not allow exceptions to be caught here.
@@ -186,22 +231,150 @@ public class Token {
     }
 
     private Token(String val, Set<TokenType> ts, int p, boolean r) {
-        value = val; prec = p; rassoc = r; types = Set.copyOf(ts);
+        this(val, ts, p, r, definiteCount++);
+    }
+
+    private Token(String val, Set<TokenType> ts, int p, boolean r, int k) {
+        value = val; prec = p; rassoc = r; types = Set.copyOf(ts); kind = k;
+
+        int m = 0;
+        for (TokenType type : types) m |= type.mask;
+        mask = m;
     }
 
     static Token make(String name, TokenType type) {
-        return new Token(name, type);
+        return new Token(name, Set.of(type), 0, false, 
+            INDEFINITE + type.ordinal());
+    }
+
+    // The shared Token of a kind. Indefinite kinds give a value-less Token.
+    static Token of(int kind) {
+        return kind < INDEFINITE ? definite[kind] : 
+            indefinite[kind - INDEFINITE];
+    }
+
+    static int kind(TokenType type) { return INDEFINITE + type.ordinal(); }
+
+    /*
+     * Keyword Lookup
+     * 
+     * Qualifiers and keywords share the same characters, so the Tokeniser reads
+     * a whole word first and then asks here whether it is a keyword. The hash
+     * covers every character of the word, and a multiplier is searched for that
+     * puts each keyword in its own bucket. Should none be found the table falls
+     * back to linear probing, so a new keyword can only make lookups slower.
+     */
+    static Token keyword(CharSequence src, int start, int end) {
+        final int len = end - start;
+        if (len == 0) return null;
+
+        final int mask = keywords.length - 1;
+        int i = hash(src, start, end, keywordMul) & mask;
+        for (int probe = 0; probe <= keywordProbes; probe += 1, i = (i + 1) & mask) {
+            final Token t = keywords[i];
+            if (t == null) return null;
+            if (matches(t.value, src, start, len)) return t;
+        }
+        return null;
+    }
+
+    private static boolean matches(String value, CharSequence src, int start, int len) {
+        if (value.length() != len) return false;
+        for (int i = 0; i < len; i += 1) 
+            if (value.charAt(i) != src.charAt(start + i)) return false;
+        return true;
+    }
+
+    private static int hash(CharSequence src, int start, int end, int mul) {
+        int h = end - start;
+        for (int i = start; i < end; i += 1) h = h * mul + src.charAt(i);
+        return h ^ (h >>> 16);
+    }
+
+    private static void buildKeywords(LinkedList<Token> words) {
+        for (int size = 32; size <= MAX_KEYWORD_TABLE; size <<= 1) {
+            search: for (int mul = 31; mul < 1024; mul += 2) {
+                final Token[] table = new Token[size];
+                for (Token t : words) {
+                    final int i = hash(t.value, 0, t.value.length(), mul) & (size - 1);
+                    if (table[i] != null) continue search;
+                    table[i] = t;
+                }
+
+                keywords = table; keywordMul = mul; keywordProbes = 0;
+                return;
+            }
+        }
+
+        // No perfect table, so keywords that share a bucket take the next 
+        // free one and lookups walk as far as the furthest of them.
+        final int size = Math.max(32, Integer.highestOneBit(words.size()) << 2);
+        final Token[] table = new Token[size];
+        int probes = 0;
+        for (Token t : words) {
+            int i = hash(t.value, 0, t.value.length(), 31) & (size - 1), probe = 0;
+            while (table[i] != null) { i = (i + 1) & (size - 1); probe += 1; }
+            table[i] = t;
+            probes = Math.max(probes, probe);
+        }
+        keywords = table; keywordMul = 31; keywordProbes = probes;
+    }
+
+    private static boolean isWord(String text) {
+        for (int i = 0; i < text.length(); i += 1) {
+            final char c = text.charAt(i);
+            if (!(c == '_' || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z')))
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * Trie
+     * 
+     * A node per character of every definite token. Nodes where a token ends 
+     * hold a reference to it. ASCII children are indexed directly, anything 
+     * else (like 'λ') falls back to a small map.
+     */
+    static final class Trie {
+        private final Trie[] ascii = new Trie[128];
+        private Map<Character, Trie> other = null;
+        Token token = null;
+
+        Trie next(char c) {
+            if (c < 128) return ascii[c];
+            return other == null ? null : other.get(c);
+        }
+
+        private void add(Token t) {
+            Trie node = this;
+            for (int i = 0; i < t.value.length(); i += 1) {
+                final char c = t.value.charAt(i);
+                Trie child = node.next(c);
+                if (child == null) {
+                    child = new Trie();
+                    if (c < 128) node.ascii[c] = child;
+                    else {
+                        if (node.other == null) node.other = new HashMap<>();
+                        node.other.put(c, child);
+                    }
+                }
+                node = child;
+            }
+            node.token = t;
+        }
     }
 
     // HELPERS
     public boolean hasValue() { return !value.isBlank(); }
+    public boolean is(TokenType type) { return (mask & type.mask) != 0; }
     public boolean isAny(TokenType... ts) {
-        for (TokenType type : ts) if (types.contains(type)) return true;
+        for (TokenType type : ts) if ((mask & type.mask) != 0) return true;
         return false;
     }
 
     public boolean isAll(TokenType... ts) {
-        for (TokenType type : ts) if (!types.contains(type)) return false;
+        for (TokenType type : ts) if ((mask & type.mask) == 0) return false;
         return true;
     }
 
@@ -0,0 +1,108 @@
+package smg.interpreter;
+
+/*
+ * Token Stream
+ *
+ * A packed list of tokens read from a program. Instead of a Token object per
+ * token, four parallel arrays hold the kind, start, length and line of every
+ * token. Definite tokens are shared so they are looked up by kind, while the
+ * text of indefinite tokens (qualifiers, literals and comments) is only read
+ * from the program when it is asked for.
+ *
+ * The arrays are used as a ring buffer. Tokens are pulled from the Tokeniser
+ * as they are needed, and tokens before a released position can be dropped.
+ * A stream that is never released simply holds every token of the program,
+ * while a parser that releases as it consumes only ever holds its lookahead.
+ */
+public class TokenStream {
+
+    private final CharSequence program;
+    private Tokeniser source;
+    private int[] kinds, starts, lengths, lines;
+
+    // Absolute index of the first token still held, and the number of tokens
+    // read from the source so far.
+    private int base = 0, size = 0;
+
+    TokenStream(Tokeniser tokeniser) {
+        program = tokeniser.program();
+        source = tokeniser;
+        kinds = new int[16]; starts = new int[16];
+        lengths = new int[16]; lines = new int[16];
+    }
+
+    // Read tokens from the source until the given index is available, or the
+    // source runs out.
+    private void fill(int i) {
+        while (size <= i && source != null) {
+            final Token token = source.scan();
+            add(token != null ? token.kind : Token.kind(source.type()),
+                source.start(), source.end(), source.line());
+
+            if (token == Token.EOT) source = null;
+        }
+    }
+
+    void readAll() { fill(Integer.MAX_VALUE - 1); }
+
+    private void add(int kind, int start, int end, int line) {
+        if (size - base == kinds.length) grow();
+
+        final int s = size & (kinds.length - 1);
+        kinds[s] = kind; starts[s] = start;
+        lengths[s] = end - start; lines[s] = line;
+        size += 1;
+    }
+
+    // Double the ring, keeping every held token at its new slot.
+    private void grow() {
+        final int capacity = kinds.length * 2,
+            oldMask = kinds.length - 1, mask = capacity - 1;
+        final int[] k = new int[capacity], s = new int[capacity],
+            l = new int[capacity], n = new int[capacity];
+
+        for (int i = base; i < size; i += 1) {
+            k[i & mask] = kinds[i & oldMask]; s[i & mask] = starts[i & oldMask];
+            l[i & mask] = lengths[i & oldMask]; n[i & mask] = lines[i & oldMask];
+        }
+        kinds = k; starts = s; lengths = l; lines = n;
+    }
+
+    // Slot of an absolute index. The stream always ends in EOT, which is
+    // returned for any index past the end.
+    private int slot(int i) {
+        fill(i);
+        if (i >= size) i = size - 1;
+        if (i < base) throw new IllegalStateException(
+            "Token " + i + " has already been released"
+        );
+        return i & (kinds.length - 1);
+    }
+
+    // Allow every token before the given index to be dropped. The last token
+    // read is always kept.
+    void release(int i) { base = Math.max(base, Math.min(i, size - 1)); }
+
+    // Accessors
+    public int size() { return size; }
+    public int kind(int i) { return kinds[slot(i)]; }
+    public int start(int i) { return starts[slot(i)]; }
+    public int length(int i) { return lengths[slot(i)]; }
+    public int line(int i) { return lines[slot(i)]; }
+
+    // The shared Token for the kind at the given index. Indefinite tokens have
+    // no value here, use text() to read it.
+    public Token token(int i) { return Token.of(kind(i)); }
+
+    // Materialise the text of a token. String literals have their escapes
+    // decoded.
+    public String text(int i) {
+        final int start = start(i), end = start + length(i);
+        boolean escaped = false;
+        if (kind(i) == Token.kind(TokenType.StringLiteral)) {
+            for (int c = start; c < end && !escaped; c += 1)
+                escaped = program.charAt(c) == '\\';
+        }
+        return Tokeniser.text(program, start, end, escaped);
+    }
+}
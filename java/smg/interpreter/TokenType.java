@@ -6,6 +6,9 @@ package smg.interpreter;
  * Used in the parser for a lot of manipulation, it helps identify quickly if a 
  * Token belongs in an expression or not. Note that there may be unused types in
  * the current implementation of the Tokeniser.
+ * 
+ * Each type owns a single bit so a set of types can be stored and tested as an
+ * int mask.
  */
 public enum TokenType {
     Qualifier,
@@ -24,4 +27,6 @@ public enum TokenType {
     AssignOperator,
     StatementTerminator,
     ScopeTerminator;
+
+    public final int mask = 1 << ordinal();
 }
\ No newline at end of file
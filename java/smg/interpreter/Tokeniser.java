@@ -1,10 +1,17 @@
 package smg.interpreter;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.LinkedList;
 
 /**
- * The tokeniser reads the input program string one character at a time, and 
- * turns them into tokens according to a few simple rules. 
+ * The tokeniser reads the input program one character at a time, and turns 
+ * them into tokens according to a few simple rules. The program can be any 
+ * CharSequence, including the bytes of a memory mapped file. 
  * <p>
  * Tokens can be of known size, type and contents at compile time. All tokens of
  * this kind are stored as static final fields in the Token class and are called
@@ -43,6 +50,8 @@ import java.util.LinkedList;
  *   Add c to buffer
  *   while next char is Underscore or Alphanumeric:
  *     Add next char to buffer
+ *   If buffer contents are a keyword:
+ *     return the keyword Token
  *   return buffer contents as Qualifier Token
  * 
  * Otherwise if c is Numeric:
@@ -54,152 +63,167 @@ import java.util.LinkedList;
  * 
  * Otherwise c is not a recognised start of an indefinite token.
  * </pre>
+ * Tokens are scanned as spans over the program and no text is copied until a
+ * Token is actually asked for. scan() only records where the token starts and
+ * ends, text() then materialises it, decoding any string escapes in one pass.
  */
 public class Tokeniser {
 
     // Current location of the Tokeniser on the progam string
     private int loc = 0;
 
+    // Span of the last token scanned, its type if it was indefinite, and 
+    // whether it was a string containing escape sequences.
+    private int start = 0, end = 0;
+    private TokenType type = null;
+    private boolean escaped = false;
+
+    // Line the last token started on. Newlines inside a token are only counted
+    // once the next token is scanned.
+    private int line = 1, pending = 0;
+
     // The program which contains all of our instructions
-    private final String program;
-    public Tokeniser(String input) { program = input; }
-    
-    // Tokenisation states
-    private final int 
-        WAITING = 0, 
-        S_STR_LIT = 1, 
-        D_STR_LIT = 2, 
-        COMMENT = 3, 
-        NUMBER = 4, 
-        WORD = 5;
+    private final CharSequence program;
+    public Tokeniser(CharSequence input) { program = input; }
+
+    // Tokenise a file by mapping it into memory. An ASCII file is read straight
+    // from the mapped bytes. Only a file with other characters in it is decoded
+    // from UTF-8 into a CharBuffer first.
+    public static Tokeniser map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, 
+            StandardOpenOption.READ)) {
+            final ByteBuffer bytes = channel.map(
+                FileChannel.MapMode.READ_ONLY, 0, channel.size()
+            );
+            for (int i = 0, n = bytes.limit(); i < n; i += 1) {
+                if (bytes.get(i) < 0) 
+                    return new Tokeniser(StandardCharsets.UTF_8.decode(bytes));
+            }
+            return new Tokeniser(new Ascii(bytes));
+        }
+    }
+
+    // ASCII bytes read as chars, one byte for each. Text is only copied out of
+    // the buffer when toString() asks for it.
+    private static final class Ascii implements CharSequence {
+        private final ByteBuffer bytes;
+        Ascii(ByteBuffer bytes) { this.bytes = bytes; }
+
+        public int length() { return bytes.limit(); }
+        public char charAt(int index) { return (char) bytes.get(index); }
+        public CharSequence subSequence(int start, int end) {
+            return new Ascii(bytes.slice(start, end - start));
+        }
+
+        public String toString() {
+            final byte[] text = new byte[bytes.limit()];
+            bytes.get(0, text);
+            return new String(text, StandardCharsets.US_ASCII);
+        }
+    }
 
     // Get next token
     public Token nextToken() {
+        final Token token = scan();
+        return token != null ? token : Token.make(text(), type);
+    }
 
-        // Buffer stores a sequence of characters which would later become 
-        // literals, comments, etc.
-        final StringBuffer buffer = new StringBuffer();
-
-        // Initial state is waiting
-        int state = WAITING;
-        boolean escape = false;
-        while (peek() != Token.EOF || buffer.length() > 0) {
-            switch (state) {
-
-                // Building a String Literal
-                case S_STR_LIT:
-                case D_STR_LIT:
-
-                    // Strings must end in the correct token.
-                    if (escape) {
-                        escape = false;
-                        switch (peek()) {
-                            case '"': buffer.append('"'); break;
-                            case '\\': buffer.append('\\'); break;
-                            case '\'': buffer.append('\''); break;
-                            case 'n': buffer.append('\n'); break;
-                            case 'b': buffer.append('\b'); break;
-                            case 'r': buffer.append('\r'); break;
-                            case 't': buffer.append('\t'); break;
-                            case 'f': buffer.append('\f'); break;
-                            case '0': buffer.append('\0'); break;
-                        
-                            default: throw error(
-                                "Unrecognised escape character: \\%s", peek());
-                        }
-                        consume();
-                        continue;
-                    } 
-                    else if (tryConsume(Token.BackSlash)) {
-                        escape = true;
-                        continue;
-                    }
-                    else if ((state == S_STR_LIT && tryConsume(Token.SingleQuote)) ||
-                        (state == D_STR_LIT && tryConsume(Token.DoubleQuote))) {
-
-                        final String value = escape(buffer.toString());
-                        buffer.setLength(0);
-                        return Token.make(value, TokenType.StringLiteral);
-                    }
-
-                    // Forbid multiline strings in source code
-                    else if (tryConsume(Token.Newline)) 
-                        throw error("Unexpected new line in string literal");
-                    
-                    // Otherwise, everything encountered is part of the string.
-                    buffer.append(consume());
-                    break;
-                
-                // Building a Comment
-                case COMMENT: {
-
-                    // Everything proceeding a hashtag '#' becomes is included.
-                    final Token token = tryConsume();
-                    buffer.append(token == null ? consume() : token.value);
-                    
-                    // End the comment if it ends in a new line
-                    if (token == Token.Newline || peek() == Token.EOF) 
-                        return Token.make(buffer.toString(), TokenType.Comment);
-                    
-                    break;
-                }
-
-                // Waiting for tokens
-                case WAITING: 
-
-                    // Attempt to consume a definite token
-                    final Token token = tryConsume();
-
-                    // If the token read indicates the start of a string or a 
-                    // comment, set the state accordingly
-                    state = token == Token.SingleQuote ? S_STR_LIT :
-                            token == Token.DoubleQuote ? D_STR_LIT :
-                            token == Token.Hashtag ? COMMENT : state;
-
-                    if (state != WAITING) break;
-
-                    // Otherwise, if the token read is not null, it is returned
-                    // as the next Token.
-                    else if (token != null) return token;
-
-                    // Otherwise, our Token needs to be build up.
-                    
-                // Building a Qualifier or Keyword
-                case WORD:
-                    if (peek() == '_' || alpha(peek()) || 
-                        (state == WORD && numeric(peek()))) {
-                        buffer.append(consume()); 
-                        state = WORD;
-                        break;
-                    }
-                    
-                // Building a Number Literal
-                case NUMBER:
-                    if (numeric(peek()) || (state == NUMBER && peek() == '.')) {
-                        buffer.append(consume());
-                        state = NUMBER;
-                        break;
-                    }
-
-                // Building Complete
-                default:
-
-                    // Buffer full = Literal ready to be tokenised
-                    if (buffer.length() > 0) 
-                        return Token.make(buffer.toString(), state == NUMBER ? 
-                            TokenType.NumberLiteral : TokenType.Qualifier);
-
-                    // Otherwise, if token is a space and can be ignored.
-                    else if (space(peek())) consume();
-                    
-                    // If no character can be identified, throw error.
-                    // Likely unreachable.
-                    else throw error("Invalid token: %s", peek());
+    /**
+     * Scan the next token without materialising it. Definite tokens are 
+     * returned as they are. For indefinite tokens null is returned, and the 
+     * token can be read through type(), start(), end() and text().
+     */
+    public Token scan() {
+        line += pending; pending = 0;
+        while (true) {
+            final char c = peek();
+            start = loc; type = null; escaped = false;
+
+            // No more tokens can be found, and an End of Tokens token is 
+            // returned.
+            if (c == Token.EOF) { end = loc; return Token.EOT; }
+
+            // Words are read whole and then looked up as keywords. Anything 
+            // that is not a keyword is a qualifier.
+            if (c == '_' || alpha(c)) {
+                while (peek() == '_' || alpha(peek()) || numeric(peek())) 
+                    loc += 1;
+
+                end = loc;
+                final Token keyword = Token.keyword(program, start, end);
+                if (keyword == null) type = TokenType.Qualifier;
+                return keyword;
+            }
+
+            // Building a Number Literal
+            if (numeric(c)) {
+                while (numeric(peek()) || peek() == '.') loc += 1;
+                end = loc; type = TokenType.NumberLiteral;
+                return null;
+            }
+
+            // Attempt to consume a definite token. If the token read indicates 
+            // the start of a string or a comment, read the rest of it.
+            final Token token = tryConsume();
+            if (token == Token.SingleQuote || token == Token.DoubleQuote) 
+                return scanString(token.value.charAt(0));
+            
+            else if (token == Token.Hashtag) {
+                if (peek() == Token.EOF) continue;
+                return scanComment();
+            }
+
+            // Otherwise, if the token read is not null, it is returned as the
+            // next Token.
+            else if (token != null) { 
+                if (token == Token.Newline) pending = 1;
+                end = loc; return token; 
             }
+
+            // Otherwise, if token is a space and can be ignored.
+            else if (space(c)) loc += 1;
+
+            // If no character can be identified, throw error.
+            else throw error("Invalid token: %s", c);
         }
+    }
 
-        // No more tokens can be found, and an End of Tokens token is returned.
-        return Token.EOT;
+    // Building a String Literal. Strings must end in the correct quote, and 
+    // escapes are only checked here. They are decoded later by text().
+    private Token scanString(char quote) {
+        start = loc;
+        while (true) {
+            final char c = peek();
+            if (c == quote) break;
+
+            // Forbid multiline strings in source code
+            else if (c == '\n') 
+                throw error("Unexpected new line in string literal");
+            else if (c == Token.EOF) 
+                throw error("Unterminated string literal");
+
+            else if (c == '\\') {
+                loc += 1; escaped = true;
+                unescape(peek());
+            }
+            loc += 1;
+        }
+
+        end = loc; loc += 1;
+        type = TokenType.StringLiteral;
+        return null;
+    }
+
+    // Building a Comment. Everything proceeding a hashtag '#' is included up 
+    // to and including the end of the line.
+    private Token scanComment() {
+        start = loc;
+        while (peek() != Token.EOF) {
+            if (program.charAt(loc++) == '\n') { pending = 1; break; }
+        }
+        
+        end = loc; type = TokenType.Comment;
+        return null;
     }
 
     // Collect all tokens into a list for convenience
@@ -213,6 +237,34 @@ public class Tokeniser {
         return tokens;
     }
 
+    // Collect all tokens into a packed stream. No Token objects are created.
+    public TokenStream stream() {
+        reset();
+        final TokenStream tokens = new TokenStream(this);
+        tokens.readAll();
+        return tokens;
+    }
+
+    // Span and contents of the last token scanned.
+    public int start() { return start; }
+    public int end() { return end; }
+    public int line() { return line; }
+    public TokenType type() { return type; }
+    public String text() { return text(program, start, end, escaped); }
+
+    // Materialise a span of the program, decoding string escapes if there are
+    // any.
+    static String text(CharSequence src, int start, int end, boolean escaped) {
+        if (!escaped) return src.subSequence(start, end).toString();
+
+        final StringBuilder text = new StringBuilder(end - start);
+        for (int i = start; i < end; i += 1) {
+            final char c = src.charAt(i);
+            text.append(c == '\\' ? unescape(src.charAt(i += 1)) : c);
+        }
+        return text.toString();
+    }
+
     /* 
      * Peek and Consume
      * 
@@ -234,82 +286,63 @@ public class Tokeniser {
     // Peek ahead of the current character by a certain amount. Return EOF if we
     // reach the end.
     private char peek(int offset) {
-        return loc + offset == program.length() ? 
+        return loc + offset >= program.length() ? 
             Token.EOF : 
             program.charAt(loc + offset);
     }
 
-    // Peek a consumable of fixed length. Return EOF if we reach the end.
-    private String peekLots(int amount) {
-        return loc + amount > program.length() ? 
-            String.valueOf(Token.EOF) : 
-            program.substring(loc, loc + amount);
-    }
-
     // Consume the next consumable if it exactly matches the value of a definite
-    // token. The biggest token that matches the consumable wins.
+    // token. The biggest token that matches the consumable wins. The trie is
+    // walked one character at a time, remembering the last complete token seen.
     private Token tryConsume() {
-        String c = ""; Token best = null;
-        for (Token token : Token.tokenList) {
-            final int len = token.value.length(),
-            blen = best == null ? 0 : best.value.length();
-
-            if (len != c.length()) c = peekLots(len);
-            if (c.equals(token.value) && len > blen) {
-
-                // If the matched token is a keyword, make sure it isn't 
-                // followed by a valid qualifier character
-                if (token.isAny(TokenType.Keyword) && (
-                    alpha(peek(len)) || 
-                    numeric(peek(len)) || 
-                    peek(len) == '_'
-                )) continue;
-
-                best = token;
-            }
+        Token best = null;
+        Token.Trie node = Token.trie;
+        for (int len = 0; loc + len < program.length(); ) {
+            if ((node = node.next(program.charAt(loc + len))) == null) break;
+            len += 1;
+
+            final Token token = node.token;
+            if (token == null) continue;
+
+            // If the matched token is a keyword, make sure it isn't followed by
+            // a valid qualifier character
+            if (token.isAny(TokenType.Keyword) && (
+                alpha(peek(len)) || 
+                numeric(peek(len)) || 
+                peek(len) == '_'
+            )) continue;
+
+            best = token;
         }
 
-        if (best != null) consumeLots(best.value.length());
+        if (best != null) loc += best.value.length();
         return best;
     }
 
-    // Consume the next consumable if it exactly matches the value of the given
-    // token.
-    private boolean tryConsume(Token token) {
-        final boolean success;
-        if (success = peekLots(token.value.length()).equals(token.value)) 
-            consumeLots(token.value.length());
-        
-        return success;
-    }
-
-    // Consume the current character. Return EOF at the end.
-    private char consume() {
-        return loc == program.length() ? Token.EOF : program.charAt(loc++);
-    }
-
-    // Consume the next specified amount of characters. Return EOF at the end.
-    private String consumeLots(int amount) {
-        return loc + amount > program.length() ? 
-            String.valueOf(Token.EOF) : program.substring(loc, loc += amount);
-    }
-
     // HELPERS
-    private RuntimeException error(String msg, Object... objects) {
+    private static RuntimeException error(String msg, Object... objects) {
         return new RuntimeException(String.format(msg, objects));
     }
 
-    private String escape(String text) {
-        return text.replaceAll("\\\\n", "\n")
-            .replaceAll("\\\\t", "\t")
-            .replaceAll("\\\\r", "\r")
-            .replaceAll("\\\\b", "\b")
-            .replaceAll("\\\\\"", "\"")
-            .replaceAll("\\\\\'", "\'");
+    private static char unescape(char c) {
+        switch (c) {
+            case '"': return '"';
+            case '\\': return '\\';
+            case '\'': return '\'';
+            case 'n': return '\n';
+            case 'b': return '\b';
+            case 'r': return '\r';
+            case 't': return '\t';
+            case 'f': return '\f';
+            case '0': return '\0';
+        
+            default: throw error("Unrecognised escape character: \\%s", c);
+        }
     }
     
-    public void reset() { loc = 0; }
-    public String toString() { return program; }
+    public void reset() { loc = 0; line = 1; pending = 0; }
+    public String toString() { return program.toString(); }
+    CharSequence program() { return program; }
     private boolean numeric(char c) { return (c >= '0' && c <= '9'); }
     private boolean alpha(char c) { 
         return (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'); 
@@ -12,7 +12,10 @@ import java.util.Map;
  * Helper functions to simplify type identification and manipulation during run
  */
 public class Types {
+    // Script errors are shown as one class, whichever kind was raised.
     public static String javaType(Object object) {
+        if (object instanceof ScriptException)
+            return ScriptException.SHOWN_AS.getSimpleName();
         return object == null ? "null" : object.getClass().getSimpleName();
     }
 
@@ -135,7 +138,7 @@ public class Types {
                         return (R) (Character) '\0';
                     else if (s.length() == 1) 
                         return (R) (Character) s.charAt(0);
-                    throw intr.error(
+                    throw new ScriptException.Type(
                         "Cannot convert string of length 2 or more into char"
                     );
                 }
@@ -154,7 +157,7 @@ public class Types {
                         return (R) DateFormat.getInstance()
                             .parse((String) value);
                     } catch (ParseException e) {
-                        throw intr.error(
+                        throw new ScriptException.Type(
                             "Date parse error. '%s' is not recognised", value
                         );
                     }
@@ -163,7 +166,7 @@ public class Types {
             }
         }
 
-        throw intr.error(
+        throw new ScriptException.Type(
             "Casting from %s to %s is not allowed.", javaType(value), type
         );
     }
@@ -0,0 +1,361 @@
+package smg.interpreter;
+
+import static smg.interpreter.Bytecode.*;
+import static smg.interpreter.Calculations.*;
+import static smg.interpreter.Types.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * VM
+ *
+ * Runs bytecode chunks for an Interpreter. The VM keeps no variables of its
+ * own: scopes, the last result and the jump flag all live in the Interpreter,
+ * so bytecode and the tree walker can call each other freely. Each run of a
+ * chunk gets its own operand stack. Errors take their line from the chunk's
+ * line table, looked up by the pc of the instruction that raised them.
+ *
+ * Calls normally go through the Interpreter and run the callee's chunk with a
+ * run of its own, on the JVM stack. For the stackless engine, a call from one
+ * chunk to a function compiled to another is made in the same run instead:
+ * the caller is saved as an activation on the heap, the callee runs in its
+ * place, and the caller is picked up again when it returns. Statements left
+ * to the tree walker, and functions that are not compiled, still recurse.
+ */
+final class VM {
+
+    private static final AssignOp[] ASSIGN_OPS = AssignOp.values();
+    private static final Interpreter.JumpOp[] JUMPS =
+        Interpreter.JumpOp.values();
+
+    private final Interpreter intr;
+
+    VM(Interpreter interpreter) { intr = interpreter; }
+
+    // A caller waiting on a function called on the VM's own stack. The result
+    // goes at sp - 1 of its stack once the function returns.
+    private static final class Activation {
+        final Activation caller;
+        final Chunk chunk;
+        final Object[] stack;
+        final int pc, sp, base;
+        final boolean captured;
+
+        Activation(
+            Activation caller, Chunk chunk, Object[] stack,
+            int pc, int sp, int base, boolean captured
+        ) {
+            this.caller = caller; this.chunk = chunk; this.stack = stack;
+            this.pc = pc; this.sp = sp; this.base = base;
+            this.captured = captured;
+        }
+    }
+
+    // Run a chunk until it ends or leaves. Frames it entered are always left
+    // again unless an exception is thrown, in which case whoever catches it
+    // is in charge of cleaning up, just as with the tree walker.
+    @SuppressWarnings({ "unchecked", "fallthrough" })
+    void run(Chunk chunk) {
+        int[] code = chunk.code;
+        Object[] k = chunk.constants;
+        Object[] stack = new Object[chunk.maxStack];
+        int base = intr.top;
+        int pc = 0, sp = 0;
+
+        // Callers on the VM's own stack, and whether the function running was
+        // entered with a frame of captured variables.
+        final boolean stackless =
+            intr.getEngine() == Interpreter.Engine.STACKLESS;
+        Activation frames = null;
+        boolean captured = false;
+
+        for (;;) try {
+            switch (code[pc]) {
+
+                case CONST: stack[sp++] = k[code[pc + 1]]; pc += 2; break;
+                case NULL: stack[sp++] = null; pc += 1; break;
+                case POP: stack[--sp] = null; pc += 1; break;
+                case DUP: stack[sp] = stack[sp - 1]; sp += 1; pc += 1; break;
+                case RESULT:
+                    intr.lastResult = stack[--sp];
+                    stack[sp] = null;
+                    pc += 1; break;
+
+                // Variables
+                case LOAD_SLOT: {
+                    final Object value = intr.scopes[intr.top - code[pc + 1]]
+                        .slots[code[pc + 2]];
+                    if (value == Frame.UNSET)
+                        throw new ScriptException.Variable(
+                            "Variable %s is undefined", k[code[pc + 3]]
+                        );
+                    stack[sp++] = value;
+                    pc += 4; break;
+                }
+                case STORE_SLOT:
+                    intr.scopes[intr.top - code[pc + 1]].slots[code[pc + 2]] =
+                        stack[--sp];
+                    pc += 3; break;
+                case LOAD_NAME:
+                    stack[sp++] = intr.getVar((String) k[code[pc + 1]]);
+                    pc += 2; break;
+                case STORE_NAME:
+                    intr.setVar((String) k[code[pc + 1]], stack[--sp]);
+                    pc += 2; break;
+                case DEFINE:
+                    intr.defineVar(code[pc + 1], (String) k[code[pc + 2]],
+                        stack[--sp]);
+                    pc += 3; break;
+                case ENTER:
+                    intr.enterScope((String[]) k[code[pc + 1]]);
+                    pc += 2; break;
+                case EXIT:
+                    for (int n = code[pc + 1]; n > 0; n -= 1) intr.exitScope();
+                    pc += 2; break;
+
+                // Operations
+                case BINARY: {
+                    final Object rhs = stack[--sp];
+                    stack[sp - 1] = binary(intr,
+                        (NodeExpr.Binary) k[code[pc + 1]], stack[sp - 1], rhs);
+                    pc += 2; break;
+                }
+                case AND:
+                    if ((Boolean) castValue(intr, "boolean", stack[sp - 1])) {
+                        sp -= 1; pc += 2;
+                    }
+                    else pc = code[pc + 1];
+                    break;
+                case OR:
+                    if (!(Boolean) castValue(intr, "boolean", stack[sp - 1])) {
+                        sp -= 1; pc += 2;
+                    }
+                    else pc = code[pc + 1];
+                    break;
+                case UNARY:
+                    stack[sp - 1] = unary(intr,
+                        (NodeTerm.UnaryExpr) k[code[pc + 1]], stack[sp - 1]);
+                    pc += 2; break;
+                case ASSIGN: {
+                    final Object rhs = stack[--sp];
+                    stack[sp - 1] = calcAssign(intr, ASSIGN_OPS[code[pc + 1]],
+                        stack[sp - 1], rhs);
+                    pc += 2; break;
+                }
+                case CAST:
+                    stack[sp - 1] = castValue(intr, (String) k[code[pc + 1]],
+                        stack[sp - 1]);
+                    pc += 2; break;
+                case HOISTED:
+                    stack[sp++] = intr.hoisted(
+                        (NodeTerm.Hoisted) k[code[pc + 1]]);
+                    pc += 2; break;
+                case BIND:
+                    intr.argument((NodeTerm.Hoisted) k[code[pc + 1]],
+                        stack[--sp]);
+                    stack[sp] = null;
+                    pc += 2; break;
+                case PROP:
+                    stack[sp - 1] = intr.accessProp(stack[sp - 1],
+                        (String) k[code[pc + 1]]);
+                    pc += 2; break;
+                case INDEX: {
+                    final Object index = stack[--sp];
+                    stack[sp - 1] = intr.accessIndex(
+                        (NodeTerm.ArrayAccess) k[code[pc + 1]],
+                        stack[sp - 1], index
+                    );
+                    pc += 2; break;
+                }
+
+                // Literals and functions
+                case ARRAY: {
+                    final int n = code[pc + 1];
+                    final List<Object> items = new ArrayList<>(n);
+                    for (int i = sp - n; i < sp; i += 1) items.add(stack[i]);
+                    sp -= n;
+                    stack[sp++] = items;
+                    pc += 2; break;
+                }
+                case MAP: {
+                    final String[] keys = (String[]) k[code[pc + 1]];
+                    final int n = code[pc + 2];
+                    final Map<String, Object> values = new HashMap<>(n);
+                    for (int i = 0; i < n; i += 1)
+                        values.put(keys[i], stack[sp - n + i]);
+                    sp -= n;
+                    stack[sp++] = values;
+                    pc += 3; break;
+                }
+                case CALL: {
+                    final int n = code[pc + 1];
+                    final Object f = stack[sp - n - 1];
+                    if (stackless && intr.script(f) &&
+                        ((Capture) f).body instanceof Chunk) {
+                        final boolean entered =
+                            enter((Capture) f, stack, sp - n, n);
+                        frames = new Activation(
+                            frames, chunk, stack, pc + 3, sp - n, base, captured
+                        );
+                        captured = entered;
+                        chunk = (Chunk) ((Capture) f).body;
+                        code = chunk.code; k = chunk.constants;
+                        stack = new Object[chunk.maxStack];
+                        base = intr.top;
+                        pc = 0; sp = 0;
+                        break;
+                    }
+
+                    final Host.Site site = (Host.Site) k[code[pc + 2]];
+                    final Object value;
+                    switch (n) {
+                        case 0: value = intr.call(site, f); break;
+                        case 1: value = intr.call(site, f, stack[sp - 1]);
+                            break;
+                        case 2: value = intr.call(site, f,
+                            stack[sp - 2], stack[sp - 1]
+                        ); break;
+                        case 3: value = intr.call(site, f,
+                            stack[sp - 3], stack[sp - 2], stack[sp - 1]
+                        ); break;
+                        case 4: value = intr.call(site, f, stack[sp - 4],
+                            stack[sp - 3], stack[sp - 2], stack[sp - 1]
+                        ); break;
+                        default: value = intr.call(site, f,
+                            Arrays.copyOfRange(stack, sp - n, sp)
+                        );
+                    }
+                    sp -= n;
+                    stack[sp - 1] = value;
+                    pc += 3; break;
+                }
+                case TAIL: {
+                    final int n = code[pc + 1];
+                    final Object value = intr.tail(
+                        (Host.Site) k[code[pc + 2]], stack[sp - n - 1],
+                        Arrays.copyOfRange(stack, sp - n, sp)
+                    );
+                    sp -= n;
+                    stack[sp - 1] = value;
+                    pc += 3; break;
+                }
+                case LAMBDA: {
+                    final Chunk body = (Chunk) k[code[pc + 1]];
+                    stack[sp++] = intr.closure(body.lambda, body);
+                    pc += 2; break;
+                }
+
+                // Control flow
+                case JUMP: pc = code[pc + 1]; break;
+                case JUMP_FALSE:
+                    if ((Boolean) stack[--sp]) pc += 2;
+                    else pc = code[pc + 1];
+                    break;
+                case IF_FALSE:
+                    if ((boolean) castValue(intr, "boolean", stack[--sp]))
+                        pc += 2;
+                    else pc = code[pc + 1];
+                    break;
+                case ITER:
+                    stack[sp - 1] = intr.iterate(stack[sp - 1]);
+                    pc += 1; break;
+                case NEXT: {
+                    final Iterator<?> itr = (Iterator<?>) stack[sp - 1];
+                    if (itr.hasNext()) {
+                        stack[sp++] = itr.next();
+                        pc += 2;
+                    }
+                    else pc = code[pc + 1];
+                    break;
+                }
+                case TREE: {
+                    intr.runStmt((NodeStmt) k[code[pc + 1]]);
+                    final Interpreter.JumpOp jump = intr.jump;
+                    if (jump == null) { pc += 6; break; }
+
+                    // A break or continue that reached a loop in this chunk
+                    // is followed as a jump. Anything else leaves, with the
+                    // jump as it is.
+                    final int at = jump == Interpreter.JumpOp.BREAK ? pc + 2 :
+                        jump == Interpreter.JumpOp.CONTINUE ? pc + 4 : -1;
+                    if (at >= 0 && code[at] >= 0) {
+                        intr.jump = null;
+                        for (int n = code[at + 1]; n > 0; n -= 1)
+                            intr.exitScope();
+                        pc = code[at];
+                        break;
+                    }
+                }
+                // fall through, to leave the chunk with the jump as it is
+                case END:
+                case LEAVE: {
+                    leave(base);
+                    if (frames == null) {
+                        if (code[pc] == LEAVE) intr.jump = JUMPS[code[pc + 1]];
+                        return;
+                    }
+
+                    // Return to a caller on the VM's own stack, leaving the
+                    // function as Interpreter.run does. A tail call it left
+                    // is made in its place.
+                    intr.exitScope();
+                    intr.jump = null;
+                    if (captured) intr.exitScope();
+                    Object value = intr.lastResult;
+
+                    final Capture tail = intr.tail;
+                    if (tail != null) {
+                        final Object[] args = intr.tailArgs;
+                        intr.tail = null; intr.tailArgs = null;
+                        if (!(tail.body instanceof Chunk))
+                            value = intr.call(tail, args);
+                        else {
+                            captured = enter(tail, args, 0, args.length);
+                            chunk = (Chunk) tail.body;
+                            code = chunk.code; k = chunk.constants;
+                            stack = new Object[chunk.maxStack];
+                            base = intr.top;
+                            pc = 0; sp = 0;
+                            break;
+                        }
+                    }
+
+                    final Activation caller = frames;
+                    frames = caller.caller;
+                    chunk = caller.chunk;
+                    code = chunk.code; k = chunk.constants;
+                    stack = caller.stack;
+                    base = caller.base;
+                    captured = caller.captured;
+                    pc = caller.pc; sp = caller.sp;
+                    stack[sp - 1] = value;
+                    break;
+                }
+
+                default: throw new IllegalStateException(
+                    "Invalid opcode " + code[pc] + " at " + pc
+                );
+            }
+        } catch (ScriptException e) {
+            throw intr.at(e, chunk.line(pc));
+        }
+    }
+
+    // Enter a script function with n arguments from the given index on.
+    // Returns whether its frame of captured variables was entered.
+    private boolean enter(Capture f, Object[] values, int from, int n) {
+        final boolean captured = intr.enter(f);
+        final NodeParam[] params = f.def.bindings;
+        for (int i = 0; i < params.length; i += 1)
+            intr.bind(params, i, i < n ? values[from + i] : null);
+        return captured;
+    }
+
+    // Exit every frame entered since the chunk started.
+    private void leave(int base) { while (intr.top > base) intr.exitScope(); }
+}